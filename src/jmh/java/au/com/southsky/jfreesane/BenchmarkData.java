@@ -0,0 +1,45 @@
+package au.com.southsky.jfreesane;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Synthetic protocol data for the benchmarks. The data is random but seeded, so every run measures
+ * the same input.
+ */
+final class BenchmarkData {
+  private BenchmarkData() {}
+
+  static byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+
+  static SaneParameters parameters(FrameType frameType, int depth, int pixelsPerLine, int lines) {
+    int channels = frameType == FrameType.RGB ? 3 : 1;
+    int bytesPerLine = (pixelsPerLine * channels * depth + 7) / 8;
+    return new SaneParameters(
+        frameType.getWireValue(), true, bytesPerLine, pixelsPerLine, lines, depth);
+  }
+
+  /**
+   * Returns the given image encoded as a stream of SANE records of {@code recordSize} bytes
+   * (except for the last), followed by the end-of-records marker and status, as saned sends them.
+   */
+  static byte[] recordStream(byte[] image, int recordSize) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(image.length + image.length / 16 + 8);
+    DataOutputStream output = new DataOutputStream(bytes);
+    for (int offset = 0; offset < image.length; offset += recordSize) {
+      int size = Math.min(recordSize, image.length - offset);
+      output.writeInt(size);
+      output.write(image, offset, size);
+    }
+    output.writeInt(0xffffffff);
+    output.write(SaneStatus.STATUS_EOF.getWireValue());
+    output.flush();
+    return bytes.toByteArray();
+  }
+}
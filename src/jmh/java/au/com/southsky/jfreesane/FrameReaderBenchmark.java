@@ -0,0 +1,77 @@
+package au.com.southsky.jfreesane;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link FrameReader#readFrame} over a synthetic record stream of an A4 page at 150 dpi.
+ * Small records stress the per-record overhead, large ones the copying of image data. The line
+ * count can be left unknown, as hand-held scanners do, to include growing the frame.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class FrameReaderBenchmark {
+  private static final int PIXELS_PER_LINE = 1240;
+  private static final int LINES = 1754;
+
+  @Param({"8", "16"})
+  public int depth;
+
+  @Param({"1024", "32768"})
+  public int recordSize;
+
+  @Param({"true", "false"})
+  public boolean lineCountKnown;
+
+  @Param({"HEAP", "DIRECT"})
+  public FrameStorage storage;
+
+  private byte[] records;
+  private FrameStoragePolicy storagePolicy;
+  private final ScanListener listener = new ScanListenerAdapter();
+
+  @Setup
+  public void setUp() throws IOException {
+    SaneParameters parameters =
+        BenchmarkData.parameters(FrameType.GRAY, depth, PIXELS_PER_LINE, LINES);
+    byte[] image = BenchmarkData.randomBytes(parameters.getBytesPerLine() * LINES);
+    records = BenchmarkData.recordStream(image, recordSize);
+    storagePolicy = FrameStoragePolicy.always(storage);
+  }
+
+  @Benchmark
+  public int readFrame() throws IOException, SaneException {
+    SaneParameters parameters =
+        BenchmarkData.parameters(
+            FrameType.GRAY, depth, PIXELS_PER_LINE, lineCountKnown ? LINES : -1);
+    FrameReader reader =
+        new FrameReader(
+            null,
+            parameters,
+            new ByteArrayInputStream(records),
+            true,
+            listener,
+            storagePolicy,
+            ScanBufferPool.none());
+    Frame frame = reader.readFrame();
+    int size = frame.getSizeInBytes();
+    frame.release();
+    return size;
+  }
+}
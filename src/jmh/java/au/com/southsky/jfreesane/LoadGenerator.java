@@ -0,0 +1,455 @@
+package au.com.southsky.jfreesane;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives concurrent scans through N {@link SaneSession SaneSessions} against an in-process
+ * {@link TestSaneServer}, for N in a list of session counts, to find how many simultaneous scans
+ * one JVM can sustain. Each session runs a mix of workloads: setting options, gray scans at depths
+ * 1, 8 and 16, color scans at depths 8 and 16, and batches from the document feeder.
+ *
+ * <p>
+ * For each session count it reports the scans per second, the aggregate image data rate, the
+ * percentiles of the time taken by each page, the rate at which the sessions' threads allocated
+ * memory and the peak number of client threads (the JVM's own threads and the fake daemon's are
+ * not counted, but the daemon's CPU time is spent in the same JVM). Run it with
+ * {@code ./gradlew loadTest}, passing {@code -PloadSessions=1,2,4}, {@code -PloadSeconds=10} and
+ * {@code -PloadWarmup=2} to override the defaults. Results are also appended to a CSV file for
+ * regression tracking.
+ *
+ * <p>
+ * Arguments are {@code name=value} pairs: {@code sessions}, {@code seconds}, {@code warmup},
+ * {@code width} and {@code height} (in pixels), {@code recordSize} (in bytes) and {@code csv} (the
+ * path of the CSV file).
+ */
+public final class LoadGenerator {
+  private static final String CSV_HEADER =
+      "sessions,scans_per_second,mb_per_second,p50_ms,p90_ms,p99_ms,max_ms,alloc_mb_per_second,"
+          + "client_threads";
+
+  /**
+   * What a session does in one operation. Sessions run the workloads in turn, each starting at a
+   * different one, so every workload is in progress at any time.
+   */
+  enum Workload {
+    OPTION_SETUP,
+    GRAY_1,
+    GRAY_8,
+    GRAY_16,
+    COLOR_8,
+    COLOR_16,
+    ADF_BATCH
+  }
+
+  private static final int ADF_PAGES = 3;
+
+  private final TestSaneServer server;
+  private final long warmupNanos;
+  private final long measurementNanos;
+  private final int baselineThreads;
+
+  private LoadGenerator(
+      TestSaneServer server, long warmupNanos, long measurementNanos, int baselineThreads) {
+    this.server = server;
+    this.warmupNanos = warmupNanos;
+    this.measurementNanos = measurementNanos;
+    this.baselineThreads = baselineThreads;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = Maps.newHashMap();
+    for (String arg : args) {
+      List<String> parts = Splitter.on('=').limit(2).splitToList(arg);
+      if (parts.size() != 2) {
+        throw new IllegalArgumentException("expected name=value, got " + arg);
+      }
+      options.put(parts.get(0), parts.get(1));
+    }
+
+    List<Integer> sessionCounts = Lists.newArrayList();
+    String sessions = get(options, "sessions", "1,2,4,8,16");
+    for (String count : Splitter.on(',').trimResults().split(sessions)) {
+      sessionCounts.add(Integer.parseInt(count));
+    }
+    long warmupSeconds = Long.parseLong(get(options, "warmup", "2"));
+    long seconds = Long.parseLong(get(options, "seconds", "10"));
+
+    // The JVM's own threads, such as the finalizer and signal dispatcher, are not client threads.
+    int baselineThreads = ThreadCounter.countThreads();
+    try (TestSaneServer server = new TestSaneServer()) {
+      // An A4 page at 150 dpi.
+      server.setImageSize(
+          Integer.parseInt(get(options, "width", "1240")),
+          Integer.parseInt(get(options, "height", "1754")));
+      server.setRecordSize(Integer.parseInt(get(options, "recordSize", "32768")));
+      server.setPageCount(ADF_PAGES);
+
+      LoadGenerator generator =
+          new LoadGenerator(
+              server,
+              TimeUnit.SECONDS.toNanos(warmupSeconds),
+              TimeUnit.SECONDS.toNanos(seconds),
+              baselineThreads);
+      System.out.printf(
+          "%8s %8s %9s %8s %8s %8s %8s %11s %8s%n",
+          "sessions", "scans/s", "MB/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "alloc MB/s",
+          "threads");
+      List<Result> results = Lists.newArrayList();
+      for (int sessionCount : sessionCounts) {
+        Result result = generator.run(sessionCount);
+        System.out.println(result.format());
+        results.add(result);
+      }
+
+      String csv = options.get("csv");
+      if (csv != null) {
+        writeCsv(csv, results);
+      }
+    }
+  }
+
+  private static String get(Map<String, String> options, String name, String defaultValue) {
+    String value = options.get(name);
+    return value == null ? defaultValue : value;
+  }
+
+  private static void writeCsv(String path, List<Result> results) throws IOException {
+    boolean exists = new File(path).exists();
+    try (Writer writer = new FileWriter(path, true)) {
+      if (!exists) {
+        writer.write(CSV_HEADER + "\n");
+      }
+      for (Result result : results) {
+        writer.write(result.toCsv() + "\n");
+      }
+    }
+  }
+
+  /**
+   * Runs the given number of sessions concurrently for the warmup and measurement periods, and
+   * returns what was measured.
+   */
+  private Result run(int sessions) throws Exception {
+    long start = System.nanoTime();
+    final long measurementStart = start + warmupNanos;
+    final long measurementEnd = measurementStart + measurementNanos;
+
+    ThreadCounter threadCounter = new ThreadCounter(baselineThreads);
+    ExecutorService executor = Executors.newFixedThreadPool(sessions);
+    try {
+      List<Future<SessionResult>> futures = Lists.newArrayList();
+      for (int i = 0; i < sessions; i++) {
+        futures.add(executor.submit(new Session(i, measurementStart, measurementEnd)));
+      }
+
+      List<SessionResult> sessionResults = Lists.newArrayList();
+      for (Future<SessionResult> future : futures) {
+        try {
+          sessionResults.add(future.get());
+        } catch (ExecutionException e) {
+          throw new IllegalStateException("a session failed", e.getCause());
+        }
+      }
+      return new Result(sessions, measurementNanos, sessionResults, threadCounter.stop());
+    } finally {
+      executor.shutdownNow();
+      // Otherwise the threads of this run would be counted in the next one.
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * One session, running workloads until the end of the measurement period.
+   */
+  private final class Session implements Callable<SessionResult> {
+    private final int index;
+    private final long measurementStart;
+    private final long measurementEnd;
+
+    Session(int index, long measurementStart, long measurementEnd) {
+      this.index = index;
+      this.measurementStart = measurementStart;
+      this.measurementEnd = measurementEnd;
+    }
+
+    @Override
+    public SessionResult call() throws Exception {
+      SessionResult result = new SessionResult();
+      Workload[] workloads = Workload.values();
+      try (SaneSession session = server.connect();
+          SaneDevice device = session.getDevice("test")) {
+        device.open();
+        long allocatedAtStart = -1;
+        for (int i = index; ; i++) {
+          long start = System.nanoTime();
+          if (start >= measurementEnd) {
+            break;
+          }
+          boolean measured = start >= measurementStart;
+          if (measured && allocatedAtStart < 0) {
+            allocatedAtStart = allocatedBytes();
+          }
+          perform(device, workloads[i % workloads.length], measured ? result : null);
+        }
+        if (allocatedAtStart >= 0) {
+          result.allocatedBytes = allocatedBytes() - allocatedAtStart;
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Performs one workload on the device, recording the pages in {@code result} if it is not
+     * {@code null}.
+     */
+    private void perform(SaneDevice device, Workload workload, SessionResult result)
+        throws IOException, SaneException, ExecutionException {
+      switch (workload) {
+        case OPTION_SETUP:
+          setUp(device, "Flatbed", "Gray", 8);
+          device.getOption("resolution").setIntegerValue(150);
+          device.getOption("resolution").getIntegerValue();
+          break;
+        case GRAY_1:
+          scan(device, "Gray", 1, result);
+          break;
+        case GRAY_8:
+          scan(device, "Gray", 8, result);
+          break;
+        case GRAY_16:
+          scan(device, "Gray", 16, result);
+          break;
+        case COLOR_8:
+          scan(device, "Color", 8, result);
+          break;
+        case COLOR_16:
+          scan(device, "Color", 16, result);
+          break;
+        case ADF_BATCH:
+          scanBatch(device, result);
+          break;
+        default:
+          throw new AssertionError(workload);
+      }
+    }
+
+    private void setUp(SaneDevice device, String source, String mode, int depth)
+        throws IOException, SaneException {
+      device.getOption("source").setStringValue(source);
+      device.getOption("mode").setStringValue(mode);
+      device.getOption("depth").setIntegerValue(depth);
+    }
+
+    private void scan(SaneDevice device, String mode, int depth, SessionResult result)
+        throws IOException, SaneException {
+      setUp(device, "Flatbed", mode, depth);
+      long start = System.nanoTime();
+      SaneRawImage image = device.acquireRaw();
+      long end = System.nanoTime();
+      if (result != null && end <= measurementEnd) {
+        result.addPage(end - start, sizeOf(image));
+      }
+      image.release();
+    }
+
+    private void scanBatch(SaneDevice device, final SessionResult result)
+        throws IOException, SaneException, ExecutionException {
+      setUp(device, "ADF", "Gray", 8);
+      final long[] pageStart = {System.nanoTime()};
+      device.acquireBatch(
+          new PageHandler() {
+            @Override
+            public void handlePage(SaneDevice device, int pageIndex, SaneRawImage page)
+                throws IOException {
+              long end = System.nanoTime();
+              if (result != null && end <= measurementEnd) {
+                result.addPage(end - pageStart[0], sizeOf(page));
+              }
+              page.release();
+              pageStart[0] = System.nanoTime();
+            }
+          },
+          MoreExecutors.directExecutor());
+    }
+  }
+
+  private static long sizeOf(SaneRawImage image) {
+    long size = 0;
+    for (int i = 0; i < image.getFrameCount(); i++) {
+      SaneParameters parameters = image.getParameters(i);
+      size += (long) parameters.getBytesPerLine() * parameters.getLineCount();
+    }
+    return size;
+  }
+
+  /**
+   * Returns the number of bytes allocated by the current thread so far, or -1 if the JVM does not
+   * tell.
+   */
+  private static long allocatedBytes() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads)
+          .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  /**
+   * Tracks the peak number of live threads other than the fake daemon's, less a baseline,
+   * sampling every 50 milliseconds.
+   */
+  private static final class ThreadCounter implements Runnable {
+    private final int baseline;
+    private final AtomicInteger peak = new AtomicInteger();
+    private final ScheduledExecutorService sampler =
+        Executors.newSingleThreadScheduledExecutor();
+
+    ThreadCounter(int baseline) {
+      this.baseline = baseline;
+      sampler.scheduleAtFixedRate(this, 0, 50, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the number of live threads other than the fake daemon's.
+     */
+    static int countThreads() {
+      ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+      int count = 0;
+      for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+        if (info != null && !info.getThreadName().startsWith("test-saned")) {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    @Override
+    public void run() {
+      // The sampler's own thread is not part of the load.
+      int count = countThreads() - 1 - baseline;
+      if (count > peak.get()) {
+        peak.set(count);
+      }
+    }
+
+    int stop() throws InterruptedException {
+      sampler.shutdown();
+      sampler.awaitTermination(1, TimeUnit.SECONDS);
+      return peak.get();
+    }
+  }
+
+  /**
+   * What one session measured. Only accessed by the session's thread until it is returned.
+   */
+  private static final class SessionResult {
+    final List<Long> pageNanos = Lists.newArrayList();
+    long bytes;
+    long allocatedBytes = -1;
+
+    void addPage(long nanos, long size) {
+      pageNanos.add(nanos);
+      bytes += size;
+    }
+  }
+
+  /**
+   * What was measured for one session count.
+   */
+  private static final class Result {
+    final int sessions;
+    final double scansPerSecond;
+    final double megabytesPerSecond;
+    final long[] sortedPageNanos;
+    final double allocatedMegabytesPerSecond;
+    final int clientThreads;
+
+    Result(int sessions, long nanos, List<SessionResult> sessionResults, int clientThreads) {
+      this.sessions = sessions;
+      this.clientThreads = clientThreads;
+
+      List<Long> pageNanos = Lists.newArrayList();
+      long bytes = 0;
+      long allocatedBytes = 0;
+      for (SessionResult result : sessionResults) {
+        pageNanos.addAll(result.pageNanos);
+        bytes += result.bytes;
+        if (allocatedBytes >= 0) {
+          allocatedBytes = result.allocatedBytes < 0 ? -1 : allocatedBytes + result.allocatedBytes;
+        }
+      }
+      sortedPageNanos = Longs.toArray(pageNanos);
+      Arrays.sort(sortedPageNanos);
+
+      double seconds = nanos / 1e9;
+      scansPerSecond = sortedPageNanos.length / seconds;
+      megabytesPerSecond = bytes / 1e6 / seconds;
+      allocatedMegabytesPerSecond =
+          allocatedBytes < 0 ? Double.NaN : allocatedBytes / 1e6 / seconds;
+    }
+
+    /**
+     * Returns the given percentile of the page times, in milliseconds.
+     */
+    double percentileMillis(double percentile) {
+      if (sortedPageNanos.length == 0) {
+        return Double.NaN;
+      }
+      int index = (int) Math.ceil(percentile / 100 * sortedPageNanos.length) - 1;
+      return sortedPageNanos[Math.max(index, 0)] / 1e6;
+    }
+
+    private List<Object> values() {
+      return ImmutableList.<Object>of(
+          sessions,
+          scansPerSecond,
+          megabytesPerSecond,
+          percentileMillis(50),
+          percentileMillis(90),
+          percentileMillis(99),
+          percentileMillis(100),
+          allocatedMegabytesPerSecond,
+          clientThreads);
+    }
+
+    String format() {
+      return String.format(
+          Locale.ROOT, "%8d %8.1f %9.1f %8.1f %8.1f %8.1f %8.1f %11.1f %8d", values().toArray());
+    }
+
+    String toCsv() {
+      List<String> fields = Lists.newArrayList();
+      for (Object value : values()) {
+        fields.add(
+            value instanceof Double ? String.format(Locale.ROOT, "%.3f", value) : value.toString());
+      }
+      return Joiner.on(',').join(fields);
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package au.com.southsky.jfreesane;
+
+import au.com.southsky.jfreesane.SaneOption.OptionUnits;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link SaneInputStream#readOptionDescriptor} for each kind of constraint. Backends
+ * commonly describe dozens of options, and the descriptors are read every time a device is opened
+ * or reloads its options.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class OptionDescriptorBenchmark {
+  @Param({"NO_CONSTRAINT", "RANGE_CONSTRAINT", "VALUE_LIST_CONSTRAINT", "STRING_LIST_CONSTRAINT"})
+  public OptionValueConstraintType constraintType;
+
+  private ByteArrayInputStream descriptor;
+
+  @Setup
+  public void setUp() throws IOException {
+    descriptor = new ByteArrayInputStream(encodeDescriptor(constraintType));
+  }
+
+  @Benchmark
+  public SaneOptionDescriptor readOptionDescriptor() throws IOException {
+    descriptor.reset();
+    return new SaneInputStream(null, descriptor).readOptionDescriptor();
+  }
+
+  /**
+   * Encodes a descriptor as {@code SANE_NET_GET_OPTION_DESCRIPTORS} sends it, with a constraint of
+   * the given type and of typical size.
+   */
+  private static byte[] encodeDescriptor(OptionValueConstraintType constraintType)
+      throws IOException {
+    OptionValueType valueType =
+        constraintType == OptionValueConstraintType.STRING_LIST_CONSTRAINT
+            ? OptionValueType.STRING
+            : OptionValueType.INT;
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(1); // pointer to the descriptor
+    writeString(out, "resolution");
+    writeString(out, "Scan resolution");
+    writeString(out, "Sets the resolution of the scanned image.");
+    out.writeInt(valueType.getWireValue());
+    out.writeInt(OptionUnits.UNIT_DPI.getWireValue());
+    out.writeInt(valueType == OptionValueType.STRING ? 32 : SaneWord.SIZE_IN_BYTES);
+    out.writeInt(
+        SaneEnums.wireValue(
+            EnumSet.of(OptionCapability.SOFT_SELECT, OptionCapability.SOFT_DETECT)));
+    out.writeInt(constraintType.getWireValue());
+
+    switch (constraintType) {
+      case NO_CONSTRAINT:
+        break;
+      case RANGE_CONSTRAINT:
+        out.writeInt(1); // pointer to the range
+        out.writeInt(75);
+        out.writeInt(1200);
+        out.writeInt(1);
+        break;
+      case VALUE_LIST_CONSTRAINT:
+        int[] values = {75, 100, 150, 200, 300, 400, 600, 1200};
+        out.writeInt(values.length + 1);
+        out.writeInt(values.length);
+        for (int value : values) {
+          out.writeInt(value);
+        }
+        break;
+      case STRING_LIST_CONSTRAINT:
+        String[] strings = {"Lineart", "Halftone", "Gray", "Color"};
+        out.writeInt(strings.length + 1);
+        for (String string : strings) {
+          writeString(out, string);
+        }
+        out.writeInt(0); // the null terminator
+        break;
+      default:
+        throw new AssertionError(constraintType);
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static void writeString(DataOutputStream out, String string) throws IOException {
+    byte[] bytes = string.getBytes("ISO-8859-1");
+    out.writeInt(bytes.length + 1);
+    out.write(bytes);
+    out.write(0);
+  }
+}
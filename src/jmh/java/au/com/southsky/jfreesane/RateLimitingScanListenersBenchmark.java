@@ -0,0 +1,57 @@
+package au.com.southsky.jfreesane;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost {@link RateLimitingScanListeners} adds to every record of a scan, compared to
+ * calling a listener directly. Almost all notifications are dropped by the rate limit, so this is
+ * the overhead of deciding to drop them.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class RateLimitingScanListenersBenchmark {
+  private final SaneDevice device = new SaneDevice(null, "test", "", "", "");
+  private ScanListener direct;
+  private ScanListener rateLimited;
+  private int totalBytesRead;
+  private int lastNotified;
+
+  @Setup
+  public void setUp() {
+    direct =
+        new ScanListenerAdapter() {
+          @Override
+          public void recordRead(SaneDevice device, int totalBytesRead, int imageSizeBytes) {
+            lastNotified = totalBytesRead;
+          }
+        };
+    rateLimited =
+        RateLimitingScanListeners.noMoreFrequentlyThan(direct, 100, TimeUnit.MILLISECONDS);
+  }
+
+  @Benchmark
+  public int direct() {
+    direct.recordRead(device, totalBytesRead++, -1);
+    return lastNotified;
+  }
+
+  @Benchmark
+  public int rateLimited() {
+    rateLimited.recordRead(device, totalBytesRead++, -1);
+    return lastNotified;
+  }
+}
@@ -0,0 +1,61 @@
+package au.com.southsky.jfreesane;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link SaneImage#toBufferedImage} for every depth and single-pass frame type, on an A4
+ * page at 150 dpi. Three-pass scans are converted as {@link FrameType#RGB RGB} frames once they
+ * are assembled, see {@link ThreePassAssemblyBenchmark}. The image is decoded from the same frame
+ * every time, as {@link SaneRawImage#toBufferedImage} would decode it once per scan.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SaneImageBenchmark {
+  private static final int PIXELS_PER_LINE = 1240;
+  private static final int LINES = 1754;
+
+  @Param({"GRAY", "RGB"})
+  public FrameType frameType;
+
+  @Param({"1", "8", "16"})
+  public int depth;
+
+  private Frame frame;
+
+  @Setup
+  public void setUp() {
+    SaneParameters parameters = BenchmarkData.parameters(frameType, depth, PIXELS_PER_LINE, LINES);
+    byte[] data = BenchmarkData.randomBytes(parameters.getBytesPerLine() * LINES);
+    if (depth == 16) {
+      short[] samples = new short[data.length / 2];
+      ByteBuffer.wrap(data).asShortBuffer().get(samples);
+      frame = new Frame(parameters, samples);
+    } else {
+      frame = new Frame(parameters, data);
+    }
+  }
+
+  @Benchmark
+  public BufferedImage toBufferedImage() {
+    SaneImage.Builder builder = new SaneImage.Builder();
+    builder.addFrame(frame);
+    return builder.build().toBufferedImage();
+  }
+}
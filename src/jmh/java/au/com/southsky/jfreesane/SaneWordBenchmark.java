@@ -0,0 +1,56 @@
+package au.com.southsky.jfreesane;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures encoding and decoding of {@link SaneWord}, which every request and reply goes through.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SaneWordBenchmark {
+  private int value = 0x12345678;
+  private double fixedValue = 1234.5678;
+  private final byte[] encoded = SaneWord.forInt(0x12345678).getValue();
+  private final ByteArrayInputStream stream = new ByteArrayInputStream(encoded);
+
+  @Benchmark
+  public SaneWord encodeInt() {
+    return SaneWord.forInt(value);
+  }
+
+  @Benchmark
+  public int decodeInt() {
+    return SaneWord.fromBytes(encoded).integerValue();
+  }
+
+  @Benchmark
+  public SaneWord encodeFixed() {
+    return SaneWord.forFixedPrecision(fixedValue);
+  }
+
+  @Benchmark
+  public double decodeFixed() {
+    return SaneWord.fromBytes(encoded).fixedPrecisionValue();
+  }
+
+  @Benchmark
+  public int readFromStream() throws IOException {
+    stream.reset();
+    return SaneWord.fromStream(stream).integerValue();
+  }
+}
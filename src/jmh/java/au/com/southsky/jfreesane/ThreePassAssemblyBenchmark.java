@@ -0,0 +1,63 @@
+package au.com.southsky.jfreesane;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures reading the {@link FrameType#RED RED}, {@link FrameType#GREEN GREEN} and
+ * {@link FrameType#BLUE BLUE} frames of a three-pass scan into one RGB frame with
+ * {@link ThreePassFrameAssembler}, on an A4 page at 150 dpi.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ThreePassAssemblyBenchmark {
+  private static final int PIXELS_PER_LINE = 1240;
+  private static final int LINES = 1754;
+  private static final FrameType[] CHANNELS = {FrameType.RED, FrameType.GREEN, FrameType.BLUE};
+
+  @Param({"1", "8", "16"})
+  public int depth;
+
+  private final byte[][] records = new byte[CHANNELS.length][];
+  private final ScanListener listener = new ScanListenerAdapter();
+
+  @Setup
+  public void setUp() throws IOException {
+    for (int i = 0; i < CHANNELS.length; i++) {
+      SaneParameters parameters =
+          BenchmarkData.parameters(CHANNELS[i], depth, PIXELS_PER_LINE, LINES);
+      byte[] image = BenchmarkData.randomBytes(parameters.getBytesPerLine() * LINES);
+      records[i] = BenchmarkData.recordStream(image, 32768);
+    }
+  }
+
+  @Benchmark
+  public Frame assemble() throws IOException, SaneException {
+    ThreePassFrameAssembler assembler = new ThreePassFrameAssembler();
+    for (int i = 0; i < CHANNELS.length; i++) {
+      SaneParameters parameters =
+          BenchmarkData.parameters(CHANNELS[i], depth, PIXELS_PER_LINE, LINES);
+      FrameReader reader =
+          new FrameReader(
+              null, parameters, new ByteArrayInputStream(records[i]), true, listener);
+      assembler.readChannel(parameters, reader);
+    }
+    return assembler.build();
+  }
+}
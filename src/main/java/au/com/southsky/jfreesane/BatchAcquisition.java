@@ -0,0 +1,140 @@
+package au.com.southsky.jfreesane;
+
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Acquires pages from a device until its document feeder runs out, handing each page to a
+ * {@link PageHandler} on an executor while the next page is being acquired.
+ */
+final class BatchAcquisition {
+  private static final Logger log = Logger.getLogger(BatchAcquisition.class.getName());
+
+  /**
+   * The number of acquired pages that may be waiting for (or undergoing) handling before the
+   * acquisition of the next page waits for a handler to finish.
+   */
+  static final int MAX_PENDING_PAGES = 4;
+
+  private final SaneDevice device;
+  private final PageHandler handler;
+  private final Executor executor;
+  private final ScanListener listener;
+
+  private final Semaphore pendingPages = new Semaphore(MAX_PENDING_PAGES);
+  private final AtomicBoolean handlerFailed = new AtomicBoolean();
+  private final List<FutureTask<Void>> handlerTasks = Lists.newArrayList();
+
+  BatchAcquisition(
+      SaneDevice device, PageHandler handler, Executor executor, ScanListener listener) {
+    this.device = device;
+    this.handler = handler;
+    this.executor = executor;
+    this.listener = listener;
+  }
+
+  /**
+   * Runs the batch and returns the number of pages acquired once all of them have been handled.
+   */
+  int run() throws IOException, SaneException, ExecutionException {
+    int pageCount = 0;
+    ExecutionException handlerFailure;
+    try {
+      while (!handlerFailed.get()) {
+        acquirePendingPagePermit();
+
+        SaneRawImage page;
+        try {
+          page = device.acquireRaw(listener);
+        } catch (SaneException e) {
+          pendingPages.release();
+          if (e.getStatus() == SaneStatus.STATUS_NO_DOCS) {
+            log.log(Level.FINE, "Batch finished after {0} pages", pageCount);
+            break;
+          }
+          throw e;
+        } catch (IOException | RuntimeException e) {
+          pendingPages.release();
+          throw e;
+        }
+
+        submit(pageCount++, page);
+      }
+    } finally {
+      handlerFailure = awaitHandlers();
+    }
+
+    if (handlerFailure != null) {
+      throw handlerFailure;
+    }
+    return pageCount;
+  }
+
+  private void acquirePendingPagePermit() throws InterruptedIOException {
+    try {
+      pendingPages.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting for a page handler");
+    }
+  }
+
+  private void submit(final int pageIndex, final SaneRawImage page) {
+    FutureTask<Void> task =
+        new FutureTask<Void>(
+            new Callable<Void>() {
+              @Override
+              public Void call() throws Exception {
+                try {
+                  handler.handlePage(device, pageIndex, page);
+                  return null;
+                } catch (Exception | Error e) {
+                  handlerFailed.set(true);
+                  throw e;
+                } finally {
+                  pendingPages.release();
+                }
+              }
+            });
+    handlerTasks.add(task);
+    try {
+      executor.execute(task);
+    } catch (RuntimeException e) {
+      handlerTasks.remove(task);
+      pendingPages.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Waits until every submitted page has been handled, so that no handler is still running when
+   * the batch returns. Returns the failure of the first handler that failed, or {@code null}.
+   */
+  private ExecutionException awaitHandlers() throws InterruptedIOException {
+    ExecutionException firstFailure = null;
+    for (FutureTask<Void> task : handlerTasks) {
+      try {
+        task.get();
+      } catch (ExecutionException e) {
+        if (firstFailure == null) {
+          firstFailure = e;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted while waiting for page handlers");
+      }
+    }
+    return firstFailure;
+  }
+}
@@ -0,0 +1,43 @@
+package au.com.southsky.jfreesane;
+
+import com.google.common.base.Preconditions;
+
+import java.awt.image.DataBuffer;
+import java.nio.ByteBuffer;
+
+/**
+ * A single-bank {@link DataBuffer} whose elements live in a {@link ByteBuffer}, which is typically
+ * a direct or memory-mapped buffer outside of the Java heap. Elements of type
+ * {@link DataBuffer#TYPE_USHORT} are read in the byte order of the given buffer.
+ */
+final class ByteBufferDataBuffer extends DataBuffer {
+  private final ByteBuffer buffer;
+
+  ByteBufferDataBuffer(int dataType, ByteBuffer buffer) {
+    super(dataType, buffer.remaining() / (DataBuffer.getDataTypeSize(dataType) / Byte.SIZE));
+    Preconditions.checkArgument(
+        dataType == TYPE_BYTE || dataType == TYPE_USHORT, "unsupported data type %s", dataType);
+    // slice() does not preserve the byte order
+    this.buffer = buffer.slice().order(buffer.order());
+  }
+
+  @Override
+  public int getElem(int bank, int i) {
+    Preconditions.checkElementIndex(bank, 1);
+    if (dataType == TYPE_BYTE) {
+      return buffer.get(i) & 0xff;
+    } else {
+      return buffer.getShort(i * 2) & 0xffff;
+    }
+  }
+
+  @Override
+  public void setElem(int bank, int i, int val) {
+    Preconditions.checkElementIndex(bank, 1);
+    if (dataType == TYPE_BYTE) {
+      buffer.put(i, (byte) val);
+    } else {
+      buffer.putShort(i * 2, (short) val);
+    }
+  }
+}
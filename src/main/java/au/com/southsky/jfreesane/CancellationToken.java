@@ -0,0 +1,164 @@
+package au.com.southsky.jfreesane;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Allows a scan to be aborted from any thread, either explicitly with {@link #cancel} or
+ * automatically once a deadline has passed. Pass the token to
+ * {@link SaneDevice#acquireImage(ScanListener, CancellationToken)} or
+ * {@link SaneDevice#acquireRaw(ScanListener, CancellationToken)}.
+ *
+ * <p>
+ * Cancelling a scan closes its data connection, which promptly unblocks a scan that is stuck
+ * waiting for image data. The scanning thread then sends {@code SANE_NET_CANCEL} to the device,
+ * releases the frames read so far, and throws a {@link SaneException} with status
+ * {@link SaneStatus#STATUS_CANCELLED}. A scan that is waiting for the SANE daemon to answer a
+ * control request (for example, while the scanner warms up) notices the cancellation once the
+ * answer arrives, or when the session's socket timeout expires.
+ *
+ * <p>
+ * A token stays cancelled once it has been cancelled. Threadsafe.
+ */
+public final class CancellationToken {
+  private static final Logger log = Logger.getLogger(CancellationToken.class.getName());
+
+  private final ScheduledFuture<?> deadlineTimer;
+
+  private boolean cancelled;
+  private boolean deadlineExceeded;
+  private Closeable connection;
+
+  private CancellationToken(long timeout, TimeUnit unit) {
+    if (unit == null) {
+      deadlineTimer = null;
+    } else {
+      deadlineTimer =
+          SaneTimer.EXECUTOR.schedule(
+              new Runnable() {
+                @Override
+                public void run() {
+                  cancel(true);
+                }
+              },
+              timeout,
+              unit);
+    }
+  }
+
+  /**
+   * Returns a new token that is only cancelled by calling {@link #cancel}.
+   */
+  public static CancellationToken create() {
+    return new CancellationToken(0, null);
+  }
+
+  /**
+   * Returns a new token that is cancelled automatically once {@code timeout} has elapsed, counting
+   * from now, or earlier by calling {@link #cancel}.
+   */
+  public static CancellationToken withDeadline(long timeout, TimeUnit unit) {
+    Preconditions.checkArgument(timeout >= 0, "timeout must not be negative");
+    return new CancellationToken(timeout, Preconditions.checkNotNull(unit));
+  }
+
+  /**
+   * Cancels the scan using this token, or the next scan to use it if none is in progress.
+   */
+  public void cancel() {
+    cancel(false);
+  }
+
+  public synchronized boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * Returns {@code true} if this token was cancelled because its deadline passed.
+   */
+  public synchronized boolean isDeadlineExceeded() {
+    return deadlineExceeded;
+  }
+
+  private void cancel(boolean dueToDeadline) {
+    Closeable connectionToClose;
+    synchronized (this) {
+      if (cancelled) {
+        return;
+      }
+      cancelled = true;
+      deadlineExceeded = dueToDeadline;
+      connectionToClose = connection;
+    }
+
+    if (deadlineTimer != null && !dueToDeadline) {
+      deadlineTimer.cancel(false);
+    }
+    if (connectionToClose != null) {
+      closeQuietly(connectionToClose);
+    }
+  }
+
+  /**
+   * Throws a {@link SaneException} with status {@link SaneStatus#STATUS_CANCELLED} if this token
+   * has been cancelled.
+   */
+  void checkNotCancelled() throws SaneException {
+    if (isCancelled()) {
+      throw new SaneException(SaneStatus.STATUS_CANCELLED);
+    }
+  }
+
+  /**
+   * Registers the data connection of the current frame, which is closed if this token is
+   * cancelled. If the token has already been cancelled, the connection is closed right away.
+   */
+  void attach(Closeable connection) {
+    synchronized (this) {
+      if (!cancelled) {
+        this.connection = connection;
+        return;
+      }
+    }
+    closeQuietly(connection);
+  }
+
+  /**
+   * Unregisters the data connection registered with {@link #attach}.
+   */
+  synchronized void detach() {
+    connection = null;
+  }
+
+  /**
+   * Stops the deadline timer of a token that will not be used again.
+   */
+  void dispose() {
+    if (deadlineTimer != null) {
+      deadlineTimer.cancel(false);
+    }
+  }
+
+  private static void closeQuietly(Closeable connection) {
+    try {
+      connection.close();
+    } catch (IOException e) {
+      log.log(Level.FINE, "could not close data connection of cancelled scan", e);
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    return MoreObjects.toStringHelper(CancellationToken.class)
+        .add("cancelled", cancelled)
+        .add("deadlineExceeded", deadlineExceeded)
+        .toString();
+  }
+}
@@ -1,5 +1,8 @@
 package au.com.southsky.jfreesane;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 /**
  * Represents one frame of a {@link SaneImage}. A SANE image is composed of one or more of these
  * frames.
@@ -7,20 +10,165 @@ package au.com.southsky.jfreesane;
 class Frame {
   private final SaneParameters parameters;
   private final byte[] data;
+  private final short[] samples;
+  private final int length;
+  private final ByteBuffer buffer;
+  private final OffHeapFrameBuffer storage;
+  private FrameStoragePolicy.Reservation reservation;
+  private ScanBufferPool bufferPool;
+  private boolean exposed;
 
   Frame(SaneParameters parameters, byte[] data) {
+    this(parameters, data, data.length);
+  }
+
+  /**
+   * Constructs a frame whose bytes are the first {@code length} bytes of {@code data}.
+   */
+  Frame(SaneParameters parameters, byte[] data, int length) {
     this.parameters = parameters;
     this.data = data;
+    this.samples = null;
+    this.length = length;
+    this.buffer = null;
+    this.storage = null;
+  }
+
+  /**
+   * Constructs a 16-bit frame whose samples have already been decoded into host order.
+   */
+  Frame(SaneParameters parameters, short[] samples) {
+    this(parameters, samples, samples.length);
+  }
+
+  /**
+   * Constructs a 16-bit frame whose samples are the first {@code length} elements of
+   * {@code samples}, already decoded into host order.
+   */
+  Frame(SaneParameters parameters, short[] samples, int length) {
+    this.parameters = parameters;
+    this.data = null;
+    this.samples = samples;
+    this.length = length;
+    this.buffer = null;
+    this.storage = null;
+  }
+
+  /**
+   * Constructs a frame whose bytes are kept off the Java heap by {@code storage}. 16-bit samples
+   * are in the byte order of {@code buffer}.
+   */
+  Frame(SaneParameters parameters, ByteBuffer buffer, OffHeapFrameBuffer storage) {
+    this.parameters = parameters;
+    this.data = null;
+    this.samples = null;
+    this.length = buffer.limit();
+    this.buffer = buffer;
+    this.storage = storage;
+  }
+
+  public SaneParameters getParameters() {
+    return parameters;
   }
 
   public FrameType getType() {
     return parameters.getFrameType();
   }
 
+  /**
+   * Returns the array holding the raw bytes of this frame, or {@code null} if this is a 16-bit
+   * frame (see {@link #getSamples}) or the frame is kept off the heap (see {@link #getBuffer}). The
+   * array may be longer than the frame, see {@link #getSizeInBytes}.
+   */
   public byte[] getData() {
     return data;
   }
 
+  /**
+   * Returns the array holding the samples of this 16-bit frame, or {@code null} if this frame has
+   * a smaller depth (see {@link #getData}) or the frame is kept off the heap (see
+   * {@link #getBuffer}). The array may be longer than the frame, see {@link #getSampleCount}.
+   */
+  public short[] getSamples() {
+    return samples;
+  }
+
+  /**
+   * Returns the off-heap buffer holding the bytes of this frame, or {@code null} if the frame is
+   * kept on the heap.
+   */
+  public ByteBuffer getBuffer() {
+    return buffer;
+  }
+
+  /**
+   * Records that the storage of this frame has been handed out to the application. It is then left
+   * to the garbage collector when the frame is released, instead of being freed or reused.
+   */
+  void markExposed() {
+    exposed = true;
+    if (storage != null) {
+      storage.markExposed();
+    }
+  }
+
+  /**
+   * Returns the number of bytes of image data in this frame.
+   */
+  public int getSizeInBytes() {
+    return samples != null ? length * (Short.SIZE / Byte.SIZE) : length;
+  }
+
+  /**
+   * Returns the number of samples in this 16-bit frame held on the heap.
+   */
+  public int getSampleCount() {
+    return length;
+  }
+
+  /**
+   * Associates this frame with the memory it was granted by a {@link FrameStoragePolicy}. The
+   * reservation is released together with the frame.
+   */
+  void setReservation(FrameStoragePolicy.Reservation reservation) {
+    this.reservation = reservation;
+    reservation.track(data != null ? data : samples != null ? samples : buffer);
+  }
+
+  /**
+   * Arranges for the array of this frame to be returned to {@code bufferPool} when the frame is
+   * released.
+   */
+  void setBufferPool(ScanBufferPool bufferPool) {
+    this.bufferPool = bufferPool;
+  }
+
+  /**
+   * Releases the off-heap storage of this frame, if any, returns its array to the buffer pool
+   * unless it has been exposed, and gives back its memory reservation. The frame must not be used
+   * afterwards.
+   */
+  void release() throws IOException {
+    try {
+      if (storage != null) {
+        storage.close();
+      }
+      // An exposed array may still be read by the application, so a later scan must not reuse it.
+      if (bufferPool != null && !exposed) {
+        if (data != null) {
+          bufferPool.recycle(data);
+        } else if (samples != null) {
+          bufferPool.recycle(samples);
+        }
+        bufferPool = null;
+      }
+    } finally {
+      if (reservation != null) {
+        reservation.release();
+      }
+    }
+  }
+
   public int getBytesPerLine() {
     return parameters.getBytesPerLine();
   }
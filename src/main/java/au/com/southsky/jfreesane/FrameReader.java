@@ -1,15 +1,17 @@
 package au.com.southsky.jfreesane;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.google.common.base.MoreObjects;
-import com.google.common.io.ByteStreams;
 import com.google.common.primitives.UnsignedInteger;
 
 /**
@@ -18,11 +20,19 @@ import com.google.common.primitives.UnsignedInteger;
 class FrameReader {
   private static final Logger log = Logger.getLogger(FrameReader.class.getName());
 
+  /**
+   * The initial capacity, in bytes, of frames whose size is not known in advance.
+   */
+  private static final int INITIAL_FRAME_CAPACITY = 1 << 16;
+
   private final SaneDevice device;
   private final SaneParameters parameters;
   private final InputStream underlyingStream;
   private final boolean bigEndian;
   private final ScanListener listener;
+  private final FrameStoragePolicy storagePolicy;
+  private final ScanBufferPool bufferPool;
+  private FrameStoragePolicy.Reservation reservation;
 
   FrameReader(
       SaneDevice device,
@@ -30,71 +40,403 @@ class FrameReader {
       InputStream underlyingStream,
       boolean bigEndian,
       ScanListener listener) {
+    this(
+        device,
+        parameters,
+        underlyingStream,
+        bigEndian,
+        listener,
+        FrameStoragePolicy.always(FrameStorage.HEAP),
+        ScanBufferPool.none());
+  }
+
+  FrameReader(
+      SaneDevice device,
+      SaneParameters parameters,
+      InputStream underlyingStream,
+      boolean bigEndian,
+      ScanListener listener,
+      FrameStoragePolicy storagePolicy,
+      ScanBufferPool bufferPool) {
     this.device = device;
     this.parameters = parameters;
     this.underlyingStream = underlyingStream;
     this.bigEndian = bigEndian;
     this.listener = listener;
+    this.storagePolicy = storagePolicy;
+    this.bufferPool = bufferPool;
+  }
+
+  /**
+   * Decides where the frame is kept and reserves memory for it, which {@link #readFrame} otherwise
+   * does itself. This may wait until the memory budget of the storage policy has room, or until
+   * {@code cancellation} is cancelled.
+   *
+   * @throws InterruptedIOException if the thread is interrupted or the scan is cancelled while
+   *     waiting for the memory budget
+   */
+  void reserve(CancellationToken cancellation) throws InterruptedIOException {
+    if (reservation == null) {
+      int imageSize = parameters.getBytesPerLine() * parameters.getLineCount();
+      reservation =
+          storagePolicy.reserve(imageSize > 0 ? imageSize : -1, bufferPool, cancellation);
+    }
   }
 
   public Frame readFrame() throws IOException, SaneException {
     log.log(Level.FINE, "Reading frame: {0}", this);
-    ByteArrayOutputStream bigArray;
     int imageSize = parameters.getBytesPerLine() * parameters.getLineCount();
 
     // For hand-held scanners where the line count is not known, report an image
     // size of -1 to the user.
     int reportedImageSize = parameters.getLineCount() == -1 ? -1 : imageSize;
 
-    if (parameters.getLineCount() > 0) {
-      bigArray = new ByteArrayOutputStream(imageSize);
-    } else {
-      bigArray = new ByteArrayOutputStream(256);
+    reserve(CancellationToken.create());
+    boolean success = false;
+    try {
+      Frame frame = readFrame(reservation, imageSize, reportedImageSize);
+      frame.setReservation(reservation);
+      success = true;
+      return frame;
+    } finally {
+      if (!success) {
+        reservation.release();
+      }
     }
+  }
 
-    int bytesRead;
-    int totalBytesRead = 0;
-    while ((bytesRead = readRecord(bigArray)) >= 0) {
-      totalBytesRead += bytesRead;
-      listener.recordRead(device, totalBytesRead, reportedImageSize);
+  private Frame readFrame(
+      FrameStoragePolicy.Reservation reservation, int imageSize, int reportedImageSize)
+      throws IOException, SaneException {
+    if (reservation.getStorage() != FrameStorage.HEAP) {
+      return readOffHeapFrame(reservation, imageSize, reportedImageSize);
     }
 
-    if (imageSize > 0 && bigArray.size() < imageSize) {
-      int difference = imageSize - bigArray.size();
-      log.log(
-          Level.WARNING,
-          "truncated read (got {0}, expected {1} bytes)",
-          new Object[] {bigArray.size(), imageSize});
-      bigArray.write(new byte[difference]);
-      log.log(Level.WARNING, "padded image with {0} null bytes", difference);
+    if (parameters.getDepthPerPixel() == 16) {
+      return readSixteenBitFrame(imageSize, reportedImageSize);
     }
 
-    // Now, if necessary, put the bytes in the correct order according
-    // to the stream's endianness
-    byte[] outputArray = bigArray.toByteArray();
-    if (parameters.getDepthPerPixel() == 16 && !bigEndian) {
-      if (outputArray.length % 2 != 0) {
+    byte[] data = bufferPool.borrowBytes(imageSize > 0 ? imageSize : INITIAL_FRAME_CAPACITY);
+    boolean success = false;
+    try {
+      DataInputStream inputStream = new DataInputStream(underlyingStream);
+      int length;
+      int size = 0;
+      while ((length = readRecordLength(inputStream)) >= 0) {
+        if (data.length - size < length) {
+          data = growBytes(data, size, size + length);
+        }
+
+        // The record goes straight to its final place in the frame, without an intermediate copy.
+        inputStream.readFully(data, size, length);
+        log.log(Level.FINE, "Read a record of {0} bytes", length);
+        size += length;
+        listener.recordRead(device, size, reportedImageSize);
+      }
+
+      if (imageSize > 0 && size < imageSize) {
+        logTruncatedRead(size, imageSize);
+        // Pooled arrays are not zeroed, so the padding must be written explicitly.
+        Arrays.fill(data, size, imageSize, (byte) 0);
+        log.log(Level.WARNING, "padded image with {0} null bytes", imageSize - size);
+        size = imageSize;
+      }
+
+      if (imageSize <= 0 && data.length != size) {
+        byte[] trimmed = Arrays.copyOf(data, size);
+        bufferPool.recycle(data);
+        data = trimmed;
+      }
+
+      updateLineCount(size);
+      Frame frame = new Frame(parameters, data, size);
+      frame.setBufferPool(bufferPool);
+      success = true;
+      return frame;
+    } finally {
+      if (!success) {
+        bufferPool.recycle(data);
+      }
+    }
+  }
+
+  /**
+   * Reads a 16-bit frame. Each record is decoded straight into the final {@code short[]} of
+   * samples, putting the samples in the correct order according to the stream's endianness in the
+   * same pass. A sample may be split across two records, in which case its first byte is carried
+   * over to the next record.
+   */
+  private Frame readSixteenBitFrame(int imageSize, int reportedImageSize)
+      throws IOException, SaneException {
+    int bytesPerSample = Short.SIZE / Byte.SIZE;
+    ByteOrder byteOrder = bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+    short[] samples =
+        bufferPool.borrowShorts(
+            (imageSize > 0 ? imageSize : INITIAL_FRAME_CAPACITY) / bytesPerSample);
+    int sampleCount = 0;
+
+    // Holds one record, preceded by the carried over byte (if any) of the previous record.
+    byte[] record = bufferPool.borrowBytes(0);
+    int carriedBytes = 0;
+
+    boolean success = false;
+    try {
+      DataInputStream inputStream = new DataInputStream(underlyingStream);
+      int length;
+      int totalBytesRead = 0;
+      while ((length = readRecordLength(inputStream)) >= 0) {
+        if (record.length < carriedBytes + length) {
+          record = growBytes(record, carriedBytes, carriedBytes + length);
+        }
+
+        inputStream.readFully(record, carriedBytes, length);
+        log.log(Level.FINE, "Read a record of {0} bytes", length);
+
+        int available = carriedBytes + length;
+        int recordSamples = available / bytesPerSample;
+        if (samples.length - sampleCount < recordSamples) {
+          samples = growShorts(samples, sampleCount, sampleCount + recordSamples);
+        }
+
+        ByteBuffer.wrap(record, 0, recordSamples * bytesPerSample)
+            .order(byteOrder)
+            .asShortBuffer()
+            .get(samples, sampleCount, recordSamples);
+        sampleCount += recordSamples;
+
+        carriedBytes = available - recordSamples * bytesPerSample;
+        if (carriedBytes > 0) {
+          record[0] = record[available - 1];
+        }
+
+        totalBytesRead += length;
+        listener.recordRead(device, totalBytesRead, reportedImageSize);
+      }
+
+      if (carriedBytes != 0) {
         throw new IOException("expected a multiple of 2 frame length");
       }
 
-      for (int i = 0; i < outputArray.length; i += 2) {
-        byte swap = outputArray[i];
-        outputArray[i] = outputArray[i + 1];
-        outputArray[i + 1] = swap;
+      int expectedSamples = imageSize / bytesPerSample;
+      if (imageSize > 0 && sampleCount < expectedSamples) {
+        logTruncatedRead(sampleCount * bytesPerSample, imageSize);
+        log.log(
+            Level.WARNING,
+            "padded image with {0} null bytes",
+            (expectedSamples - sampleCount) * bytesPerSample);
+        Arrays.fill(samples, sampleCount, expectedSamples, (short) 0);
+        sampleCount = expectedSamples;
+      }
+
+      if (imageSize <= 0 && samples.length != sampleCount) {
+        short[] trimmed = Arrays.copyOf(samples, sampleCount);
+        bufferPool.recycle(samples);
+        samples = trimmed;
+      }
+
+      updateLineCount(sampleCount * bytesPerSample);
+      Frame frame = new Frame(parameters, samples, sampleCount);
+      frame.setBufferPool(bufferPool);
+      success = true;
+      return frame;
+    } finally {
+      bufferPool.recycle(record);
+      if (!success) {
+        bufferPool.recycle(samples);
       }
     }
+  }
+
+  /**
+   * Reads a frame into off-heap storage. Records are appended to the storage as they arrive. 16-bit
+   * samples are left in the stream's byte order, which is recorded in the resulting buffer.
+   */
+  private Frame readOffHeapFrame(
+      FrameStoragePolicy.Reservation reservation, int imageSize, int reportedImageSize)
+      throws IOException, SaneException {
+    OffHeapFrameBuffer frameBuffer =
+        OffHeapFrameBuffer.allocate(
+            reservation.getStorage(),
+            imageSize > 0 ? imageSize : INITIAL_FRAME_CAPACITY,
+            reservation.getSpoolDirectory());
+    byte[] record = bufferPool.borrowBytes(0);
+    boolean success = false;
+
+    try {
+      DataInputStream inputStream = new DataInputStream(underlyingStream);
+      int length;
+      int totalBytesRead = 0;
+      while ((length = readRecordLength(inputStream)) >= 0) {
+        if (record.length < length) {
+          bufferPool.recycle(record);
+          record = bufferPool.borrowBytes(length);
+        }
 
+        inputStream.readFully(record, 0, length);
+        log.log(Level.FINE, "Read a record of {0} bytes", length);
+        frameBuffer.write(record, 0, length);
+
+        totalBytesRead += length;
+        listener.recordRead(device, totalBytesRead, reportedImageSize);
+      }
+
+      if (imageSize > 0 && frameBuffer.size() < imageSize) {
+        logTruncatedRead(frameBuffer.size(), imageSize);
+        log.log(
+            Level.WARNING, "padded image with {0} null bytes", imageSize - frameBuffer.size());
+        frameBuffer.padTo(imageSize);
+      }
+
+      if (parameters.getDepthPerPixel() == 16 && frameBuffer.size() % 2 != 0) {
+        throw new IOException("expected a multiple of 2 frame length");
+      }
+
+      updateLineCount(frameBuffer.size());
+      ByteOrder byteOrder = bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+      Frame frame = new Frame(parameters, frameBuffer.finish(byteOrder), frameBuffer);
+      success = true;
+      return frame;
+    } finally {
+      bufferPool.recycle(record);
+      if (!success) {
+        frameBuffer.close();
+      }
+    }
+  }
+
+  /**
+   * Reads a {@link FrameType#RED RED}, {@link FrameType#GREEN GREEN} or
+   * {@link FrameType#BLUE BLUE} frame of a three-pass scan, writing each record straight into the
+   * frame's channel slot of the interleaved buffer held by {@code assembler}. 16-bit samples are
+   * put in the correct order according to the stream's endianness in the same pass.
+   *
+   * @return the number of bytes (for 1-bit and 8-bit frames) or samples (for 16-bit frames) read
+   */
+  int readChannel(ThreePassFrameAssembler assembler) throws IOException, SaneException {
+    log.log(Level.FINE, "Reading channel: {0}", this);
+    int imageSize = parameters.getBytesPerLine() * parameters.getLineCount();
+    int reportedImageSize = parameters.getLineCount() == -1 ? -1 : imageSize;
+
+    int stride = ThreePassFrameAssembler.CHANNEL_COUNT;
+    int channel = ThreePassFrameAssembler.channelOf(parameters.getFrameType());
+    int bytesPerUnit = parameters.getDepthPerPixel() == 16 ? Short.SIZE / Byte.SIZE : 1;
+    ByteOrder byteOrder = bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+    int unitCount = 0;
+
+    byte[] record = bufferPool.borrowBytes(0);
+    int carriedBytes = 0;
+
+    try {
+      DataInputStream inputStream = new DataInputStream(underlyingStream);
+      int length;
+      int totalBytesRead = 0;
+      while ((length = readRecordLength(inputStream)) >= 0) {
+        if (record.length < carriedBytes + length) {
+          record = growBytes(record, carriedBytes, carriedBytes + length);
+        }
+
+        inputStream.readFully(record, carriedBytes, length);
+        log.log(Level.FINE, "Read a record of {0} bytes", length);
+
+        int available = carriedBytes + length;
+        int recordUnits = available / bytesPerUnit;
+        assembler.ensureChannelCapacity(unitCount + recordUnits);
+
+        int destination = unitCount * stride + channel;
+        if (bytesPerUnit == 1) {
+          byte[] data = assembler.getData();
+          for (int i = 0; i < recordUnits; i++, destination += stride) {
+            data[destination] = record[i];
+          }
+        } else {
+          short[] samples = assembler.getSamples();
+          ShortBuffer recordSamples =
+              ByteBuffer.wrap(record, 0, recordUnits * bytesPerUnit)
+                  .order(byteOrder)
+                  .asShortBuffer();
+          for (int i = 0; i < recordUnits; i++, destination += stride) {
+            samples[destination] = recordSamples.get(i);
+          }
+        }
+        unitCount += recordUnits;
+
+        carriedBytes = available - recordUnits * bytesPerUnit;
+        if (carriedBytes > 0) {
+          record[0] = record[available - 1];
+        }
+
+        totalBytesRead += length;
+        listener.recordRead(device, totalBytesRead, reportedImageSize);
+      }
+
+      if (carriedBytes != 0) {
+        throw new IOException("expected a multiple of 2 frame length");
+      }
+
+      int expectedUnits = imageSize / bytesPerUnit;
+      if (imageSize > 0 && unitCount < expectedUnits) {
+        logTruncatedRead(unitCount * bytesPerUnit, imageSize);
+        log.log(
+            Level.WARNING,
+            "padded image with {0} null bytes",
+            (expectedUnits - unitCount) * bytesPerUnit);
+        assembler.ensureChannelCapacity(expectedUnits);
+        unitCount = expectedUnits;
+      }
+
+      updateLineCount(unitCount * bytesPerUnit);
+      return unitCount;
+    } finally {
+      bufferPool.recycle(record);
+    }
+  }
+
+  /**
+   * Returns a pooled array of at least {@code minLength} bytes that starts with the first
+   * {@code size} bytes of {@code array}, which is returned to the pool.
+   */
+  private byte[] growBytes(byte[] array, int size, int minLength) {
+    byte[] grown = bufferPool.borrowBytes(Math.max(minLength, doubledLength(array.length)));
+    System.arraycopy(array, 0, grown, 0, size);
+    bufferPool.recycle(array);
+    return grown;
+  }
+
+  /**
+   * Returns a pooled array of at least {@code minLength} samples that starts with the first
+   * {@code size} samples of {@code array}, which is returned to the pool.
+   */
+  private short[] growShorts(short[] array, int size, int minLength) {
+    short[] grown = bufferPool.borrowShorts(Math.max(minLength, doubledLength(array.length)));
+    System.arraycopy(array, 0, grown, 0, size);
+    bufferPool.recycle(array);
+    return grown;
+  }
+
+  private static int doubledLength(int length) {
+    return (int) Math.min(Integer.MAX_VALUE, 2L * length);
+  }
+
+  private void logTruncatedRead(int bytesRead, int imageSize) {
+    log.log(
+        Level.WARNING,
+        "truncated read (got {0}, expected {1} bytes)",
+        new Object[] {bytesRead, imageSize});
+  }
+
+  private void updateLineCount(int frameSize) {
     if (parameters.getLineCount() <= 0) {
       // register the real height
-      parameters.setLineCount(outputArray.length / parameters.getBytesPerLine());
+      parameters.setLineCount(frameSize / parameters.getBytesPerLine());
       log.log(Level.FINE, "Detected new frame line count: {0}", parameters.getLineCount());
     }
-
-    return new Frame(parameters, outputArray);
   }
 
-  private int readRecord(OutputStream destination) throws IOException, SaneException {
-    DataInputStream inputStream = new DataInputStream(underlyingStream);
+  /**
+   * Reads the length of the next record from the stream, or returns {@code -1} if the end of the
+   * records has been reached.
+   */
+  private int readRecordLength(DataInputStream inputStream) throws IOException, SaneException {
     int length = inputStream.readInt();
 
     if (length == 0xffffffff) {
@@ -120,15 +462,15 @@ class FrameReader {
       throw new IllegalStateException("TODO: support massive records");
     }
 
-    int bytesRead = (int) ByteStreams.copy(ByteStreams.limit(inputStream, length), destination);
-    log.log(Level.FINE, "Read a record of {0} bytes", bytesRead);
-    return bytesRead;
+    return length;
   }
 
   @Override
   public String toString() {
     return MoreObjects.toStringHelper(FrameReader.class)
         .add("isBigEndian", bigEndian)
+        .add("storagePolicy", storagePolicy)
+        .add("bufferPool", bufferPool)
         .add("parameters", parameters)
         .toString();
   }
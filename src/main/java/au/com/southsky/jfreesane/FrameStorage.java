@@ -0,0 +1,25 @@
+package au.com.southsky.jfreesane;
+
+/**
+ * Determines where JFreeSane keeps the pixel data of the frames it acquires. See
+ * {@link SaneSession#setFrameStorage} and {@link FrameStoragePolicy}.
+ */
+public enum FrameStorage {
+  /**
+   * Pixel data is kept in arrays on the Java heap. Images acquired this way use the standard
+   * {@link java.awt.image.BufferedImage} types where possible, which Java2D and ImageIO handle most
+   * efficiently. This is the default.
+   */
+  HEAP,
+
+  /**
+   * Pixel data is kept in direct {@link java.nio.ByteBuffer byte buffers} outside of the Java heap.
+   */
+  DIRECT,
+
+  /**
+   * Pixel data is written to a temporary file as it arrives and read back through a memory mapping.
+   * This allows acquiring images that are much larger than the available memory.
+   */
+  MAPPED_FILE
+}
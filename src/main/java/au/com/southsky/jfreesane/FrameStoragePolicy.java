@@ -0,0 +1,243 @@
+package au.com.southsky.jfreesane;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.InterruptedIOException;
+
+/**
+ * Decides where the pixel data of each acquired frame is kept. Frames up to a configurable size
+ * are kept in memory, larger frames are spooled to a memory-mapped temporary file as their records
+ * arrive. Optionally, a {@link ScanMemoryBudget} bounds the total size of the frames kept in
+ * memory: once it is used up, further frames are spooled to disk or wait for memory to be released,
+ * depending on the budget.
+ *
+ * <p>
+ * A policy may be shared by any number of sessions (see {@link SaneSession#setFrameStoragePolicy}),
+ * in which case its memory budget applies to all of them together. For example, the following
+ * policy keeps frames of up to 32 MB on the heap, but never more than 512 MB in total:
+ *
+ * <pre>
+ *   FrameStoragePolicy policy = FrameStoragePolicy.builder()
+ *       .setMaxInMemoryFrameSize(32 &lt;&lt; 20)
+ *       .setMemoryBudget(ScanMemoryBudget.spilling(512 &lt;&lt; 20))
+ *       .build();
+ *   session.setFrameStoragePolicy(policy);
+ * </pre>
+ *
+ * <p>
+ * Threadsafe.
+ */
+public final class FrameStoragePolicy {
+  private final FrameStorage inMemoryStorage;
+  private final long maxInMemoryFrameSize;
+  private final ScanMemoryBudget memoryBudget;
+  private final File spoolDirectory;
+
+  private FrameStoragePolicy(Builder builder) {
+    this.inMemoryStorage = builder.inMemoryStorage;
+    this.maxInMemoryFrameSize = builder.maxInMemoryFrameSize;
+    this.memoryBudget = builder.memoryBudget;
+    this.spoolDirectory = builder.spoolDirectory;
+  }
+
+  /**
+   * Returns a policy that keeps every frame in the given storage, regardless of its size.
+   */
+  public static FrameStoragePolicy always(FrameStorage storage) {
+    Preconditions.checkNotNull(storage);
+    if (storage == FrameStorage.MAPPED_FILE) {
+      return builder().setMaxInMemoryFrameSize(-1).build();
+    }
+    return builder().setInMemoryStorage(storage).build();
+  }
+
+  /**
+   * Returns a new builder. By default, the builder yields a policy that keeps every frame on the
+   * heap.
+   */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Returns the memory budget of this policy, or {@code null} if it has none.
+   */
+  public ScanMemoryBudget getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  /**
+   * Decides where a frame of the given size (or {@code -1} if its size is not known in advance) is
+   * to be kept. If the frame is kept in memory, its size is reserved against the memory budget
+   * until the returned reservation is released.
+   *
+   * @throws InterruptedIOException if the thread is interrupted while waiting for the memory budget
+   */
+  Reservation reserve(long frameSize) throws InterruptedIOException {
+    return reserve(frameSize, ScanBufferPool.none());
+  }
+
+  /**
+   * Like {@link #reserve(long)}, but if the frame is kept on the heap, reserves the size of the
+   * array {@code bufferPool} will actually hand out for it, which may be rounded up.
+   *
+   * @throws InterruptedIOException if the thread is interrupted while waiting for the memory budget
+   */
+  Reservation reserve(long frameSize, ScanBufferPool bufferPool) throws InterruptedIOException {
+    return reserve(frameSize, bufferPool, CancellationToken.create());
+  }
+
+  /**
+   * Like {@link #reserve(long, ScanBufferPool)}, but stops waiting for the memory budget once
+   * {@code cancellation} is cancelled.
+   *
+   * @throws InterruptedIOException if the thread is interrupted or the scan is cancelled while
+   *     waiting for the memory budget
+   */
+  Reservation reserve(
+      long frameSize, ScanBufferPool bufferPool, CancellationToken cancellation)
+      throws InterruptedIOException {
+    // Frames of unknown size could be arbitrarily large, so they are only kept in memory if
+    // there is no limit at all.
+    boolean unlimited = maxInMemoryFrameSize == Long.MAX_VALUE && memoryBudget == null;
+    if (unlimited) {
+      return new Reservation(inMemoryStorage, null);
+    }
+
+    if (frameSize < 0 || frameSize > maxInMemoryFrameSize) {
+      return new Reservation(FrameStorage.MAPPED_FILE, null);
+    }
+
+    if (memoryBudget == null) {
+      return new Reservation(inMemoryStorage, null);
+    }
+
+    long allocatedSize =
+        inMemoryStorage == FrameStorage.HEAP ? bufferPool.getAllocatedBytes(frameSize) : frameSize;
+    ScanMemoryBudget.Allocation allocation = memoryBudget.allocate(allocatedSize, cancellation);
+    if (allocation == null) {
+      return new Reservation(FrameStorage.MAPPED_FILE, null);
+    }
+    return new Reservation(inMemoryStorage, allocation);
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(FrameStoragePolicy.class)
+        .add("inMemoryStorage", inMemoryStorage)
+        .add("maxInMemoryFrameSize", maxInMemoryFrameSize)
+        .add("memoryBudget", memoryBudget)
+        .add("spoolDirectory", spoolDirectory)
+        .toString();
+  }
+
+  /**
+   * The decision made by {@link FrameStoragePolicy#reserve} for a single frame, together with the
+   * memory reserved for it, if any.
+   */
+  final class Reservation implements Closeable {
+    private final FrameStorage storage;
+    private final ScanMemoryBudget.Allocation allocation;
+
+    private Reservation(FrameStorage storage, ScanMemoryBudget.Allocation allocation) {
+      this.storage = storage;
+      this.allocation = allocation;
+    }
+
+    FrameStorage getStorage() {
+      return storage;
+    }
+
+    File getSpoolDirectory() {
+      return spoolDirectory;
+    }
+
+    /**
+     * Arranges for this reservation to be released once {@code pixelData} is garbage collected.
+     */
+    void track(Object pixelData) {
+      if (allocation != null) {
+        allocation.track(pixelData);
+      }
+    }
+
+    void release() {
+      if (allocation != null) {
+        allocation.release();
+      }
+    }
+
+    @Override
+    public void close() {
+      release();
+    }
+  }
+
+  /**
+   * Builds instances of {@link FrameStoragePolicy}.
+   */
+  public static final class Builder {
+    private FrameStorage inMemoryStorage = FrameStorage.HEAP;
+    private long maxInMemoryFrameSize = Long.MAX_VALUE;
+    private ScanMemoryBudget memoryBudget = null;
+    private File spoolDirectory = null;
+
+    private Builder() {}
+
+    /**
+     * Sets where frames that are kept in memory are stored, either {@link FrameStorage#HEAP} (the
+     * default) or {@link FrameStorage#DIRECT}.
+     */
+    public Builder setInMemoryStorage(FrameStorage inMemoryStorage) {
+      Preconditions.checkArgument(
+          inMemoryStorage != FrameStorage.MAPPED_FILE, "MAPPED_FILE is not an in-memory storage");
+      this.inMemoryStorage = Preconditions.checkNotNull(inMemoryStorage);
+      return this;
+    }
+
+    /**
+     * Sets the size in bytes of the largest frame that may be kept in memory. Larger frames, and
+     * frames whose size is not known in advance, are spooled to disk. A negative size spools every
+     * frame to disk. By default, there is no limit.
+     */
+    public Builder setMaxInMemoryFrameSize(long maxInMemoryFrameSize) {
+      this.maxInMemoryFrameSize = maxInMemoryFrameSize;
+      return this;
+    }
+
+    /**
+     * Sets the budget that bounds the total size of frames kept in memory. The same budget may be
+     * used by several policies. Frames whose size is not known in advance are spooled to disk if a
+     * budget is set. By default, there is no budget.
+     */
+    public Builder setMemoryBudget(ScanMemoryBudget memoryBudget) {
+      this.memoryBudget = memoryBudget;
+      return this;
+    }
+
+    /**
+     * Sets the total number of bytes that frames kept in memory under this policy may occupy. Once
+     * this budget is used up, frames are spooled to disk. This is equivalent to
+     * {@code setMemoryBudget(ScanMemoryBudget.spilling(memoryBudget))}.
+     */
+    public Builder setMemoryBudget(long memoryBudget) {
+      return setMemoryBudget(ScanMemoryBudget.spilling(memoryBudget));
+    }
+
+    /**
+     * Sets the directory in which spool files are created. By default, they are created in the
+     * directory given by the {@code java.io.tmpdir} system property.
+     */
+    public Builder setSpoolDirectory(File spoolDirectory) {
+      this.spoolDirectory = spoolDirectory;
+      return this;
+    }
+
+    public FrameStoragePolicy build() {
+      return new FrameStoragePolicy(this);
+    }
+  }
+}
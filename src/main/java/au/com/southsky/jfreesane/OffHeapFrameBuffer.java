@@ -0,0 +1,228 @@
+package au.com.southsky.jfreesane;
+
+import com.google.common.base.Preconditions;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds the pixel data of one frame outside of the Java heap, either in a direct
+ * {@link ByteBuffer} or in a memory-mapped temporary file. Records are appended with
+ * {@link #write} as they arrive, and {@link #finish} returns the completed buffer.
+ *
+ * <p>
+ * The buffer grows as needed if the final size of the frame is not known in advance. Closing a
+ * frame buffer releases its storage immediately, unless the buffer has been
+ * {@link #markExposed exposed}: views of it may still be in use, so its memory is then left to the
+ * garbage collector.
+ */
+abstract class OffHeapFrameBuffer implements Closeable {
+  private static final Logger log = Logger.getLogger(OffHeapFrameBuffer.class.getName());
+
+  protected ByteBuffer buffer;
+  protected boolean exposed;
+
+  /**
+   * Returns a new frame buffer of the given kind with room for at least {@code capacity} bytes.
+   * Spool files are created in {@code spoolDirectory}, or in the default temporary-file directory
+   * if it is {@code null}.
+   */
+  static OffHeapFrameBuffer allocate(FrameStorage storage, int capacity, File spoolDirectory)
+      throws IOException {
+    switch (storage) {
+      case DIRECT:
+        return new Direct(capacity);
+      case MAPPED_FILE:
+        return new MappedFile(capacity, spoolDirectory);
+      default:
+        throw new IllegalArgumentException(storage + " is not an off-heap frame storage");
+    }
+  }
+
+  /**
+   * Records that views of the completed buffer have been handed out, so that closing this frame
+   * buffer must not free the memory they refer to.
+   */
+  void markExposed() {
+    exposed = true;
+  }
+
+  /**
+   * Returns the number of bytes written so far.
+   */
+  int size() {
+    return buffer.position();
+  }
+
+  /**
+   * Appends the given bytes, growing the buffer if necessary.
+   */
+  void write(byte[] source, int offset, int length) throws IOException {
+    ensureCapacity(buffer.position() + length);
+    buffer.put(source, offset, length);
+  }
+
+  /**
+   * Extends the frame with zero bytes until it is {@code size} bytes long.
+   */
+  void padTo(int size) throws IOException {
+    if (size > buffer.position()) {
+      ensureCapacity(size);
+      // Both newly allocated direct buffers and newly mapped file regions are zero-filled.
+      buffer.position(size);
+    }
+  }
+
+  /**
+   * Returns the completed frame, starting at position 0 and limited to the bytes written so far.
+   * Multi-byte samples in the returned buffer are in the given byte order.
+   */
+  ByteBuffer finish(ByteOrder byteOrder) {
+    buffer.flip();
+    buffer.order(byteOrder);
+    return buffer;
+  }
+
+  private void ensureCapacity(int capacity) throws IOException {
+    if (capacity > buffer.capacity()) {
+      int newCapacity =
+          (int) Math.min(Integer.MAX_VALUE, Math.max(capacity, 2L * buffer.capacity()));
+      int position = buffer.position();
+      buffer = grow(newCapacity);
+      buffer.position(position);
+    }
+  }
+
+  /**
+   * Returns a buffer of the given capacity whose first {@code buffer.position()} bytes are the
+   * bytes already written.
+   */
+  protected abstract ByteBuffer grow(int newCapacity) throws IOException;
+
+  private static final class Direct extends OffHeapFrameBuffer {
+    Direct(int capacity) {
+      buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    @Override
+    protected ByteBuffer grow(int newCapacity) {
+      ByteBuffer oldBuffer = buffer;
+      ByteBuffer newBuffer = ByteBuffer.allocateDirect(newCapacity);
+      oldBuffer.flip();
+      newBuffer.put(oldBuffer);
+      freeDirectBuffer(oldBuffer);
+      return newBuffer;
+    }
+
+    @Override
+    public void close() {
+      if (buffer != null) {
+        if (!exposed) {
+          freeDirectBuffer(buffer);
+        }
+        buffer = null;
+      }
+    }
+  }
+
+  private static final class MappedFile extends OffHeapFrameBuffer {
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+
+    MappedFile(int capacity, File spoolDirectory) throws IOException {
+      file = File.createTempFile("jfreesane", ".frame", spoolDirectory);
+      randomAccessFile = new RandomAccessFile(file, "rw");
+      try {
+        buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+      } catch (IOException e) {
+        close();
+        throw e;
+      }
+    }
+
+    @Override
+    protected ByteBuffer grow(int newCapacity) throws IOException {
+      // The bytes already written live in the file, so there is nothing to copy.
+      ByteBuffer oldBuffer = buffer;
+      ByteBuffer newBuffer =
+          randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, newCapacity);
+      freeDirectBuffer(oldBuffer);
+      return newBuffer;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        randomAccessFile.close();
+      } finally {
+        if (buffer != null) {
+          if (!exposed) {
+            freeDirectBuffer(buffer);
+          }
+          buffer = null;
+        }
+        if (!file.delete() && file.exists()) {
+          if (exposed) {
+            // Some platforms cannot delete a file while it is mapped.
+            file.deleteOnExit();
+          } else {
+            log.log(Level.WARNING, "could not delete frame spool file {0}", file);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Releases the memory (or mapping) of the given direct buffer right away instead of waiting for
+   * the garbage collector. If the running JVM does not allow this, the buffer is left to the
+   * garbage collector.
+   */
+  static void freeDirectBuffer(ByteBuffer buffer) {
+    Preconditions.checkArgument(buffer.isDirect(), "not a direct buffer");
+    if (Cleaner.INVOKE_CLEANER == null) {
+      return;
+    }
+
+    try {
+      Cleaner.INVOKE_CLEANER.invoke(Cleaner.UNSAFE, buffer);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      log.log(Level.FINE, "could not free direct buffer", e);
+    }
+  }
+
+  /**
+   * Looks up {@code sun.misc.Unsafe.invokeCleaner}, which is available from Java 9 onwards.
+   */
+  private static final class Cleaner {
+    static final Object UNSAFE;
+    static final Method INVOKE_CLEANER;
+
+    static {
+      Object unsafe = null;
+      Method invokeCleaner = null;
+      try {
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        unsafe = theUnsafe.get(null);
+        invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        log.log(Level.FINE, "direct buffers will be freed by the garbage collector", e);
+        unsafe = null;
+        invokeCleaner = null;
+      }
+      UNSAFE = unsafe;
+      INVOKE_CLEANER = invokeCleaner;
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package au.com.southsky.jfreesane;
+
+/**
+ * Receives the pages of a batch acquired with {@link SaneDevice#acquireBatch}. Pages are handed to
+ * the handler on the batch's executor while the device goes on to acquire the next page, so this is
+ * the place to convert, encode or store each page.
+ *
+ * <p>
+ * Depending on the executor, several pages may be handled concurrently, so implementations must be
+ * threadsafe unless the executor runs one task at a time.
+ */
+public interface PageHandler {
+  /**
+   * Called once for each page of the batch.
+   *
+   * @param device the device that acquired the page
+   * @param pageIndex the zero-based index of the page in the batch
+   * @param page the acquired page. The handler may call {@link SaneRawImage#release} once it no
+   * longer needs the page
+   * @throws Exception if the page could not be handled. No further pages are acquired, and the
+   * exception is rethrown by {@link SaneDevice#acquireBatch}
+   */
+  void handlePage(SaneDevice device, int pageIndex, SaneRawImage page) throws Exception;
+}
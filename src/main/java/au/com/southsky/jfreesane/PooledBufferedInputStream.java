@@ -0,0 +1,31 @@
+package au.com.southsky.jfreesane;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A {@link BufferedInputStream} whose buffer is borrowed from a {@link ScanBufferPool} and
+ * returned to it when the stream is closed.
+ */
+class PooledBufferedInputStream extends BufferedInputStream {
+  private final ScanBufferPool bufferPool;
+
+  PooledBufferedInputStream(InputStream in, ScanBufferPool bufferPool, int size) {
+    super(in, 1);
+    this.bufferPool = bufferPool;
+    this.buf = bufferPool.borrowBytes(size);
+  }
+
+  @Override
+  public void close() throws IOException {
+    byte[] buffer = buf;
+    try {
+      super.close();
+    } finally {
+      if (buffer != null) {
+        bufferPool.recycle(buffer);
+      }
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package au.com.southsky.jfreesane;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how a {@link SaneSession} re-establishes its control connection after it breaks, for
+ * example because the SANE daemon was restarted. See {@link SaneSession#setReconnectPolicy}.
+ *
+ * <p>
+ * The first attempt to reconnect is made right away. If it fails, further attempts are made after
+ * a delay that starts at the initial backoff and doubles with every attempt, up to the maximum
+ * backoff.
+ */
+public final class ReconnectPolicy {
+  private final int maxAttempts;
+  private final long initialBackoffNanos;
+  private final long maxBackoffNanos;
+
+  private ReconnectPolicy(Builder builder) {
+    this.maxAttempts = builder.maxAttempts;
+    this.initialBackoffNanos = builder.initialBackoffNanos;
+    this.maxBackoffNanos = builder.maxBackoffNanos;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Returns the number of attempts made to reconnect before giving up.
+   */
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  /**
+   * Returns the time to wait after the given failed attempt (counting from 1) before making the
+   * next one, in nanoseconds.
+   */
+  long getBackoffNanos(int failedAttempt) {
+    long backoff = initialBackoffNanos;
+    for (int i = 1; i < failedAttempt && backoff < maxBackoffNanos; i++) {
+      backoff *= 2;
+    }
+    return Math.min(backoff, maxBackoffNanos);
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(ReconnectPolicy.class)
+        .add("maxAttempts", maxAttempts)
+        .add("initialBackoffMillis", TimeUnit.NANOSECONDS.toMillis(initialBackoffNanos))
+        .add("maxBackoffMillis", TimeUnit.NANOSECONDS.toMillis(maxBackoffNanos))
+        .toString();
+  }
+
+  /**
+   * Builds instances of {@link ReconnectPolicy}. By default, up to 5 attempts are made, backing off
+   * from 100 milliseconds to at most 5 seconds.
+   */
+  public static final class Builder {
+    private int maxAttempts = 5;
+    private long initialBackoffNanos = TimeUnit.MILLISECONDS.toNanos(100);
+    private long maxBackoffNanos = TimeUnit.SECONDS.toNanos(5);
+
+    private Builder() {}
+
+    public Builder setMaxAttempts(int maxAttempts) {
+      Preconditions.checkArgument(maxAttempts > 0, "maxAttempts must be positive");
+      this.maxAttempts = maxAttempts;
+      return this;
+    }
+
+    public Builder setInitialBackoff(long backoff, TimeUnit unit) {
+      Preconditions.checkArgument(backoff >= 0, "backoff must not be negative");
+      this.initialBackoffNanos = unit.toNanos(backoff);
+      return this;
+    }
+
+    public Builder setMaxBackoff(long backoff, TimeUnit unit) {
+      Preconditions.checkArgument(backoff >= 0, "backoff must not be negative");
+      this.maxBackoffNanos = unit.toNanos(backoff);
+      return this;
+    }
+
+    public ReconnectPolicy build() {
+      Preconditions.checkState(
+          initialBackoffNanos <= maxBackoffNanos,
+          "the initial backoff must not exceed the maximum backoff");
+      return new ReconnectPolicy(this);
+    }
+  }
+}
@@ -0,0 +1,409 @@
+package au.com.southsky.jfreesane;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the traffic of a {@link SaneSession} for replaying later, see
+ * {@link SaneSession#startCapture}.
+ *
+ * <p>
+ * A capture is a header followed by records. Each record is a type byte, the time since the
+ * previous record in microseconds, the data connection it belongs to (for data records only) and
+ * the bytes it carries (for request, reply and data records only). Numbers are written as unsigned
+ * varints and byte arrays are prefixed with their length. Each request is one record, written when
+ * the client flushes it. Consecutive replies, or consecutive reads of image data, that arrive
+ * within a millisecond of each other are written as one record, which keeps captures compact while
+ * preserving the pace of the traffic.
+ */
+final class SaneCapture {
+  private static final Logger log = Logger.getLogger(SaneCapture.class.getName());
+
+  private static final int MAGIC = 0x4a465343; // "JFSC"
+  private static final int VERSION = 1;
+  private static final long COALESCE_MICROS = 1000;
+
+  /**
+   * The kinds of record in a capture.
+   */
+  enum RecordType {
+    /** A new control connection was opened, which starts with {@code SANE_NET_INIT}. */
+    CONTROL_CONNECTED(1),
+    /** The client sent a request on the control connection. */
+    REQUEST(2),
+    /** The client received (part of) a reply on the control connection. */
+    REPLY(3),
+    /** The client opened a data connection to read image data. */
+    DATA_OPENED(4),
+    /** The client received image data. */
+    DATA(5),
+    /** The client closed a data connection. */
+    DATA_CLOSED(6);
+
+    private final int code;
+
+    RecordType(int code) {
+      this.code = code;
+    }
+
+    static RecordType fromCode(int code) throws IOException {
+      for (RecordType type : values()) {
+        if (type.code == code) {
+          return type;
+        }
+      }
+      throw new IOException("unknown capture record type " + code);
+    }
+
+    boolean hasConnection() {
+      return this == DATA_OPENED || this == DATA || this == DATA_CLOSED;
+    }
+
+    boolean hasBytes() {
+      return this == REQUEST || this == REPLY || this == DATA;
+    }
+  }
+
+  /**
+   * A record read back from a capture.
+   */
+  static final class Record {
+    private final RecordType type;
+    private final long micros;
+    private final int connection;
+    private final byte[] bytes;
+
+    Record(RecordType type, long micros, int connection, byte[] bytes) {
+      this.type = type;
+      this.micros = micros;
+      this.connection = connection;
+      this.bytes = bytes;
+    }
+
+    RecordType getType() {
+      return type;
+    }
+
+    /**
+     * Returns the time of this record, in microseconds since the capture started.
+     */
+    long getMicros() {
+      return micros;
+    }
+
+    /**
+     * Returns the data connection this record belongs to, or -1 for control records.
+     */
+    int getConnection() {
+      return connection;
+    }
+
+    byte[] getBytes() {
+      return bytes;
+    }
+  }
+
+  private final DataOutputStream output;
+  private final long startNanos = System.nanoTime();
+
+  // Guarded by this.
+  private long lastMicros;
+  private int nextConnection;
+  private boolean finished;
+  private RecordType pendingType;
+  private int pendingConnection;
+  private long pendingMicros;
+  private final ByteArrayOutputStream pendingBytes = new ByteArrayOutputStream();
+
+  /**
+   * Starts a capture, writing its header to {@code output}.
+   */
+  SaneCapture(OutputStream output) throws IOException {
+    this.output =
+        new DataOutputStream(new BufferedOutputStream(Preconditions.checkNotNull(output)));
+    this.output.writeInt(MAGIC);
+    this.output.writeInt(VERSION);
+  }
+
+  synchronized void controlConnected() {
+    writeEvent(RecordType.CONTROL_CONNECTED, -1);
+  }
+
+  private synchronized void requestWritten(byte[] bytes, int offset, int length) {
+    append(RecordType.REQUEST, -1, bytes, offset, length);
+  }
+
+  private synchronized void requestFlushed() {
+    if (pendingType == RecordType.REQUEST) {
+      writePending();
+    }
+  }
+
+  private synchronized void replyRead(byte[] bytes, int offset, int length) {
+    append(RecordType.REPLY, -1, bytes, offset, length);
+  }
+
+  private synchronized int dataOpened() {
+    int connection = nextConnection++;
+    writeEvent(RecordType.DATA_OPENED, connection);
+    return connection;
+  }
+
+  private synchronized void dataRead(int connection, byte[] bytes, int offset, int length) {
+    append(RecordType.DATA, connection, bytes, offset, length);
+  }
+
+  private synchronized void dataClosed(int connection) {
+    writeEvent(RecordType.DATA_CLOSED, connection);
+  }
+
+  /**
+   * Writes what is left of the capture and flushes it. Traffic is no longer recorded afterwards.
+   * The underlying stream is not closed.
+   */
+  synchronized void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    writePending();
+    finished = true;
+    output.flush();
+  }
+
+  private void append(RecordType type, int connection, byte[] bytes, int offset, int length) {
+    if (finished) {
+      return;
+    }
+    long now = currentMicros();
+    if (pendingType != null
+        && (pendingType != type
+            || pendingConnection != connection
+            || (type != RecordType.REQUEST && now - pendingMicros > COALESCE_MICROS))) {
+      writePending();
+    }
+    if (pendingType == null) {
+      pendingType = type;
+      pendingConnection = connection;
+      pendingMicros = now;
+    }
+    pendingBytes.write(bytes, offset, length);
+  }
+
+  private void writeEvent(RecordType type, int connection) {
+    if (finished) {
+      return;
+    }
+    writePending();
+    write(type, currentMicros(), connection, null);
+  }
+
+  private void writePending() {
+    if (pendingType == null) {
+      return;
+    }
+    RecordType type = pendingType;
+    pendingType = null;
+    write(type, pendingMicros, pendingConnection, pendingBytes.toByteArray());
+    pendingBytes.reset();
+  }
+
+  private void write(RecordType type, long micros, int connection, byte[] bytes) {
+    if (finished) {
+      return;
+    }
+    try {
+      output.writeByte(type.code);
+      writeVarLong(output, micros - lastMicros);
+      lastMicros = micros;
+      if (type.hasConnection()) {
+        writeVarLong(output, connection);
+      }
+      if (type.hasBytes()) {
+        writeVarLong(output, bytes.length);
+        output.write(bytes);
+      }
+    } catch (IOException e) {
+      // A broken capture must not break the session it records.
+      log.log(Level.WARNING, "Could not write capture, stopping it", e);
+      finished = true;
+    }
+  }
+
+  private long currentMicros() {
+    return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Reads back all the records of a capture.
+   *
+   * @throws IOException if {@code input} could not be read or does not hold a capture
+   */
+  static List<Record> read(InputStream input) throws IOException {
+    DataInputStream in = new DataInputStream(input);
+    if (in.readInt() != MAGIC) {
+      throw new IOException("not a capture");
+    }
+    int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException("unsupported capture version " + version);
+    }
+
+    ImmutableList.Builder<Record> records = ImmutableList.builder();
+    long micros = 0;
+    for (int code = in.read(); code != -1; code = in.read()) {
+      RecordType type = RecordType.fromCode(code);
+      micros += readVarLong(in);
+      int connection = type.hasConnection() ? (int) readVarLong(in) : -1;
+      byte[] bytes = null;
+      if (type.hasBytes()) {
+        bytes = new byte[(int) readVarLong(in)];
+        in.readFully(bytes);
+      }
+      records.add(new Record(type, micros, connection, bytes));
+    }
+    return records.build();
+  }
+
+  private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+    while ((value & ~0x7fL) != 0) {
+      out.writeByte((int) (value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  private static long readVarLong(DataInputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new EOFException("malformed number in capture");
+  }
+
+  /**
+   * Wraps the output of a control connection so that the requests written to it are recorded by
+   * the session's capture, if it has one at the time.
+   */
+  static OutputStream tapRequests(OutputStream out, final AtomicReference<SaneCapture> capture) {
+    return new FilterOutputStream(out) {
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        SaneCapture current = capture.get();
+        if (current != null) {
+          current.requestWritten(b, off, len);
+        }
+      }
+
+      @Override
+      public void flush() throws IOException {
+        out.flush();
+        SaneCapture current = capture.get();
+        if (current != null) {
+          current.requestFlushed();
+        }
+      }
+    };
+  }
+
+  /**
+   * Wraps the input of a control connection so that the replies read from it are recorded by the
+   * session's capture, if it has one at the time.
+   */
+  static InputStream tapReplies(InputStream in, final AtomicReference<SaneCapture> capture) {
+    return new TappedInputStream(in) {
+      @Override
+      void bytesRead(byte[] b, int off, int len) {
+        SaneCapture current = capture.get();
+        if (current != null) {
+          current.replyRead(b, off, len);
+        }
+      }
+    };
+  }
+
+  /**
+   * Wraps the input of a new data connection so that the image data read from it is recorded.
+   */
+  InputStream tapData(InputStream in) {
+    final int connection = dataOpened();
+    return new TappedInputStream(in) {
+      @Override
+      void bytesRead(byte[] b, int off, int len) {
+        dataRead(connection, b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          dataClosed(connection);
+        }
+      }
+    };
+  }
+
+  /**
+   * An input stream that reports every byte read from it, including skipped bytes.
+   */
+  private abstract static class TappedInputStream extends FilterInputStream {
+    TappedInputStream(InputStream in) {
+      super(in);
+    }
+
+    abstract void bytesRead(byte[] b, int off, int len);
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int count = in.read(b, off, len);
+      if (count > 0) {
+        bytesRead(b, off, count);
+      }
+      return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // Skipped bytes are part of the traffic, so they are read.
+      byte[] buffer = new byte[(int) Math.min(n, 8192)];
+      int count = read(buffer, 0, buffer.length);
+      return Math.max(count, 0);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+}
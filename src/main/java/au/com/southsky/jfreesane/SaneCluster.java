@@ -0,0 +1,582 @@
+package au.com.southsky.jfreesane;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ComparisonChain;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.collect.Sets;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Spreads scans over a pool of interchangeable devices, which may be attached to different SANE
+ * daemons. Each scan is run on a device that is not scanning, preferring the host with the fewest
+ * scans in progress, then the device that completed the fewest scans in the last minute, then the
+ * host with the shortest control round-trip time. If no device is free, the scan waits for one.
+ *
+ * <pre>
+ *   SaneCluster cluster =
+ *       SaneCluster.builder()
+ *           .addDevice(InetAddress.getByName("scanhost1"), "fujitsu:fi-7160:1")
+ *           .addDevice(InetAddress.getByName("scanhost2"), "fujitsu:fi-7160:1")
+ *           .build();
+ *   BufferedImage image = cluster.acquireImage();
+ * </pre>
+ *
+ * <p>
+ * If a scan fails with an {@link IOException}, it is run again on another device. If the host
+ * could not be reached or its control connection broke, the host is also closed and left out for
+ * the retry delay; otherwise, for example when image data stopped arriving, its session stays open
+ * for the scans on its other devices. A {@link SaneException} is reported by the device itself,
+ * for example when it has no paper, and is thrown to the caller instead.
+ *
+ * <p>
+ * The cluster keeps one {@link SaneSession} per host, with keepalive enabled so that the round-trip
+ * time is known, and opens each device the first time it is used. This class is thread-safe.
+ */
+public final class SaneCluster implements Closeable {
+  private static final Logger log = Logger.getLogger(SaneCluster.class.getName());
+
+  private static final long RATE_WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+  /**
+   * Work to be done with a device of the cluster. The device is open when the task is run.
+   */
+  public interface Task<T> {
+    /**
+     * Runs the task. The task may be run again on another device if it throws an
+     * {@link IOException}, so it should not have lasting effects until it returns.
+     */
+    T run(SaneDevice device) throws IOException, SaneException;
+  }
+
+  private final List<Member> members;
+  private final long timeoutMillis;
+  private final long keepaliveNanos;
+  private final long retryDelayNanos;
+  private final SanePasswordProvider passwordProvider;
+
+  // Guarded by this.
+  private boolean closed;
+
+  private SaneCluster(Builder builder) {
+    this.timeoutMillis = TimeUnit.NANOSECONDS.toMillis(builder.timeoutNanos);
+    this.keepaliveNanos = builder.keepaliveNanos;
+    this.retryDelayNanos = builder.retryDelayNanos;
+    this.passwordProvider = builder.passwordProvider;
+
+    Map<InetSocketAddress, Host> hosts = Maps.newHashMap();
+    List<Member> members = Lists.newArrayList();
+    for (Map.Entry<InetSocketAddress, String> entry : builder.devices) {
+      Host host = hosts.get(entry.getKey());
+      if (host == null) {
+        host = new Host(entry.getKey());
+        hosts.put(entry.getKey(), host);
+      }
+      members.add(new Member(host, entry.getValue()));
+    }
+    this.members = ImmutableList.copyOf(members);
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Acquires a single image from a device of the cluster.
+   *
+   * @throws IOException if no device could be reached
+   * @throws SaneException if the device that was chosen returned an error
+   * @throws InterruptedException if the thread was interrupted while waiting for a free device
+   */
+  public BufferedImage acquireImage() throws IOException, SaneException, InterruptedException {
+    return run(
+        new Task<BufferedImage>() {
+          @Override
+          public BufferedImage run(SaneDevice device) throws IOException, SaneException {
+            return device.acquireImage();
+          }
+        });
+  }
+
+  /**
+   * Runs the given task on a device of the cluster, see the class documentation for how the device
+   * is chosen.
+   *
+   * @throws IOException if no device could be reached
+   * @throws SaneException if the task failed with a {@link SaneException}
+   * @throws InterruptedException if the thread was interrupted while waiting for a free device
+   */
+  public <T> T run(Task<T> task) throws IOException, SaneException, InterruptedException {
+    IOException failure = null;
+    Set<Member> tried = Sets.newHashSet();
+    for (int attempt = 0; attempt < members.size(); attempt++) {
+      Member member;
+      try {
+        member = reserve(tried);
+      } catch (IOException e) {
+        if (failure != null) {
+          e.addSuppressed(failure);
+        }
+        throw e;
+      }
+
+      boolean succeeded = false;
+      SaneSession session = null;
+      try {
+        session = member.host.getSession();
+        T result = task.run(member.getOpenDevice(session));
+        succeeded = true;
+        return result;
+      } catch (IOException e) {
+        log.log(Level.WARNING, "Scan on " + member + " failed, trying another device", e);
+        tried.add(member);
+        if (session == null || session.isConnectionBroken()) {
+          member.host.fail(session);
+        }
+        if (failure != null) {
+          e.addSuppressed(failure);
+        }
+        failure = e;
+      } finally {
+        release(member, succeeded);
+      }
+    }
+    throw failure;
+  }
+
+  /**
+   * Returns the current state of every device of the cluster, in the order they were added.
+   */
+  public synchronized List<MemberStatus> getMembers() {
+    long now = System.nanoTime();
+    List<MemberStatus> result = Lists.newArrayList();
+    for (Member member : members) {
+      result.add(member.status(now));
+    }
+    return ImmutableList.copyOf(result);
+  }
+
+  /**
+   * Closes the sessions to all hosts. Scans in progress fail.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+    }
+    for (Member member : members) {
+      member.host.close();
+    }
+  }
+
+  /**
+   * Reserves the best free device that is not in {@code excluded}, waiting for one if they are all
+   * busy.
+   */
+  private synchronized Member reserve(Set<Member> excluded)
+      throws IOException, InterruptedException {
+    while (true) {
+      if (closed) {
+        throw new IOException("cluster is closed");
+      }
+
+      long now = System.nanoTime();
+      Member best = null;
+      boolean anyBusy = false;
+      for (Member member : members) {
+        if (excluded.contains(member)) {
+          continue;
+        } else if (member.busy) {
+          anyBusy = true;
+        } else if (member.host.isAvailable(now)
+            && (best == null || member.compareTo(best, now) < 0)) {
+          best = member;
+        }
+      }
+
+      if (best != null) {
+        best.busy = true;
+        best.host.scansInFlight++;
+        return best;
+      }
+      if (!anyBusy) {
+        throw new IOException("no device of the cluster is reachable");
+      }
+      wait();
+    }
+  }
+
+  private synchronized void release(Member member, boolean succeeded) {
+    member.busy = false;
+    member.host.scansInFlight--;
+    if (succeeded) {
+      member.host.failed = false;
+      member.recordScan(System.nanoTime());
+    }
+    notifyAll();
+  }
+
+  /**
+   * The state of a device of a {@link SaneCluster}.
+   */
+  public static final class MemberStatus {
+    private final InetSocketAddress address;
+    private final String deviceName;
+    private final boolean busy;
+    private final boolean available;
+    private final int hostScansInFlight;
+    private final int scansPerMinute;
+    private final long roundTripNanos;
+
+    private MemberStatus(
+        InetSocketAddress address,
+        String deviceName,
+        boolean busy,
+        boolean available,
+        int hostScansInFlight,
+        int scansPerMinute,
+        long roundTripNanos) {
+      this.address = address;
+      this.deviceName = deviceName;
+      this.busy = busy;
+      this.available = available;
+      this.hostScansInFlight = hostScansInFlight;
+      this.scansPerMinute = scansPerMinute;
+      this.roundTripNanos = roundTripNanos;
+    }
+
+    public InetSocketAddress getAddress() {
+      return address;
+    }
+
+    public String getDeviceName() {
+      return deviceName;
+    }
+
+    /**
+     * Returns {@code true} if the device is running a task.
+     */
+    public boolean isBusy() {
+      return busy;
+    }
+
+    /**
+     * Returns {@code false} if the host of the device failed within the retry delay.
+     */
+    public boolean isAvailable() {
+      return available;
+    }
+
+    public int getHostScansInFlight() {
+      return hostScansInFlight;
+    }
+
+    /**
+     * Returns the number of tasks the device completed in the last minute.
+     */
+    public int getScansPerMinute() {
+      return scansPerMinute;
+    }
+
+    /**
+     * Returns the control round-trip time of the host in the given unit, or -1 if it is not known
+     * yet.
+     */
+    public long getRoundTripTime(TimeUnit unit) {
+      return roundTripNanos < 0 ? -1 : unit.convert(roundTripNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(MemberStatus.class)
+          .add("address", address)
+          .add("deviceName", deviceName)
+          .add("busy", busy)
+          .add("available", available)
+          .add("hostScansInFlight", hostScansInFlight)
+          .add("scansPerMinute", scansPerMinute)
+          .add("roundTripMillis", getRoundTripTime(TimeUnit.MILLISECONDS))
+          .toString();
+    }
+  }
+
+  /**
+   * A device of the cluster. Its device object is only used by the thread that reserved it.
+   */
+  private final class Member {
+    private final Host host;
+    private final String deviceName;
+    private SaneDevice device;
+
+    // Guarded by SaneCluster.this.
+    private boolean busy;
+    private final Deque<Long> scanCompletions = Queues.newArrayDeque();
+
+    private Member(Host host, String deviceName) {
+      this.host = host;
+      this.deviceName = deviceName;
+    }
+
+    SaneDevice getOpenDevice(SaneSession session) throws IOException, SaneException {
+      if (device == null || device.getSession() != session) {
+        device = session.getDevice(deviceName);
+      }
+      if (!device.isOpen()) {
+        device.open();
+      }
+      return device;
+    }
+
+    // Called with SaneCluster.this held.
+    void recordScan(long now) {
+      scanCompletions.addLast(now);
+    }
+
+    // Called with SaneCluster.this held.
+    int getScansPerMinute(long now) {
+      while (!scanCompletions.isEmpty() && now - scanCompletions.peekFirst() > RATE_WINDOW_NANOS) {
+        scanCompletions.removeFirst();
+      }
+      return scanCompletions.size();
+    }
+
+    // Called with SaneCluster.this held.
+    int compareTo(Member other, long now) {
+      return ComparisonChain.start()
+          .compare(host.scansInFlight, other.host.scansInFlight)
+          .compare(getScansPerMinute(now), other.getScansPerMinute(now))
+          .compare(host.getRoundTripNanos(), other.host.getRoundTripNanos())
+          .result();
+    }
+
+    // Called with SaneCluster.this held.
+    MemberStatus status(long now) {
+      return new MemberStatus(
+          host.address,
+          deviceName,
+          busy,
+          host.isAvailable(now),
+          host.scansInFlight,
+          getScansPerMinute(now),
+          host.getRoundTripNanos());
+    }
+
+    @Override
+    public String toString() {
+      return deviceName + " on " + host.address;
+    }
+  }
+
+  /**
+   * A SANE daemon of the cluster, with the session shared by its devices.
+   */
+  private final class Host {
+    private final InetSocketAddress address;
+
+    // Guarded by SaneCluster.this.
+    private int scansInFlight;
+    private long unavailableUntilNanos;
+    private boolean failed;
+
+    // Guarded by this. Never acquire SaneCluster.this while holding this, nor connect.
+    private boolean connecting;
+    private boolean closed;
+    // Written with this held, read without it so that choosing a device never waits for a host.
+    private volatile SaneSession session;
+
+    private Host(InetSocketAddress address) {
+      this.address = address;
+    }
+
+    // Called with SaneCluster.this held.
+    boolean isAvailable(long now) {
+      return !failed || now - unavailableUntilNanos >= 0;
+    }
+
+    // A host whose round-trip time is not known yet is tried as if it were fast.
+    long getRoundTripNanos() {
+      SaneSession currentSession = session;
+      return currentSession == null ? 0 : currentSession.getRoundTripTime(TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the session to this host, connecting first if there is none. Only one thread
+     * connects at a time; the others wait for it, and fail if it fails.
+     */
+    SaneSession getSession() throws IOException {
+      synchronized (this) {
+        boolean waited = false;
+        while (connecting) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while connecting to " + address);
+          }
+          waited = true;
+        }
+        if (closed) {
+          throw new IOException("cluster is closed");
+        }
+        if (session != null) {
+          return session;
+        }
+        if (waited) {
+          throw new IOException("could not connect to " + address);
+        }
+        connecting = true;
+      }
+
+      SaneSession newSession = null;
+      boolean published = false;
+      try {
+        newSession =
+            SaneSession.withRemoteSane(
+                address.getAddress(),
+                address.getPort(),
+                timeoutMillis,
+                TimeUnit.MILLISECONDS,
+                0,
+                TimeUnit.MILLISECONDS);
+        if (passwordProvider != null) {
+          newSession.setPasswordProvider(passwordProvider);
+        }
+        if (keepaliveNanos > 0) {
+          newSession.setKeepalive(keepaliveNanos, TimeUnit.NANOSECONDS);
+        }
+      } finally {
+        synchronized (this) {
+          connecting = false;
+          if (newSession != null && !closed) {
+            session = newSession;
+            published = true;
+          }
+          notifyAll();
+        }
+      }
+      if (!published) {
+        // The cluster was closed while connecting.
+        closeQuietly(newSession);
+        throw new IOException("cluster is closed");
+      }
+      return newSession;
+    }
+
+    void fail(SaneSession failedSession) {
+      synchronized (SaneCluster.this) {
+        failed = true;
+        unavailableUntilNanos = System.nanoTime() + retryDelayNanos;
+      }
+      synchronized (this) {
+        if (failedSession == null || session != failedSession) {
+          return;
+        }
+        session = null;
+      }
+      closeQuietly(failedSession);
+    }
+
+    void close() {
+      SaneSession currentSession;
+      synchronized (this) {
+        closed = true;
+        currentSession = session;
+        session = null;
+      }
+      if (currentSession != null) {
+        closeQuietly(currentSession);
+      }
+    }
+
+    private void closeQuietly(SaneSession session) {
+      try {
+        session.close();
+      } catch (IOException e) {
+        log.log(Level.FINE, "Could not close the session to " + address, e);
+      }
+    }
+  }
+
+  /**
+   * Builds instances of {@link SaneCluster}. By default, hosts are given 5 seconds to connect,
+   * keepalive probes are sent every 30 seconds, and a host that failed is left out for 30 seconds.
+   */
+  public static final class Builder {
+    private final List<Map.Entry<InetSocketAddress, String>> devices = Lists.newArrayList();
+    private long timeoutNanos = TimeUnit.SECONDS.toNanos(5);
+    private long keepaliveNanos = TimeUnit.SECONDS.toNanos(30);
+    private long retryDelayNanos = TimeUnit.SECONDS.toNanos(30);
+    private SanePasswordProvider passwordProvider;
+
+    private Builder() {}
+
+    /**
+     * Adds the named device of a host whose SANE daemon listens on the default port.
+     */
+    public Builder addDevice(InetAddress host, String deviceName) {
+      return addDevice(host, SaneSession.DEFAULT_PORT, deviceName);
+    }
+
+    public Builder addDevice(InetAddress host, int port, String deviceName) {
+      Preconditions.checkNotNull(host);
+      Preconditions.checkNotNull(deviceName);
+      devices.add(Maps.immutableEntry(new InetSocketAddress(host, port), deviceName));
+      return this;
+    }
+
+    /**
+     * Sets how long a host is given to accept a connection.
+     */
+    public Builder setConnectTimeout(long timeout, TimeUnit unit) {
+      Preconditions.checkArgument(timeout >= 0, "timeout must not be negative");
+      this.timeoutNanos = unit.toNanos(timeout);
+      return this;
+    }
+
+    /**
+     * Sets the keepalive interval of the sessions, see {@link SaneSession#setKeepalive}. With an
+     * interval of 0, the round-trip times of the hosts are not measured.
+     */
+    public Builder setKeepalive(long interval, TimeUnit unit) {
+      Preconditions.checkArgument(interval >= 0, "interval must not be negative");
+      this.keepaliveNanos = unit.toNanos(interval);
+      return this;
+    }
+
+    /**
+     * Sets how long a host that failed is left out before it is tried again.
+     */
+    public Builder setRetryDelay(long delay, TimeUnit unit) {
+      Preconditions.checkArgument(delay >= 0, "delay must not be negative");
+      this.retryDelayNanos = unit.toNanos(delay);
+      return this;
+    }
+
+    public Builder setPasswordProvider(SanePasswordProvider passwordProvider) {
+      this.passwordProvider = passwordProvider;
+      return this;
+    }
+
+    public SaneCluster build() {
+      Preconditions.checkState(!devices.isEmpty(), "no devices were added");
+      return new SaneCluster(this);
+    }
+  }
+}
@@ -9,8 +9,12 @@ import com.google.common.collect.Maps;
 import java.awt.image.BufferedImage;
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Represents a SANE device within a session. SANE devices are obtained from a {@link SaneSession}.
@@ -18,7 +22,8 @@ import java.util.Map;
  * <p>
  * Definitely not thread-safe. If you're going to use this object from multiple threads, you must do
  * your own synchronization. Even performing read operations (like getting an option's value) must
- * be synchronized.
+ * be synchronized. Different devices of the same {@link SaneSession} may be used by different
+ * threads without synchronization, see {@link SaneSession}.
  *
  * @author James Ring (sjr@jdns.org)
  */
@@ -29,11 +34,16 @@ public class SaneDevice implements Closeable {
   private final String model;
   private final String type;
 
-  private SaneDeviceHandle handle;
+  // Replaced by the session when it reconnects, possibly on another thread.
+  private volatile SaneDeviceHandle handle;
 
   private Map<String, SaneOption> optionTitleMap = null;
   private final List<OptionGroup> groups = Lists.newArrayList();
 
+  // The last value written to each option, in the order the options were last written. Guarded by
+  // the session's control lock.
+  private final Map<Integer, SaneOption.ValueWrite> optionValues = Maps.newLinkedHashMap();
+
   SaneDevice(SaneSession session, String name, String vendor, String model, String type) {
     this.session = session;
     this.name = name;
@@ -74,7 +84,7 @@ public class SaneDevice implements Closeable {
    */
   public void open() throws IOException, SaneException {
     Preconditions.checkState(!isOpen(), "device is already open");
-    handle = session.openDevice(this);
+    session.openDevice(this);
   }
 
   /**
@@ -103,22 +113,152 @@ public class SaneDevice implements Closeable {
    * @throws SaneException if an application-level error was returned by the Sane daemon
    */
   public BufferedImage acquireImage(ScanListener listener) throws IOException, SaneException {
+    return acquireImage(listener, CancellationToken.create());
+  }
+
+  /**
+   * Acquires a single image from the Sane daemon, giving up once {@code timeout} has elapsed. See
+   * {@link #acquireImage(ScanListener, CancellationToken)} for details.
+   *
+   * @return a {@link BufferedImage} representing the image obtained from Sane
+   * @throws IOException if an error occurred while talking to the backend
+   * @throws SaneException if an application-level error was returned by the Sane daemon, or with
+   * status {@link SaneStatus#STATUS_CANCELLED} if the scan did not finish in time
+   */
+  public BufferedImage acquireImage(long timeout, TimeUnit unit)
+      throws IOException, SaneException {
+    CancellationToken deadline = CancellationToken.withDeadline(timeout, unit);
+    try {
+      return acquireImage(null, deadline);
+    } finally {
+      deadline.dispose();
+    }
+  }
+
+  /**
+   * Acquires a single image from the Sane daemon. The scan may be aborted from any thread using
+   * {@code cancellation}, in which case the data connection is closed, the device is cancelled and
+   * the memory used by the scan is released. See {@link CancellationToken} for details.
+   *
+   * @param listener if not {@code null}, this object will receive notifications about scan progress
+   * @param cancellation the token that aborts this scan when it is cancelled
+   * @return a {@link BufferedImage} representing the image obtained from Sane
+   * @throws IOException if an error occurred while talking to the backend
+   * @throws SaneException if an application-level error was returned by the Sane daemon, or with
+   * status {@link SaneStatus#STATUS_CANCELLED} if the scan was cancelled
+   */
+  public BufferedImage acquireImage(ScanListener listener, CancellationToken cancellation)
+      throws IOException, SaneException {
     Preconditions.checkState(isOpen(), "device is not open");
+    Preconditions.checkNotNull(cancellation);
     if (listener == null) {
       listener = new ScanListenerAdapter();
     }
-    return session.acquireImage(this, listener);
+    return session.acquireImage(this, listener, cancellation);
   }
 
   /**
-   * Cancel the current operation of a remote SANE device.
+   * Acquires a single image from the Sane daemon without converting it to a {@link BufferedImage}.
+   * Nothing in the {@code java.awt} packages is used to acquire the image, see
+   * {@link SaneRawImage} for details.
+   *
+   * @return a {@link SaneRawImage} holding the frames obtained from Sane
+   * @throws IOException if an error occurred while talking to the backend
+   * @throws SaneException if an application-level error was returned by the Sane daemon
+   */
+  public SaneRawImage acquireRaw() throws IOException, SaneException {
+    return acquireRaw(null);
+  }
+
+  /**
+   * Acquires a single image from the Sane daemon without converting it to a {@link BufferedImage}.
+   * The given {@link ScanListener} will be notified about updates during the scan, see
+   * {@link #acquireImage(ScanListener)}.
+   *
+   * @param listener if not {@code null}, this object will receive notifications about scan progress
+   * @return a {@link SaneRawImage} holding the frames obtained from Sane
+   * @throws IOException if an error occurred while talking to the backend
+   * @throws SaneException if an application-level error was returned by the Sane daemon
+   */
+  public SaneRawImage acquireRaw(ScanListener listener) throws IOException, SaneException {
+    return acquireRaw(listener, CancellationToken.create());
+  }
+
+  /**
+   * Acquires a single image from the Sane daemon without converting it to a {@link BufferedImage}.
+   * The scan may be aborted from any thread using {@code cancellation}, see
+   * {@link #acquireImage(ScanListener, CancellationToken)}.
+   *
+   * @param listener if not {@code null}, this object will receive notifications about scan progress
+   * @param cancellation the token that aborts this scan when it is cancelled
+   * @return a {@link SaneRawImage} holding the frames obtained from Sane
+   * @throws IOException if an error occurred while talking to the backend
+   * @throws SaneException if an application-level error was returned by the Sane daemon, or with
+   * status {@link SaneStatus#STATUS_CANCELLED} if the scan was cancelled
+   */
+  public SaneRawImage acquireRaw(ScanListener listener, CancellationToken cancellation)
+      throws IOException, SaneException {
+    Preconditions.checkState(isOpen(), "device is not open");
+    Preconditions.checkNotNull(cancellation);
+    if (listener == null) {
+      listener = new ScanListenerAdapter();
+    }
+    return session.acquireRaw(this, listener, cancellation);
+  }
+
+  /**
+   * Acquires pages until the device runs out of documents (typically from an automatic document
+   * feeder), see {@link #acquireBatch(PageHandler, Executor, ScanListener)}.
+   */
+  public int acquireBatch(PageHandler handler, Executor executor)
+      throws IOException, SaneException, ExecutionException {
+    return acquireBatch(handler, executor, null);
+  }
+
+  /**
+   * Acquires pages until the device runs out of documents (typically from an automatic document
+   * feeder). Each page is passed to {@code handler} on {@code executor} while the next page is
+   * already being acquired, so converting and encoding pages does not slow the scanner down.
+   * Running out of documents ({@link SaneStatus#STATUS_NO_DOCS}) ends the batch normally, even
+   * before the first page.
+   *
+   * <p>
+   * At most a few pages wait to be handled at any time: if the handlers fall behind, acquisition
+   * pauses until they catch up. This method returns once every acquired page has been handled.
+   *
+   * @param handler receives each acquired page
+   * @param executor runs {@code handler}, for example a thread pool
+   * @param listener if not {@code null}, this object will receive notifications about the progress
+   * of each page
+   * @return the number of pages acquired
+   * @throws IOException if an error occurred while talking to the backend
+   * @throws SaneException if an application-level error other than running out of documents was
+   * returned by the Sane daemon
+   * @throws ExecutionException if {@code handler} threw an exception, in which case no further
+   * pages are acquired
+   */
+  public int acquireBatch(PageHandler handler, Executor executor, ScanListener listener)
+      throws IOException, SaneException, ExecutionException {
+    Preconditions.checkState(isOpen(), "device is not open");
+    Preconditions.checkNotNull(handler);
+    Preconditions.checkNotNull(executor);
+    if (listener == null) {
+      listener = new ScanListenerAdapter();
+    }
+    return new BatchAcquisition(this, handler, executor, listener).run();
+  }
+
+  /**
+   * Cancel the current operation of a remote SANE device. This uses the session's control
+   * connection and must not be called while another thread is acquiring an image from this device.
+   * Use a {@link CancellationToken} to abort a scan from another thread.
    *
    * @throws IOException if an error occurs talking to the SANE backend
    * @throws IllegalStateException if the device is not open
    */
   public void cancel() throws IOException {
     Preconditions.checkState(isOpen(), "device is not open");
-    session.cancelDevice(handle);
+    session.cancelDevice(this);
   }
 
   /**
@@ -133,8 +273,7 @@ public class SaneDevice implements Closeable {
       throw new IOException("device is already closed");
     }
 
-    session.closeDevice(handle);
-    handle = null;
+    session.closeDevice(this);
   }
 
   @Override
@@ -158,6 +297,23 @@ public class SaneDevice implements Closeable {
     return handle;
   }
 
+  void setHandle(SaneDeviceHandle handle) {
+    this.handle = handle;
+  }
+
+  void rememberOptionValue(SaneOption.ValueWrite write) {
+    optionValues.remove(write.getOptionNumber());
+    optionValues.put(write.getOptionNumber(), write);
+  }
+
+  Collection<SaneOption.ValueWrite> getOptionValues() {
+    return optionValues.values();
+  }
+
+  void clearOptionValues() {
+    optionValues.clear();
+  }
+
   /**
    * Returns the list of options applicable to this device.
    *
@@ -166,7 +322,6 @@ public class SaneDevice implements Closeable {
    */
   public List<SaneOption> listOptions() throws IOException {
     if (optionTitleMap == null) {
-      groups.clear();
       optionTitleMap =
           Maps.uniqueIndex(
               SaneOption.optionsFor(this),
@@ -186,6 +341,10 @@ public class SaneDevice implements Closeable {
     groups.add(group);
   }
 
+  void clearOptionGroups() {
+    groups.clear();
+  }
+
   /**
    * Returns the list of option groups for this device.
    */
@@ -0,0 +1,224 @@
+package au.com.southsky.jfreesane;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Notices devices being attached to and detached from a SANE daemon by listing its devices
+ * periodically, and tells its listeners about the differences. Any number of listeners share the
+ * same poll, so watching the devices costs one {@code SANE_NET_GET_DEVICES} request per interval
+ * however many parts of an application are interested.
+ *
+ * <pre>
+ *   SaneDeviceWatcher watcher = SaneDeviceWatcher.watch(session, 5, TimeUnit.SECONDS);
+ *   watcher.addListener(new SaneDeviceWatcher.Listener() { ... });
+ * </pre>
+ *
+ * <p>
+ * Devices are told apart by name. Listeners are called on a JFreeSane worker thread, one
+ * notification at a time, so implementations should return quickly. Closing the watcher stops the
+ * polling but leaves the session open.
+ */
+public final class SaneDeviceWatcher implements Closeable {
+  private static final Logger log = Logger.getLogger(SaneDeviceWatcher.class.getName());
+
+  /**
+   * Receives notifications about devices appearing and disappearing.
+   */
+  public interface Listener {
+    /**
+     * Called when a device appears. A listener that is added to a watcher is first told about
+     * every device the watcher already knows about.
+     */
+    void deviceAdded(SaneDevice device);
+
+    /**
+     * Called when a device is no longer listed by the SANE daemon.
+     */
+    void deviceRemoved(SaneDevice device);
+  }
+
+  private final SaneSession session;
+  private final long intervalNanos;
+
+  // Guarded by this. Devices by name, in the order they were first seen.
+  private final Map<String, SaneDevice> devices = Maps.newLinkedHashMap();
+  private final List<Listener> listeners = Lists.newArrayList();
+  // Listeners that have been added but not yet told about the known devices.
+  private final List<Listener> pendingListeners = Lists.newArrayList();
+  private ScheduledFuture<?> pollTask;
+  private boolean closed;
+
+  private SaneDeviceWatcher(SaneSession session, long intervalNanos) {
+    this.session = session;
+    this.intervalNanos = intervalNanos;
+  }
+
+  /**
+   * Starts watching the devices of the given session, listing them right away and then every
+   * {@code interval}.
+   */
+  public static SaneDeviceWatcher watch(SaneSession session, long interval, TimeUnit unit) {
+    Preconditions.checkNotNull(session);
+    Preconditions.checkArgument(interval > 0, "interval must be positive");
+    SaneDeviceWatcher watcher = new SaneDeviceWatcher(session, unit.toNanos(interval));
+    synchronized (watcher) {
+      watcher.schedulePoll(0);
+    }
+    return watcher;
+  }
+
+  /**
+   * Adds a listener, which is first told about the devices that are currently known. Like all
+   * notifications, these are delivered on a JFreeSane worker thread.
+   */
+  public synchronized void addListener(final Listener listener) {
+    Preconditions.checkNotNull(listener);
+    pendingListeners.add(listener);
+    SaneTimer.WORKERS.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            activate(listener);
+          }
+        });
+  }
+
+  public synchronized void removeListener(Listener listener) {
+    pendingListeners.remove(listener);
+    listeners.remove(listener);
+  }
+
+  /**
+   * Tells a newly added listener about the known devices and starts telling it about changes.
+   * Holding the lock keeps these notifications from interleaving with those of a poll.
+   */
+  private synchronized void activate(Listener listener) {
+    if (closed || !pendingListeners.remove(listener)) {
+      return;
+    }
+    listeners.add(listener);
+    for (SaneDevice device : devices.values()) {
+      notifyAdded(listener, device);
+    }
+  }
+
+  /**
+   * Returns the devices listed by the last successful poll.
+   */
+  public synchronized List<SaneDevice> getDevices() {
+    return ImmutableList.copyOf(devices.values());
+  }
+
+  /**
+   * Stops polling. Listeners are not called after this method returns.
+   */
+  @Override
+  public synchronized void close() {
+    closed = true;
+    if (pollTask != null) {
+      pollTask.cancel(false);
+      pollTask = null;
+    }
+  }
+
+  // Called with this held.
+  private void schedulePoll(long delayNanos) {
+    pollTask =
+        SaneTimer.EXECUTOR.schedule(
+            new Runnable() {
+              @Override
+              public void run() {
+                SaneTimer.WORKERS.execute(
+                    new Runnable() {
+                      @Override
+                      public void run() {
+                        poll();
+                      }
+                    });
+              }
+            },
+            delayNanos,
+            TimeUnit.NANOSECONDS);
+  }
+
+  private void poll() {
+    List<SaneDevice> listed = null;
+    try {
+      listed = session.listDevices();
+    } catch (IOException | SaneException e) {
+      log.log(Level.WARNING, "Could not list devices, will try again", e);
+    }
+
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      if (listed != null) {
+        update(listed);
+      }
+      schedulePoll(intervalNanos);
+    }
+  }
+
+  // Called with this held.
+  private void update(List<SaneDevice> listed) {
+    Map<String, SaneDevice> current = Maps.newLinkedHashMap();
+    for (SaneDevice device : listed) {
+      current.put(device.getName(), device);
+    }
+
+    List<SaneDevice> removed = Lists.newArrayList();
+    for (SaneDevice device : devices.values()) {
+      if (!current.containsKey(device.getName())) {
+        removed.add(device);
+      }
+    }
+    List<SaneDevice> added = Lists.newArrayList();
+    for (SaneDevice device : current.values()) {
+      if (!devices.containsKey(device.getName())) {
+        added.add(device);
+      }
+    }
+
+    for (SaneDevice device : removed) {
+      devices.remove(device.getName());
+      for (Listener listener : listeners) {
+        notifyRemoved(listener, device);
+      }
+    }
+    for (SaneDevice device : added) {
+      devices.put(device.getName(), device);
+      for (Listener listener : listeners) {
+        notifyAdded(listener, device);
+      }
+    }
+  }
+
+  private static void notifyAdded(Listener listener, SaneDevice device) {
+    try {
+      listener.deviceAdded(device);
+    } catch (RuntimeException e) {
+      log.log(Level.WARNING, "Listener failed", e);
+    }
+  }
+
+  private static void notifyRemoved(Listener listener, SaneDevice device) {
+    try {
+      listener.deviceRemoved(device);
+    } catch (RuntimeException e) {
+      log.log(Level.WARNING, "Listener failed", e);
+    }
+  }
+}
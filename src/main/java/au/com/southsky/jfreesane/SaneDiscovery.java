@@ -0,0 +1,372 @@
+package au.com.southsky.jfreesane;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.net.InetAddresses;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps an inventory of the devices of many SANE daemons. The daemons are asked for their devices
+ * in the background, all at the same time, and their answers are cached. Reading the inventory
+ * with {@link #getDevices} never waits for a daemon, so a slow or unreachable host cannot hold up
+ * its callers.
+ *
+ * <pre>
+ *   SaneDiscovery discovery =
+ *       SaneDiscovery.builder()
+ *           .addHost(InetAddress.getByName("scanhost1"))
+ *           .addHost(InetAddress.getByName("scanhost2"))
+ *           .setRefreshInterval(30, TimeUnit.SECONDS)
+ *           .build();
+ *   List&lt;SaneDevice&gt; devices = discovery.getDevices();
+ * </pre>
+ *
+ * <p>
+ * The answer of a host is kept until it is replaced by a newer one or until it is older than the
+ * time to live, so a host that stops answering drops out of the inventory after a while. Each
+ * host has a {@link SaneSession} that is kept open between refreshes. The returned devices belong
+ * to those sessions and may be opened, but they stop working once the discovery is closed.
+ */
+public final class SaneDiscovery implements Closeable {
+  private static final Logger log = Logger.getLogger(SaneDiscovery.class.getName());
+
+  private final List<Host> hosts;
+  // The hosts by the names and addresses the net backend may refer to them with.
+  private final Map<String, InetSocketAddress> hostsByName;
+  private final long timeoutNanos;
+  private final long refreshIntervalNanos;
+  private final long timeToLiveNanos;
+  private volatile ScheduledFuture<?> refreshTask;
+  private volatile boolean closed;
+
+  private SaneDiscovery(Builder builder) {
+    this.timeoutNanos = builder.timeoutNanos;
+    this.refreshIntervalNanos = builder.refreshIntervalNanos;
+    this.timeToLiveNanos = builder.timeToLiveNanos;
+    List<Host> hosts = Lists.newArrayList();
+    for (InetSocketAddress address : builder.addresses) {
+      hosts.add(new Host(address));
+    }
+    this.hosts = ImmutableList.copyOf(hosts);
+    Map<String, InetSocketAddress> hostsByName = Maps.newHashMap();
+    for (InetSocketAddress address : builder.addresses) {
+      String[] names = {address.getHostString(), address.getAddress().getHostAddress()};
+      for (String name : names) {
+        String normalizedName = normalizeHostName(name);
+        if (!hostsByName.containsKey(normalizedName)) {
+          hostsByName.put(normalizedName, address);
+        }
+      }
+    }
+    this.hostsByName = hostsByName;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private void start() {
+    refreshTask =
+        SaneTimer.EXECUTOR.scheduleAtFixedRate(
+            new Runnable() {
+              @Override
+              public void run() {
+                startRefresh(null);
+              }
+            },
+            0,
+            refreshIntervalNanos,
+            TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Returns the devices of all hosts, as last reported by each host within the time to live.
+   * Devices are listed in the order the hosts were added. Devices of different hosts are distinct
+   * even if they have the same name, but a host that reaches another one of the hosts through the
+   * {@code net} backend (reporting a device named {@code net:otherhost:name}) reports the same
+   * device as that host. Such a device is listed once, for the first of the two hosts. This method
+   * does not wait for any host.
+   */
+  public List<SaneDevice> getDevices() {
+    long now = System.nanoTime();
+    Map<List<Object>, SaneDevice> devices = Maps.newLinkedHashMap();
+    for (Host host : hosts) {
+      for (SaneDevice device : host.getDevices(now)) {
+        List<Object> key = deviceKey(host.address, device.getName());
+        if (!devices.containsKey(key)) {
+          devices.put(key, device);
+        }
+      }
+    }
+    return ImmutableList.copyOf(devices.values());
+  }
+
+  /**
+   * Returns the host and name that identify the device with the given name reported by the given
+   * host. Devices that the host reaches through the {@code net} backend are identified by the host
+   * they are attached to, if it is one of the hosts of this discovery.
+   */
+  private List<Object> deviceKey(InetSocketAddress address, String name) {
+    if (name.startsWith("net:")) {
+      String rest = name.substring("net:".length());
+      int end = rest.startsWith("[") ? rest.indexOf("]:") + 1 : rest.indexOf(':');
+      if (end > 0) {
+        InetSocketAddress target = hostsByName.get(normalizeHostName(rest.substring(0, end)));
+        if (target != null) {
+          return deviceKey(target, rest.substring(end + 1));
+        }
+      }
+    }
+    return ImmutableList.<Object>of(address, name);
+  }
+
+  /**
+   * Returns the given host name or address literal in a canonical form, without resolving it.
+   */
+  private static String normalizeHostName(String name) {
+    String host =
+        name.startsWith("[") && name.endsWith("]") ? name.substring(1, name.length() - 1) : name;
+    if (InetAddresses.isInetAddress(host)) {
+      return InetAddresses.toAddrString(InetAddresses.forString(host));
+    }
+    return host.toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Asks every host for its devices right away, and waits until they have all answered or the
+   * timeout has passed, whichever comes first. Hosts that are still being asked when this method
+   * returns update the inventory when they answer.
+   *
+   * @return the inventory, see {@link #getDevices}
+   * @throws InterruptedException if the thread was interrupted while waiting for the hosts
+   */
+  public List<SaneDevice> refresh() throws InterruptedException {
+    Preconditions.checkState(!closed, "discovery is closed");
+    CountDownLatch answered = new CountDownLatch(hosts.size());
+    startRefresh(answered);
+    answered.await(timeoutNanos, TimeUnit.NANOSECONDS);
+    return getDevices();
+  }
+
+  private void startRefresh(CountDownLatch answered) {
+    for (Host host : hosts) {
+      host.startRefresh(answered);
+    }
+  }
+
+  /**
+   * Stops refreshing the inventory and closes the sessions to all hosts.
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    ScheduledFuture<?> task = refreshTask;
+    if (task != null) {
+      task.cancel(false);
+    }
+    for (Host host : hosts) {
+      host.closeSession();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(SaneDiscovery.class)
+        .add("hosts", hosts.size())
+        .add("timeoutMillis", TimeUnit.NANOSECONDS.toMillis(timeoutNanos))
+        .add("refreshIntervalMillis", TimeUnit.NANOSECONDS.toMillis(refreshIntervalNanos))
+        .add("timeToLiveMillis", TimeUnit.NANOSECONDS.toMillis(timeToLiveNanos))
+        .toString();
+  }
+
+  /**
+   * The cached answer of a single host. At most one request to a host is in flight at any time.
+   */
+  private final class Host {
+    private final InetSocketAddress address;
+
+    // Guarded by this.
+    private SaneSession session;
+    private List<SaneDevice> devices = ImmutableList.of();
+    private long answeredNanos;
+    private boolean refreshing;
+    private final List<CountDownLatch> waiters = Lists.newArrayList();
+
+    private Host(InetSocketAddress address) {
+      this.address = address;
+    }
+
+    synchronized List<SaneDevice> getDevices(long now) {
+      if (now - answeredNanos > timeToLiveNanos) {
+        return ImmutableList.of();
+      }
+      return devices;
+    }
+
+    void startRefresh(CountDownLatch answered) {
+      synchronized (this) {
+        if (answered != null) {
+          waiters.add(answered);
+        }
+        if (refreshing) {
+          return;
+        }
+        refreshing = true;
+      }
+
+      SaneTimer.WORKERS.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              refresh();
+            }
+          });
+    }
+
+    private void refresh() {
+      SaneSession currentSession;
+      synchronized (this) {
+        currentSession = session;
+      }
+
+      try {
+        if (currentSession == null) {
+          long timeoutMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+          currentSession =
+              SaneSession.withRemoteSane(
+                  address.getAddress(),
+                  address.getPort(),
+                  timeoutMillis,
+                  TimeUnit.MILLISECONDS,
+                  timeoutMillis,
+                  TimeUnit.MILLISECONDS);
+        }
+        List<SaneDevice> newDevices = currentSession.listDevices();
+        synchronized (this) {
+          session = currentSession;
+          devices = newDevices;
+          answeredNanos = System.nanoTime();
+        }
+      } catch (IOException | SaneException e) {
+        log.log(Level.WARNING, "Could not list the devices of " + address, e);
+        closeQuietly(currentSession);
+        synchronized (this) {
+          session = null;
+        }
+      } finally {
+        List<CountDownLatch> answered;
+        synchronized (this) {
+          refreshing = false;
+          answered = ImmutableList.copyOf(waiters);
+          waiters.clear();
+        }
+        for (CountDownLatch latch : answered) {
+          latch.countDown();
+        }
+      }
+
+      // The discovery may have been closed while the host was being asked.
+      if (closed) {
+        closeSession();
+      }
+    }
+
+    void closeSession() {
+      SaneSession currentSession;
+      synchronized (this) {
+        currentSession = session;
+        session = null;
+      }
+      closeQuietly(currentSession);
+    }
+
+    private void closeQuietly(SaneSession session) {
+      if (session == null) {
+        return;
+      }
+      try {
+        session.close();
+      } catch (IOException e) {
+        log.log(Level.FINE, "Could not close the session to " + address, e);
+      }
+    }
+  }
+
+  /**
+   * Builds instances of {@link SaneDiscovery}. By default, each host is asked for its devices every
+   * 30 seconds and given 5 seconds to answer, and answers are kept for 90 seconds.
+   */
+  public static final class Builder {
+    private final List<InetSocketAddress> addresses = Lists.newArrayList();
+    private long timeoutNanos = TimeUnit.SECONDS.toNanos(5);
+    private long refreshIntervalNanos = TimeUnit.SECONDS.toNanos(30);
+    private long timeToLiveNanos = TimeUnit.SECONDS.toNanos(90);
+
+    private Builder() {}
+
+    /**
+     * Adds a host whose SANE daemon listens on the default port.
+     */
+    public Builder addHost(InetAddress address) {
+      return addHost(address, SaneSession.DEFAULT_PORT);
+    }
+
+    public Builder addHost(InetAddress address, int port) {
+      Preconditions.checkNotNull(address);
+      addresses.add(new InetSocketAddress(address, port));
+      return this;
+    }
+
+    /**
+     * Sets how long each host is given to connect and to answer.
+     */
+    public Builder setTimeout(long timeout, TimeUnit unit) {
+      Preconditions.checkArgument(timeout > 0, "timeout must be positive");
+      this.timeoutNanos = unit.toNanos(timeout);
+      return this;
+    }
+
+    public Builder setRefreshInterval(long interval, TimeUnit unit) {
+      Preconditions.checkArgument(interval > 0, "interval must be positive");
+      this.refreshIntervalNanos = unit.toNanos(interval);
+      return this;
+    }
+
+    /**
+     * Sets how long the answer of a host is kept when the host stops answering.
+     */
+    public Builder setTimeToLive(long timeToLive, TimeUnit unit) {
+      Preconditions.checkArgument(timeToLive > 0, "timeToLive must be positive");
+      this.timeToLiveNanos = unit.toNanos(timeToLive);
+      return this;
+    }
+
+    /**
+     * Builds the discovery and starts refreshing its inventory in the background.
+     */
+    public SaneDiscovery build() {
+      Preconditions.checkState(!addresses.isEmpty(), "no hosts were added");
+      Preconditions.checkState(
+          timeToLiveNanos >= refreshIntervalNanos,
+          "the time to live must not be shorter than the refresh interval");
+      SaneDiscovery discovery = new SaneDiscovery(this);
+      discovery.start();
+      return discovery;
+    }
+  }
+}
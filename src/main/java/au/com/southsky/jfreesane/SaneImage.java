@@ -1,9 +1,6 @@
 package au.com.southsky.jfreesane;
 
-import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Ordering;
 import com.google.common.collect.Sets;
 
 import java.awt.Point;
@@ -14,100 +11,66 @@ import java.awt.image.ColorModel;
 import java.awt.image.ComponentColorModel;
 import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
 import java.awt.image.DataBufferUShort;
 import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.PixelInterleavedSampleModel;
 import java.awt.image.Raster;
+import java.awt.image.SampleModel;
 import java.awt.image.WritableRaster;
-import java.util.EnumSet;
-import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
- * Represents a SANE image, which are composed of one or more {@link Frame frames}.
+ * Represents a SANE image, which is composed of a single {@link FrameType#GRAY GRAY} or
+ * {@link FrameType#RGB RGB} {@link Frame frame}. The frames of three-pass scans are combined into
+ * one RGB frame by {@link ThreePassFrameAssembler} before they get here.
  */
 final class SaneImage {
   private static final Set<FrameType> singletonFrameTypes =
       Sets.immutableEnumSet(FrameType.GRAY, FrameType.RGB);
 
-  private static final Set<FrameType> redGreenBlueFrameTypes =
-      Sets.immutableEnumSet(FrameType.RED, FrameType.GREEN, FrameType.BLUE);
+  /**
+   * Single-bit color images with at least this many pixels are decoded in parallel.
+   */
+  private static final long PARALLEL_DECODE_THRESHOLD_PIXELS = 1 << 22;
 
-  private final List<Frame> frames;
+  /**
+   * The smallest number of lines that a parallel decoding task will split further.
+   */
+  private static final int PARALLEL_DECODE_MIN_LINES = 64;
+
+  private static final int[] SAMPLE_TABLE = buildSampleTable();
+
+  private final Frame frame;
   private final int depthPerPixel;
   private final int width;
   private final int height;
   private final int bytesPerLine;
 
-  private SaneImage(
-      List<Frame> frames, int depthPerPixel, int width, int height, int bytesPerLine) {
-    // this ensures that in the 3-frame situation, they are always
-    // arranged in the following order: red, green, blue
-    this.frames =
-        Ordering.explicit(
-                FrameType.RED, FrameType.GREEN, FrameType.BLUE, FrameType.RGB, FrameType.GRAY)
-            .onResultOf(
-                new Function<Frame, FrameType>() {
-                  @Override
-                  public FrameType apply(Frame input) {
-                    return input.getType();
-                  }
-                })
-            .immutableSortedCopy(frames);
+  private SaneImage(Frame frame, int depthPerPixel, int width, int height, int bytesPerLine) {
+    this.frame = frame;
     this.depthPerPixel = depthPerPixel;
     this.width = width;
     this.height = height;
     this.bytesPerLine = bytesPerLine;
   }
 
-  private List<Frame> getFrames() {
-    return frames;
+  private Frame getFrame() {
+    return frame;
   }
 
   private int getDepthPerPixel() {
     return depthPerPixel;
   }
 
-  private int getWidth() {
-    return width;
-  }
-
-  private int getHeight() {
-    return height;
-  }
-
-  private int getBytesPerLine() {
-    return bytesPerLine;
-  }
-
   BufferedImage toBufferedImage() {
     DataBuffer buffer = asDataBuffer();
 
-    if (getFrames().size() == redGreenBlueFrameTypes.size()) {
-      // 3 frames, one or two bytes per sample, 3 samples per pixel
-      WritableRaster raster =
-          Raster.createBandedRaster(
-              buffer,
-              getWidth(),
-              getHeight(),
-              getBytesPerLine(),
-              new int[] {0, 1, 2},
-              new int[] {0, 0, 0},
-              new Point(0, 0));
-
-      ColorModel model =
-          new ComponentColorModel(
-              ColorSpace.getInstance(ColorSpace.CS_sRGB),
-              false,
-              false,
-              Transparency.OPAQUE,
-              DataBuffer.TYPE_BYTE);
-
-      return new BufferedImage(model, raster, false, null);
-    }
-
-    // Otherwise we're in a one-frame situation
     if (depthPerPixel == 1) {
-      if (getFrames().get(0).getType() == FrameType.GRAY) {
+      if (getFrame().getType() == FrameType.GRAY) {
         return decodeSingleBitGrayscaleImage(buffer);
       } else {
         return decodeSingleBitColorImage();
@@ -115,35 +78,41 @@ final class SaneImage {
     }
 
     if (getDepthPerPixel() == 8 || getDepthPerPixel() == 16) {
-      ColorSpace colorSpace = ColorSpace.getInstance(ColorSpace.CS_sRGB);
+      // Lay the frame out so that BufferedImage recognizes one of its standard image types
+      // (TYPE_BYTE_GRAY, TYPE_USHORT_GRAY or TYPE_3BYTE_BGR) where possible. Java2D and the
+      // ImageIO writers have optimized loops for these types.
+      ColorSpace colorSpace;
       int[] bandOffsets;
-      int scanlineStride;
 
-      if (getFrames().get(0).getType() == FrameType.GRAY) {
-        bandOffsets = new int[] {0, 0, 0};
-        scanlineStride = 1;
+      if (getFrame().getType() == FrameType.GRAY) {
+        colorSpace = ColorSpace.getInstance(ColorSpace.CS_GRAY);
+        bandOffsets = new int[] {0};
       } else /* RGB */ {
-        bandOffsets = new int[] {0, 1, 2};
-        scanlineStride = 3;
+        colorSpace = ColorSpace.getInstance(ColorSpace.CS_sRGB);
+        if (getDepthPerPixel() == 8 && getFrame().getData() != null) {
+          buffer = new DataBufferByte(toBgr(getFrame().getData()), getFrame().getSizeInBytes());
+          bandOffsets = new int[] {2, 1, 0};
+        } else {
+          // There is no standard 16-bit RGB image type, and images backed by off-heap frames
+          // cannot have a standard type, so we leave the samples as they are.
+          bandOffsets = new int[] {0, 1, 2};
+        }
       }
 
+      int dataType = getDepthPerPixel() == 8 ? DataBuffer.TYPE_BYTE : DataBuffer.TYPE_USHORT;
       WritableRaster raster =
-          Raster.createInterleavedRaster(
-              buffer,
-              width,
-              height,
-              bytesPerLine * Byte.SIZE / depthPerPixel,
-              scanlineStride,
-              bandOffsets,
-              new Point(0, 0));
+          createRaster(
+              new PixelInterleavedSampleModel(
+                  dataType,
+                  width,
+                  height,
+                  bandOffsets.length,
+                  bytesPerLine * Byte.SIZE / depthPerPixel,
+                  bandOffsets),
+              buffer);
 
       ColorModel model =
-          new ComponentColorModel(
-              colorSpace,
-              false,
-              false,
-              Transparency.OPAQUE,
-              getDepthPerPixel() == 8 ? DataBuffer.TYPE_BYTE : DataBuffer.TYPE_USHORT);
+          new ComponentColorModel(colorSpace, false, false, Transparency.OPAQUE, dataType);
 
       return new BufferedImage(model, raster, false, null);
     }
@@ -151,8 +120,30 @@ final class SaneImage {
     throw new IllegalStateException("Unsupported SaneImage type");
   }
 
+  /**
+   * Returns a copy of 8-bit RGB pixels in BGR order, the layout of
+   * {@link BufferedImage#TYPE_3BYTE_BGR}. The frame is left as it is, since its data may also have
+   * been handed out through {@link SaneRawImage#getData}.
+   */
+  private byte[] toBgr(byte[] data) {
+    byte[] result = new byte[frame.getSizeInBytes()];
+    for (int y = 0; y < height; y++) {
+      int lineEnd = y * bytesPerLine + width * 3;
+      for (int i = y * bytesPerLine; i < lineEnd; i += 3) {
+        result[i] = data[i + 2];
+        result[i + 1] = data[i + 1];
+        result[i + 2] = data[i];
+      }
+    }
+    return result;
+  }
+
   private BufferedImage decodeSingleBitGrayscaleImage(DataBuffer buffer) {
-    WritableRaster raster = Raster.createPackedRaster(buffer, width, height, 1, new Point(0, 0));
+    WritableRaster raster =
+        createRaster(
+            new MultiPixelPackedSampleModel(
+                DataBuffer.TYPE_BYTE, width, height, 1, bytesPerLine, 0),
+            buffer);
     return new BufferedImage(
         new IndexColorModel(
             1,
@@ -166,62 +157,135 @@ final class SaneImage {
   }
 
   private BufferedImage decodeSingleBitColorImage() {
-    byte[] data = frames.get(0).getData();
+    byte[] data = frame.getData();
+    if (data == null) {
+      // The decoded image is on the heap and much larger than the frame, so copying an off-heap
+      // frame to the heap first costs comparatively little.
+      data = new byte[frame.getSizeInBytes()];
+      frame.getBuffer().duplicate().get(data);
+    }
     BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
 
-    int componentCount = 3; // red, green, blue. One bit per sample,
-    // byte interleaved
+    SingleBitColorDecoder decoder = new SingleBitColorDecoder(data, pixels, 0, height);
+    if ((long) width * height >= PARALLEL_DECODE_THRESHOLD_PIXELS) {
+      DecodingPool.INSTANCE.invoke(decoder);
+    } else {
+      decoder.compute();
+    }
 
-    for (int y = 0; y < height; y++) {
-      for (int x = 0; x < width; x++) {
-        int lineStartByte = y * bytesPerLine;
-        int offsetWithinLine = (x / Byte.SIZE) * componentCount;
-        int offsetWithinByte = 1 << (Byte.SIZE - (x % Byte.SIZE) - 1);
+    return image;
+  }
+
+  /**
+   * Holds the pool that large images are decoded in, which is only created once one is decoded.
+   * Its worker threads are daemon threads.
+   */
+  private static final class DecodingPool {
+    static final ForkJoinPool INSTANCE = new ForkJoinPool();
+  }
 
-        boolean red = (data[lineStartByte + offsetWithinLine] & offsetWithinByte) != 0;
-        boolean green = (data[lineStartByte + offsetWithinLine + 1] & offsetWithinByte) != 0;
-        boolean blue = (data[lineStartByte + offsetWithinLine + 2] & offsetWithinByte) != 0;
+  /**
+   * Expands the byte-interleaved 1-bit red, green and blue samples of a range of lines into packed
+   * {@code TYPE_INT_RGB} pixels. Ranges larger than {@link #PARALLEL_DECODE_MIN_LINES} lines are
+   * split in half and decoded in parallel when this task is run in a {@link ForkJoinPool}.
+   */
+  @SuppressWarnings("serial")
+  private final class SingleBitColorDecoder extends RecursiveAction {
+    private final byte[] data;
+    private final int[] pixels;
+    private final int startLine;
+    private final int endLine;
+
+    SingleBitColorDecoder(byte[] data, int[] pixels, int startLine, int endLine) {
+      this.data = data;
+      this.pixels = pixels;
+      this.startLine = startLine;
+      this.endLine = endLine;
+    }
 
-        int rgb = red ? 0xff0000 : 0;
-        rgb |= green ? 0x00ff00 : 0;
-        rgb |= blue ? 0x0000ff : 0;
+    @Override
+    protected void compute() {
+      if (endLine - startLine > PARALLEL_DECODE_MIN_LINES && inForkJoinPool()) {
+        int middle = (startLine + endLine) >>> 1;
+        invokeAll(
+            new SingleBitColorDecoder(data, pixels, startLine, middle),
+            new SingleBitColorDecoder(data, pixels, middle, endLine));
+        return;
+      }
 
-        image.setRGB(x, y, rgb);
+      for (int y = startLine; y < endLine; y++) {
+        decodeLine(y);
       }
     }
 
-    return image;
-  }
-
-  private DataBuffer asDataBuffer() {
-    if (depthPerPixel == 1 || depthPerPixel == 8) {
-      byte[][] buffers = new byte[getFrames().size()][];
+    private void decodeLine(int y) {
+      int input = y * bytesPerLine;
+      int output = y * width;
+      int lineEnd = output + width;
+
+      // Each group of 3 bytes holds the red, green and blue samples of 8 pixels.
+      while (output < lineEnd) {
+        int red = (data[input] & 0xff) * Byte.SIZE;
+        int green = (data[input + 1] & 0xff) * Byte.SIZE;
+        int blue = (data[input + 2] & 0xff) * Byte.SIZE;
+        int pixelCount = Math.min(Byte.SIZE, lineEnd - output);
+
+        for (int i = 0; i < pixelCount; i++) {
+          pixels[output++] =
+              (SAMPLE_TABLE[red + i] << 16)
+                  | (SAMPLE_TABLE[green + i] << 8)
+                  | SAMPLE_TABLE[blue + i];
+        }
 
-      for (int i = 0; i < getFrames().size(); i++) {
-        buffers[i] = getFrames().get(i).getData();
+        input += 3;
       }
+    }
+  }
 
-      return new DataBufferByte(buffers, getFrames().get(0).getData().length);
-    } else {
-      short[][] buffers = new short[getFrames().size()][];
-      int stride = Short.SIZE / Byte.SIZE;
-
-      for (int i = 0; i < getFrames().size(); i++) {
-        byte[] bank = getFrames().get(i).getData();
-        buffers[i] = new short[bank.length / stride];
-        for (int j = 0; j < buffers[i].length; j++) {
-          buffers[i][j] = (short) ((bank[stride * j] & 0xFF) << Byte.SIZE);
-          buffers[i][j] |= (short) (bank[stride * j + 1] & 0xFF);
-        }
+  /**
+   * Returns a table that maps {@code byteValue * 8 + bitIndex} to {@code 0xff} if the bit at the
+   * given index (counting from the most significant bit) of {@code byteValue} is set, {@code 0}
+   * otherwise.
+   */
+  private static int[] buildSampleTable() {
+    int[] table = new int[256 * Byte.SIZE];
+    for (int value = 0; value < 256; value++) {
+      for (int bit = 0; bit < Byte.SIZE; bit++) {
+        table[value * Byte.SIZE + bit] = (value & (0x80 >> bit)) != 0 ? 0xff : 0;
       }
+    }
+    return table;
+  }
+
+  /**
+   * Creates a raster of {@code buffer}. Before Java 9, the {@link Raster} factories reject data
+   * buffers other than the JDK's own array-backed ones, such as the {@link ByteBufferDataBuffer} of
+   * an off-heap frame, so those get a plain {@link WritableRaster} instead.
+   */
+  private static WritableRaster createRaster(SampleModel sampleModel, DataBuffer buffer) {
+    if (buffer instanceof DataBufferByte || buffer instanceof DataBufferUShort) {
+      return Raster.createWritableRaster(sampleModel, buffer, new Point(0, 0));
+    }
+    return new WritableRaster(sampleModel, buffer, new Point(0, 0)) {};
+  }
+
+  private DataBuffer asDataBuffer() {
+    if (getFrame().getBuffer() != null) {
+      return new ByteBufferDataBuffer(
+          depthPerPixel == 16 ? DataBuffer.TYPE_USHORT : DataBuffer.TYPE_BYTE,
+          getFrame().getBuffer());
+    }
 
-      return new DataBufferUShort(buffers, getFrames().get(0).getData().length / stride);
+    if (depthPerPixel == 1 || depthPerPixel == 8) {
+      return new DataBufferByte(getFrame().getData(), getFrame().getSizeInBytes());
+    } else {
+      return new DataBufferUShort(getFrame().getSamples(), getFrame().getSampleCount());
     }
   }
 
   public static class Builder {
-    private final List<Frame> frames = Lists.newArrayList();
-    private final Set<FrameType> frameTypes = EnumSet.noneOf(FrameType.class);
+    private Frame frame;
 
     private final WriteOnce<Integer> depthPerPixel = new WriteOnce<Integer>();
     private final WriteOnce<Integer> width = new WriteOnce<Integer>();
@@ -230,19 +294,17 @@ final class SaneImage {
 
     public void addFrame(Frame frame) {
       Preconditions.checkArgument(
-          !frameTypes.contains(frame.getType()), "Image already contains a frame of this type");
+          singletonFrameTypes.contains(frame.getType()),
+          "Frames of type %s must be combined using ThreePassFrameAssembler",
+          frame.getType());
       Preconditions.checkArgument(
-          frameTypes.isEmpty() || !singletonFrameTypes.contains(frame.getType()),
-          "The frame type is singleton but this image " + "contains another frame");
-      Preconditions.checkArgument(
-          frames.isEmpty() || frames.get(0).getData().length == frame.getData().length,
-          "new frame has an inconsistent size");
+          this.frame == null,
+          "The frame type is singleton but this image contains another frame");
       setPixelDepth(frame.getPixelDepth());
       setBytesPerLine(frame.getBytesPerLine());
       setWidth(frame.getWidth());
       setHeight(frame.getHeight());
-      frameTypes.add(frame.getType());
-      frames.add(frame);
+      this.frame = frame;
     }
 
     public void setPixelDepth(int newDepth) {
@@ -263,28 +325,14 @@ final class SaneImage {
     }
 
     public SaneImage build() {
-      Preconditions.checkState(!frames.isEmpty(), "no frames");
+      Preconditions.checkState(frame != null, "no frames");
       Preconditions.checkState(depthPerPixel.get() != null, "setPixelDepth must be called");
       Preconditions.checkState(width.get() != null, "setWidth must be called");
       Preconditions.checkState(height.get() != null, "setHeight must be called");
       Preconditions.checkState(bytesPerLine.get() != null, "setBytesPerLine must be called");
 
-      // does the image contains a single instance of a singleton
-      // frame?
-      if (frames.size() == 1 && singletonFrameTypes.contains(frames.get(0).getType())) {
-        return new SaneImage(
-            frames, depthPerPixel.get(), width.get(), height.get(), bytesPerLine.get());
-      }
-
-      // otherwise, does it contain a red, green and blue frame?
-      if (frames.size() == redGreenBlueFrameTypes.size()
-          && redGreenBlueFrameTypes.containsAll(frameTypes)) {
-        return new SaneImage(
-            frames, depthPerPixel.get(), width.get(), height.get(), bytesPerLine.get());
-      }
-
-      throw new IllegalStateException(
-          "Image is not fully constructed. Frame types present: " + frameTypes);
+      return new SaneImage(
+          frame, depthPerPixel.get(), width.get(), height.get(), bytesPerLine.get());
     }
   }
 
@@ -10,8 +10,10 @@ import com.google.common.collect.Sets;
 import com.google.common.io.ByteStreams;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -156,8 +158,22 @@ public class SaneOption {
     }
   }
 
-  static List<SaneOption> optionsFor(SaneDevice device) throws IOException {
+  static List<SaneOption> optionsFor(final SaneDevice device) throws IOException {
     Preconditions.checkState(device.isOpen(), "you must open() the device first");
+    return device
+        .getSession()
+        .execute(
+            true,
+            new SaneSession.ControlRequest<List<SaneOption>, RuntimeException>() {
+              @Override
+              public List<SaneOption> run() throws IOException {
+                device.clearOptionGroups();
+                return readOptionDescriptors(device);
+              }
+            });
+  }
+
+  private static List<SaneOption> readOptionDescriptors(SaneDevice device) throws IOException {
     List<SaneOption> options = Lists.newArrayList();
     SaneSession session = device.getSession();
 
@@ -426,33 +442,59 @@ public class SaneOption {
     Preconditions.checkState(isReadable(), "option is not readable");
     Preconditions.checkState(isActive(), "option is not active");
 
+    return device
+        .getSession()
+        .execute(
+            true,
+            new SaneSession.ControlRequest<ControlOptionResult, SaneException>() {
+              @Override
+              public ControlOptionResult run() throws IOException, SaneException {
+                return requestValue(device, optionNumber, getValueType(), getSize());
+              }
+            });
+  }
+
+  /**
+   * Reads the value of option 0, which every device has and which holds the number of options. This
+   * is the cheapest request that involves the device. Must be called with the session's control
+   * lock held.
+   */
+  static int readOptionCount(SaneDevice device) throws IOException, SaneException {
+    ControlOptionResult result =
+        requestValue(device, 0, OptionValueType.INT, SaneWord.SIZE_IN_BYTES);
+    return SaneWord.fromBytes(result.getValue(), 0).integerValue();
+  }
+
+  private static ControlOptionResult requestValue(
+      SaneDevice device, int optionNumber, OptionValueType valueType, int size)
+      throws IOException, SaneException {
     SaneOutputStream out = device.getSession().getOutputStream();
     out.write(SaneRpcCode.SANE_NET_CONTROL_OPTION);
     out.write(device.getHandle().getHandle());
     out.write(SaneWord.forInt(optionNumber));
     out.write(OptionAction.GET_VALUE);
 
-    out.write(getValueType());
-    out.write(SaneWord.forInt(getSize()));
+    out.write(valueType);
+    out.write(SaneWord.forInt(size));
 
     int elementCount;
 
-    switch (getValueType()) {
+    switch (valueType) {
       case BOOLEAN:
       case FIXED:
       case INT:
-        elementCount = getSize() / SaneWord.SIZE_IN_BYTES;
+        elementCount = size / SaneWord.SIZE_IN_BYTES;
         break;
       case STRING:
-        elementCount = getSize();
+        elementCount = size;
         break;
       default:
-        throw new IllegalStateException("Unsupported type " + getValueType());
+        throw new IllegalStateException("Unsupported type " + valueType);
     }
 
     out.write(SaneWord.forInt(elementCount));
 
-    for (int i = 0; i < getSize(); i++) {
+    for (int i = 0; i < size; i++) {
       out.write(0); // why do we need to provide a value
       // buffer in an RPC call ???
     }
@@ -604,26 +646,11 @@ public class SaneOption {
     Preconditions.checkState(isWriteable(), "option is not writeable");
     Preconditions.checkState(isActive(), "option is not active");
 
-    SaneOutputStream out = device.getSession().getOutputStream();
-    out.write(SaneRpcCode.SANE_NET_CONTROL_OPTION);
-    out.write(device.getHandle().getHandle());
-    out.write(SaneWord.forInt(optionNumber));
-    out.write(SaneWord.forInt(OptionAction.SET_VALUE.getWireValue()));
-    out.write(getValueType());
-
-    out.write(SaneWord.forInt(value.size() * SaneWord.SIZE_IN_BYTES));
-
-    // Write the pointer to the words
-    out.write(SaneWord.forInt(value.size()));
-
-    for (SaneWord element : value) {
-      // and the words themselves
-      out.write(element);
-    }
-
-    out.flush();
-
-    ControlOptionResult result = handleWriteResponse();
+    ControlOptionResult result =
+        writeValue(
+            new ValueWrite(
+                optionNumber, getValueType(), value.size() * SaneWord.SIZE_IN_BYTES, value, null),
+            true);
     if (result.getInfo().contains(OptionWriteInfo.RELOAD_OPTIONS)
         || result.getInfo().contains(OptionWriteInfo.RELOAD_PARAMETERS)) {
       device.invalidateOptions();
@@ -635,22 +662,10 @@ public class SaneOption {
 
   private ControlOptionResult writeOption(String value) throws IOException, SaneException {
     Preconditions.checkState(getValueType() == OptionValueType.STRING);
-    SaneOutputStream out = device.getSession().getOutputStream();
-    out.write(SaneRpcCode.SANE_NET_CONTROL_OPTION);
-    out.write(SaneWord.forInt(device.getHandle().getHandle().integerValue()));
-    out.write(SaneWord.forInt(this.optionNumber));
-    out.write(SaneWord.forInt(OptionAction.SET_VALUE.getWireValue()));
-    out.write(getValueType());
-
     // even if the string is empty, we still write out at least 1 byte (null
     // terminator)
-    out.write(SaneWord.forInt(value.length() + 1));
-
-    // write(String) takes care of writing the size for us
-    out.write(value);
-    out.flush();
-
-    return handleWriteResponse();
+    return writeValue(
+        new ValueWrite(optionNumber, getValueType(), value.length() + 1, null, value), true);
   }
 
   private ControlOptionResult writeOption(SaneWord word) throws IOException, SaneException {
@@ -665,35 +680,73 @@ public class SaneOption {
         "option %s is %s-typed, you must use the corresponding methods to set the value",
         getName(),
         getValueType());
-    SaneOutputStream out = device.getSession().getOutputStream();
-    out.write(SaneRpcCode.SANE_NET_CONTROL_OPTION);
-    out.write(device.getHandle().getHandle());
-    out.write(SaneWord.forInt(optionNumber));
-    out.write(OptionAction.SET_VALUE);
-    out.write(getValueType());
-    out.write(SaneWord.forInt(getSize()));
-    out.write(SaneWord.forInt(value.size()));
+    List<SaneWord> words = Lists.newArrayList();
     for (Integer element : value) {
-      out.write(SaneWord.forInt(element));
+      words.add(SaneWord.forInt(element));
     }
-    out.flush();
-
-    return handleWriteResponse();
+    return writeValue(new ValueWrite(optionNumber, getValueType(), getSize(), words, null), true);
   }
 
   private ControlOptionResult writeButtonOption() throws IOException, SaneException {
     Preconditions.checkState(getValueType() == OptionValueType.BUTTON);
-    SaneOutputStream out = device.getSession().getOutputStream();
-    out.write(SaneRpcCode.SANE_NET_CONTROL_OPTION);
-    out.write(device.getHandle().getHandle());
-    out.write(SaneWord.forInt(this.optionNumber));
-    out.write(OptionAction.SET_VALUE);
-    out.write(getValueType());
-    out.write(SaneWord.forInt(0));
-    out.write(SaneWord.forInt(0)); // only one value follows
+    // Pressing a button is not repeatable, so it is neither retried nor restored.
+    return writeValue(
+        new ValueWrite(optionNumber, getValueType(), 0, ImmutableList.<SaneWord>of(), null),
+        false);
+  }
+
+  /**
+   * Sends {@code write} to the device. A repeatable write is retried if the session reconnects
+   * while it is in flight, and is remembered by the device so that it can be restored after the
+   * session reconnects later.
+   */
+  private ControlOptionResult writeValue(final ValueWrite write, final boolean repeatable)
+      throws IOException, SaneException {
+    return device
+        .getSession()
+        .execute(
+            repeatable,
+            new SaneSession.ControlRequest<ControlOptionResult, SaneException>() {
+              @Override
+              public ControlOptionResult run() throws IOException, SaneException {
+                SaneOutputStream out = device.getSession().getOutputStream();
+                write.writeTo(out, device.getHandle());
+                out.flush();
+
+                ControlOptionResult result = handleWriteResponse();
+                if (repeatable) {
+                  device.rememberOptionValue(write);
+                }
+                return result;
+              }
+            });
+  }
+
+  /**
+   * Sets each option of the given devices to the value it was last set to, for example after the
+   * devices were re-opened on a new connection. All requests are written before any reply is read,
+   * so restoring the values takes a single round trip. Values that the device no longer accepts
+   * are skipped. Must be called with the session's control lock held.
+   */
+  static void restoreValues(SaneSession session, Collection<SaneDevice> devices)
+      throws IOException {
+    SaneOutputStream out = session.getOutputStream();
+    int requestCount = 0;
+    for (SaneDevice device : devices) {
+      for (ValueWrite write : device.getOptionValues()) {
+        write.writeTo(out, device.getHandle());
+        requestCount++;
+      }
+    }
     out.flush();
 
-    return handleWriteResponse();
+    for (int i = 0; i < requestCount; i++) {
+      try {
+        ControlOptionResult.fromSession(session);
+      } catch (SaneException e) {
+        logger.log(Level.FINE, "could not restore option value", e);
+      }
+    }
   }
 
   private ControlOptionResult handleWriteResponse() throws IOException, SaneException {
@@ -722,6 +775,53 @@ public class SaneOption {
     return descriptor.getOptionCapabilities().contains(OptionCapability.HARD_SELECT);
   }
 
+  /**
+   * A {@code SANE_NET_CONTROL_OPTION} (RPC code 5) request that sets the value of an option. The
+   * value is either a list of words or a string.
+   */
+  static final class ValueWrite {
+    private final int optionNumber;
+    private final OptionValueType type;
+    private final int size;
+    private final List<SaneWord> words;
+    private final String string;
+
+    private ValueWrite(
+        int optionNumber, OptionValueType type, int size, List<SaneWord> words, String string) {
+      this.optionNumber = optionNumber;
+      this.type = type;
+      this.size = size;
+      this.words = words == null ? null : ImmutableList.copyOf(words);
+      this.string = string;
+    }
+
+    int getOptionNumber() {
+      return optionNumber;
+    }
+
+    void writeTo(SaneOutputStream out, SaneDeviceHandle handle) throws IOException {
+      out.write(SaneRpcCode.SANE_NET_CONTROL_OPTION);
+      out.write(handle.getHandle());
+      out.write(SaneWord.forInt(optionNumber));
+      out.write(OptionAction.SET_VALUE);
+      out.write(type);
+      out.write(SaneWord.forInt(size));
+
+      if (string != null) {
+        // write(String) takes care of writing the size for us
+        out.write(string);
+      } else {
+        // Write the pointer to the words
+        out.write(SaneWord.forInt(words.size()));
+
+        for (SaneWord element : words) {
+          // and the words themselves
+          out.write(element);
+        }
+      }
+    }
+  }
+
   /**
    * Represents the result of calling {@code SANE_NET_CONTROL_OPTION} (RPC code 5).
    */
@@ -756,11 +856,6 @@ public class SaneOption {
       // SANE_String *resource
       // See http://sane-project.org/html/doc017.html#s5.2.6.
       SaneWord status = stream.readWord();
-
-      if (status.integerValue() != 0) {
-        throw SaneException.fromStatusWord(status);
-      }
-
       int info = stream.readWord().integerValue();
 
       OptionValueType type =
@@ -802,9 +897,11 @@ public class SaneOption {
           }
         }
 
-        if (status.integerValue() != 0) {
-          throw SaneException.fromStatusWord(status);
-        }
+      }
+
+      // The whole reply is read even if it reports an error, so that the next reply can be read.
+      if (status.integerValue() != 0) {
+        throw SaneException.fromStatusWord(status);
       }
 
       return new ControlOptionResult(status.integerValue(), info, type, valueSize, value, resource);
@@ -0,0 +1,161 @@
+package au.com.southsky.jfreesane;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.List;
+
+/**
+ * Represents an image acquired from SANE exactly as it was delivered by the daemon, without any
+ * conversion to a {@link BufferedImage}. Use {@link SaneDevice#acquireRaw} to obtain one.
+ *
+ * <p>
+ * A raw image consists of one or more frames. Typically there is only one frame. Older three-pass
+ * color scanners deliver one frame for each of the red, green and blue bands, JFreeSane combines
+ * these into a single pixel-interleaved {@link FrameType#RGB RGB} frame as they are received.
+ *
+ * <p>
+ * Nothing in the {@code java.awt} packages is used by this class unless {@link #toBufferedImage}
+ * is called, so raw images are suitable for headless applications that simply forward the pixel
+ * data elsewhere.
+ */
+public final class SaneRawImage {
+  private final List<Frame> frames;
+  private BufferedImage bufferedImage;
+  private boolean released;
+
+  SaneRawImage(List<Frame> frames) {
+    Preconditions.checkArgument(!frames.isEmpty(), "no frames");
+    this.frames = ImmutableList.copyOf(frames);
+  }
+
+  /**
+   * Returns the number of frames in this image.
+   */
+  public int getFrameCount() {
+    return frames.size();
+  }
+
+  /**
+   * Returns the parameters that SANE supplied for the given frame. The line count of these
+   * parameters is always the number of lines actually acquired.
+   *
+   * @throws IndexOutOfBoundsException if {@code frameIndex} is not a valid frame index
+   */
+  public SaneParameters getParameters(int frameIndex) {
+    return frames.get(frameIndex).getParameters();
+  }
+
+  /**
+   * Returns the type of the given frame. This is shorthand for
+   * {@code getParameters(frameIndex).getFrameType()}.
+   *
+   * @throws IndexOutOfBoundsException if {@code frameIndex} is not a valid frame index
+   */
+  public FrameType getFrameType(int frameIndex) {
+    return frames.get(frameIndex).getType();
+  }
+
+  /**
+   * Returns a read-only view of the bytes of the given 1-bit or 8-bit frame. The layout of the
+   * bytes is described by the frame's {@link #getParameters parameters}, see the SANE specification
+   * for details.
+   *
+   * @throws IndexOutOfBoundsException if {@code frameIndex} is not a valid frame index
+   * @throws IllegalStateException if the frame is a 16-bit frame, use {@link #getSamples} instead,
+   *     or this image has been released
+   */
+  public synchronized ByteBuffer getData(int frameIndex) {
+    Frame frame = frames.get(frameIndex);
+    Preconditions.checkState(!released, "this image has been released");
+    Preconditions.checkState(
+        frame.getPixelDepth() != 16, "16-bit frames must be read using getSamples");
+    frame.markExposed();
+    if (frame.getBuffer() != null) {
+      return frame.getBuffer().asReadOnlyBuffer();
+    }
+    return ByteBuffer.wrap(frame.getData(), 0, frame.getSizeInBytes())
+        .slice()
+        .asReadOnlyBuffer();
+  }
+
+  /**
+   * Returns a read-only view of the samples of the given 16-bit frame. Samples are already in host
+   * order, regardless of the byte order used by the SANE daemon.
+   *
+   * @throws IndexOutOfBoundsException if {@code frameIndex} is not a valid frame index
+   * @throws IllegalStateException if the frame is not a 16-bit frame, use {@link #getData} instead,
+   *     or this image has been released
+   */
+  public synchronized ShortBuffer getSamples(int frameIndex) {
+    Frame frame = frames.get(frameIndex);
+    Preconditions.checkState(!released, "this image has been released");
+    Preconditions.checkState(
+        frame.getPixelDepth() == 16, "only 16-bit frames can be read using getSamples");
+    frame.markExposed();
+    if (frame.getBuffer() != null) {
+      ByteBuffer buffer = frame.getBuffer();
+      return buffer.duplicate().order(buffer.order()).asShortBuffer().asReadOnlyBuffer();
+    }
+    return ShortBuffer.wrap(frame.getSamples(), 0, frame.getSampleCount())
+        .slice()
+        .asReadOnlyBuffer();
+  }
+
+  /**
+   * Converts this image to a {@link BufferedImage}. The conversion happens at most once, subsequent
+   * calls return the same instance.
+   *
+   * <p>
+   * To avoid copying, the returned image shares its pixel storage with this raw image, except for
+   * 8-bit RGB frames on the heap, whose samples are copied into the BGR order that Java2D handles
+   * fastest. The frames themselves are never modified, so buffers returned by {@link #getData} keep
+   * their contents.
+   *
+   * @throws IllegalStateException if the frames do not make up a complete image, or this image has
+   *     been released
+   */
+  public synchronized BufferedImage toBufferedImage() {
+    Preconditions.checkState(!released, "this image has been released");
+    if (bufferedImage == null) {
+      SaneImage.Builder builder = new SaneImage.Builder();
+      for (Frame frame : frames) {
+        frame.markExposed();
+        builder.addFrame(frame);
+      }
+      bufferedImage = builder.build().toBufferedImage();
+    }
+
+    return bufferedImage;
+  }
+
+  /**
+   * Releases the storage of this image right away. For images acquired with
+   * {@link FrameStorage#DIRECT} or {@link FrameStorage#MAPPED_FILE} storage (see
+   * {@link SaneSession#setFrameStorage}), off-heap memory is freed and temporary files are deleted
+   * without waiting for the garbage collector. For images acquired on the heap, the frame arrays
+   * are returned to the session's {@link ScanBufferPool} so that later scans can reuse them.
+   *
+   * <p>
+   * Storage that buffers or a {@link BufferedImage} obtained from this image still refer to is
+   * neither freed nor reused here, but left to the garbage collector, so such views stay safe to
+   * read and keep their contents. This image itself may not be used afterwards. Releasing an image
+   * more than once has no further effect.
+   *
+   * @throws IOException if a temporary file could not be closed
+   */
+  public synchronized void release() throws IOException {
+    if (released) {
+      return;
+    }
+    released = true;
+    bufferedImage = null;
+    for (Frame frame : frames) {
+      frame.release();
+    }
+  }
+}
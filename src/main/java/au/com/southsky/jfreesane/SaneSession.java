@@ -1,37 +1,118 @@
 package au.com.southsky.jfreesane;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import java.awt.image.BufferedImage;
 import java.io.BufferedInputStream;
 import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Represents a conversation taking place with a SANE daemon.
  *
+ * <p>
+ * A session may be shared by several threads, each using its own {@link SaneDevice}. Requests on
+ * the control connection are serialized, but each scan reads its image data over a connection of
+ * its own, so scans on different devices of the same daemon proceed in parallel. A single
+ * {@link SaneDevice} must still not be used by several threads at once.
+ *
  * @author James Ring (sjr@jdns.org)
  */
 public final class SaneSession implements Closeable {
+  private static final Logger log = Logger.getLogger(SaneSession.class.getName());
+
+  /**
+   * The size of the buffer in front of the data socket. It only needs to hold record headers and
+   * the odd small record: {@link BufferedInputStream} hands reads at least this large straight to
+   * the socket, so the bulk of each large record is read directly into the frame array.
+   */
+  private static final int READ_BUFFER_SIZE = 1 << 13; // 8kb
+  static final int DEFAULT_PORT = 6566;
+
+  private final InetSocketAddress saneAddress;
+  private final int connectTimeoutMillis;
+  private final int soTimeoutMillis;
+
+  /**
+   * Serializes requests on the control connection. The lock is held from the moment a request is
+   * written until its reply has been read, but not while image data is read. It is fair, so a
+   * thread that is scanning page after page does not starve other threads.
+   */
+  private final ReentrantLock controlLock = new ReentrantLock(true);
+
+  // Guarded by controlLock. The connection is replaced when the session reconnects.
+  private Socket socket;
+  private SaneOutputStream outputStream;
+  private SaneInputStream inputStream;
+  private final Set<SaneDevice> openDevices = Sets.newLinkedHashSet();
+  private boolean closed;
+  private long lastRequestNanos = System.nanoTime();
 
-  private static final int READ_BUFFER_SIZE = 1 << 20; // 1mb
-  private static final int DEFAULT_PORT = 6566;
+  private final AtomicInteger activeScans = new AtomicInteger();
 
-  private final Socket socket;
-  private final SaneOutputStream outputStream;
-  private final SaneInputStream inputStream;
-  private SanePasswordProvider passwordProvider = SanePasswordProvider.usingDotSanePassFile();
+  // Written with controlLock held. Set when the control connection itself fails, as opposed to the
+  // daemon reporting an error.
+  private volatile boolean connectionBroken;
 
-  private SaneSession(Socket socket) throws IOException {
-    this.socket = socket;
-    this.outputStream = new SaneOutputStream(socket.getOutputStream());
-    this.inputStream = new SaneInputStream(this, socket.getInputStream());
+  private final Object keepaliveLock = new Object();
+  private volatile long keepaliveIntervalNanos = 0;
+  private volatile long smoothedRoundTripNanos = -1;
+
+  // Guarded by keepaliveLock. The generation is advanced whenever the keepalive is reconfigured,
+  // which stops the probes scheduled for an earlier generation.
+  private int keepaliveGeneration;
+  private ScheduledFuture<?> keepaliveTask;
+
+  private volatile SanePasswordProvider passwordProvider =
+      SanePasswordProvider.usingDotSanePassFile();
+  private volatile FrameStoragePolicy frameStoragePolicy =
+      FrameStoragePolicy.always(FrameStorage.HEAP);
+  private volatile ScanBufferPool bufferPool = ScanBufferPool.none();
+  private volatile ScanWatchdog scanWatchdog = null;
+  private volatile ReconnectPolicy reconnectPolicy = null;
+  private final AtomicReference<SaneCapture> capture = new AtomicReference<SaneCapture>();
+
+  private SaneSession(
+      InetSocketAddress saneAddress, int connectTimeoutMillis, int soTimeoutMillis) {
+    this.saneAddress = saneAddress;
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.soTimeoutMillis = soTimeoutMillis;
+  }
+
+  /**
+   * A request on the control connection, see {@link SaneSession#execute}.
+   *
+   * @param <T> the type of the decoded reply
+   * @param <X> the type of application-level error the request may fail with
+   */
+  interface ControlRequest<T, X extends Exception> {
+    /**
+     * Writes the request and reads its reply. Uses the session's current streams, which are
+     * replaced if the session reconnects.
+     */
+    T run() throws IOException, X;
   }
 
   /**
@@ -52,6 +133,288 @@ public final class SaneSession implements Closeable {
     this.passwordProvider = Preconditions.checkNotNull(passwordProvider);
   }
 
+  /**
+   * Returns the policy that decides where the pixel data of acquired images is kept. By default,
+   * all pixel data is kept on the heap.
+   */
+  public FrameStoragePolicy getFrameStoragePolicy() {
+    return frameStoragePolicy;
+  }
+
+  /**
+   * Sets the policy that decides where the pixel data of images acquired in this session is kept.
+   * A policy may be shared between sessions, in which case its memory budget applies to all of them
+   * together. Throws {@link NullPointerException} if {@code frameStoragePolicy} is {@code null}.
+   *
+   * <p>
+   * Images kept off the heap do not have one of the standard {@link BufferedImage} types, so
+   * drawing and encoding them is slower than for images kept on the heap. The frames of three-pass
+   * scans are always kept on the heap.
+   */
+  public void setFrameStoragePolicy(FrameStoragePolicy frameStoragePolicy) {
+    this.frameStoragePolicy = Preconditions.checkNotNull(frameStoragePolicy);
+  }
+
+  /**
+   * Keeps the pixel data of all images acquired in this session in the given storage. Very large
+   * scans may be kept outside of the Java heap by using {@link FrameStorage#DIRECT} or
+   * {@link FrameStorage#MAPPED_FILE}. Such images may be released as soon as they are no longer
+   * needed using {@link SaneRawImage#release}. This is equivalent to
+   * {@code setFrameStoragePolicy(FrameStoragePolicy.always(frameStorage))}.
+   */
+  public void setFrameStorage(FrameStorage frameStorage) {
+    setFrameStoragePolicy(FrameStoragePolicy.always(frameStorage));
+  }
+
+  /**
+   * Returns the pool from which acquisitions in this session borrow their buffers. By default,
+   * this is {@link ScanBufferPool#none}.
+   */
+  public ScanBufferPool getBufferPool() {
+    return bufferPool;
+  }
+
+  /**
+   * Sets the pool from which acquisitions in this session borrow their frame arrays and read
+   * buffers. Frame arrays are returned to the pool when an image is released with
+   * {@link SaneRawImage#release}, so batch scans that release each page after processing it run
+   * with almost no allocation. Throws {@link NullPointerException} if {@code bufferPool} is
+   * {@code null}.
+   */
+  public void setBufferPool(ScanBufferPool bufferPool) {
+    this.bufferPool = Preconditions.checkNotNull(bufferPool);
+  }
+
+  /**
+   * Returns the watchdog that checks the image data of scans in this session, or {@code null} if
+   * scans are not watched. By default, they are not.
+   */
+  public ScanWatchdog getScanWatchdog() {
+    return scanWatchdog;
+  }
+
+  /**
+   * Sets the watchdog that checks the image data of scans in this session for stalls, or
+   * {@code null} to stop watching scans. A watchdog may be shared between sessions.
+   */
+  public void setScanWatchdog(ScanWatchdog scanWatchdog) {
+    this.scanWatchdog = scanWatchdog;
+  }
+
+  /**
+   * Returns the policy that decides how this session reconnects after its control connection
+   * breaks, or {@code null} if it does not reconnect. By default, it does not.
+   */
+  public ReconnectPolicy getReconnectPolicy() {
+    return reconnectPolicy;
+  }
+
+  /**
+   * Makes this session reconnect according to {@code reconnectPolicy} when its control connection
+   * breaks, or stops it from reconnecting if {@code reconnectPolicy} is {@code null}.
+   *
+   * <p>
+   * After reconnecting, the session re-opens the devices that were open and sets their options
+   * to the values they were last set to, so existing {@link SaneDevice} and {@link SaneOption}
+   * objects keep working. A request that failed because the connection broke is then repeated if
+   * that is safe, for example reading or setting an option value. Starting a scan and pressing a
+   * button are not repeated: the original error is thrown, but the next request uses the new
+   * connection. A scan whose control connection breaks fails, since the daemon abandons it.
+   */
+  public void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+    this.reconnectPolicy = reconnectPolicy;
+  }
+
+  /**
+   * Starts recording the traffic of this session to {@code output}: every request and reply on the
+   * control connection and the image data of every scan, each with the time the client sent or
+   * received it. The capture begins with the next request and ends when {@link #stopCapture} is
+   * called or the session is closed. Start capturing while no scan is in progress.
+   *
+   * <p>
+   * A capture can be replayed to a client that makes the same calls, which serves the recorded
+   * replies in order, so it is best started before any device is opened, on a session without
+   * keepalive. Image data makes up most of a capture; wrap {@code output} in a
+   * {@link java.util.zip.GZIPOutputStream} to compress it. {@code output} is not closed when the
+   * capture ends.
+   *
+   * @throws IllegalStateException if this session is already capturing
+   */
+  public void startCapture(OutputStream output) throws IOException {
+    controlLock.lock();
+    try {
+      Preconditions.checkState(capture.get() == null, "this session is already capturing");
+      capture.set(new SaneCapture(output));
+    } finally {
+      controlLock.unlock();
+    }
+  }
+
+  /**
+   * Stops recording the traffic of this session and flushes the capture, see
+   * {@link #startCapture}. Does nothing if the session is not capturing.
+   */
+  public void stopCapture() throws IOException {
+    controlLock.lock();
+    try {
+      SaneCapture currentCapture = capture.getAndSet(null);
+      if (currentCapture != null) {
+        currentCapture.finish();
+      }
+    } finally {
+      controlLock.unlock();
+    }
+  }
+
+  /**
+   * Returns the keepalive interval of this session in the given unit, or 0 if keepalive is
+   * disabled. By default, it is.
+   */
+  public long getKeepaliveInterval(TimeUnit unit) {
+    return unit.convert(keepaliveIntervalNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Keeps the control connection of this session alive while it is idle, or stops doing so if
+   * {@code interval} is 0. Enables TCP keepalive on the connection, and whenever no request has
+   * been made for {@code interval} and no scan is in progress, sends a cheap request to the SANE
+   * daemon: reading the option count of an open device, or listing the devices if none is open
+   * (which is slow for some backends).
+   *
+   * <p>
+   * This stops idle connections from being dropped by firewalls, and detects dropped connections
+   * before the next scan needs them. A session with a {@link ReconnectPolicy} replaces a dropped
+   * connection right away. The probes also measure the round-trip time of the connection, see
+   * {@link #getRoundTripTime}. The intervals of TCP keepalive itself are set by the operating
+   * system.
+   */
+  public void setKeepalive(long interval, TimeUnit unit) throws IOException {
+    Preconditions.checkArgument(interval >= 0, "interval must not be negative");
+    long intervalNanos = unit.toNanos(interval);
+    controlLock.lock();
+    try {
+      keepaliveIntervalNanos = intervalNanos;
+      socket.setKeepAlive(intervalNanos > 0);
+    } finally {
+      controlLock.unlock();
+    }
+
+    synchronized (keepaliveLock) {
+      stopKeepalive();
+      if (intervalNanos > 0) {
+        scheduleKeepalive(keepaliveGeneration, intervalNanos);
+      }
+    }
+  }
+
+  /**
+   * Returns the round-trip time of the control connection in the given unit, smoothed over the
+   * recent keepalive probes, or -1 if no probe has completed yet. See {@link #setKeepalive}.
+   */
+  public long getRoundTripTime(TimeUnit unit) {
+    long roundTripNanos = smoothedRoundTripNanos;
+    return roundTripNanos < 0 ? -1 : unit.convert(roundTripNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Returns {@code true} if the control connection failed and has not been replaced since, as
+   * opposed to a request merely timing out or the daemon reporting an error.
+   */
+  boolean isConnectionBroken() {
+    return connectionBroken;
+  }
+
+  // Called with keepaliveLock held.
+  private void stopKeepalive() {
+    keepaliveGeneration++;
+    if (keepaliveTask != null) {
+      keepaliveTask.cancel(false);
+      keepaliveTask = null;
+    }
+  }
+
+  // Called with keepaliveLock held.
+  private void scheduleKeepalive(final int generation, long delayNanos) {
+    keepaliveTask =
+        SaneTimer.EXECUTOR.schedule(
+            new Runnable() {
+              @Override
+              public void run() {
+                SaneTimer.WORKERS.execute(
+                    new Runnable() {
+                      @Override
+                      public void run() {
+                        runKeepalive(generation);
+                      }
+                    });
+              }
+            },
+            delayNanos,
+            TimeUnit.NANOSECONDS);
+  }
+
+  private void runKeepalive(int generation) {
+    long intervalNanos = keepaliveIntervalNanos;
+    long delayNanos = intervalNanos;
+    // A session that is busy is not probed, and neither is one that is scanning: the daemon is
+    // still sending image data.
+    if (activeScans.get() == 0 && controlLock.tryLock()) {
+      long idleNanos;
+      try {
+        if (closed) {
+          return;
+        }
+        idleNanos = System.nanoTime() - lastRequestNanos;
+      } finally {
+        controlLock.unlock();
+      }
+
+      if (idleNanos < intervalNanos) {
+        delayNanos = intervalNanos - idleNanos;
+      } else {
+        probe();
+      }
+    }
+
+    synchronized (keepaliveLock) {
+      if (generation == keepaliveGeneration) {
+        scheduleKeepalive(generation, delayNanos);
+      }
+    }
+  }
+
+  private void probe() {
+    try {
+      long roundTripNanos =
+          execute(
+              true,
+              new ControlRequest<Long, SaneException>() {
+                @Override
+                public Long run() throws IOException, SaneException {
+                  long start = System.nanoTime();
+                  SaneDevice device = Iterables.getFirst(openDevices, null);
+                  if (device != null) {
+                    SaneOption.readOptionCount(device);
+                  } else {
+                    outputStream.write(SaneRpcCode.SANE_NET_GET_DEVICES);
+                    outputStream.flush();
+                    inputStream.readDeviceList();
+                  }
+                  return System.nanoTime() - start;
+                }
+              });
+      long previous = smoothedRoundTripNanos;
+      // The same smoothing as TCP's round-trip time estimate (RFC 6298).
+      smoothedRoundTripNanos =
+          previous < 0 ? roundTripNanos : previous + (roundTripNanos - previous) / 8;
+    } catch (SaneException e) {
+      // The daemon answered, so the connection is fine.
+      log.log(Level.FINE, "Keepalive probe returned an error", e);
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Keepalive probe of " + saneAddress + " failed", e);
+    }
+  }
+
   /**
    * Establishes a connection to the SANE daemon running on the given host on the default SANE port
    * with no connection timeout.
@@ -122,22 +485,139 @@ public final class SaneSession implements Closeable {
               "Specified timeout of {0} {1} rounds to 0ms and was clamped to 1ms",
               new Object[] {timeout, timeUnit});
     }
-    Socket socket = new Socket();
-    socket.setTcpNoDelay(true);
-
+    int soTimeoutMillis = 0;
     if (soTimeUnit != null && soTimeout > 0) {
-      long soTimeoutMillis = soTimeUnit.toMillis(soTimeout);
+      long soMillis = soTimeUnit.toMillis(soTimeout);
       Preconditions.checkArgument(
-          soTimeoutMillis >= 0 && soTimeoutMillis <= Integer.MAX_VALUE,
+          soMillis >= 0 && soMillis <= Integer.MAX_VALUE,
           "Socket timeout must be between 0 and Integer.MAX_VALUE milliseconds");
-      socket.setSoTimeout((int) soTimeoutMillis);
+      soTimeoutMillis = (int) soMillis;
     }
-    socket.connect(new InetSocketAddress(saneAddress, port), (int) millis);
-    SaneSession session = new SaneSession(socket);
-    session.initSane();
+    SaneSession session =
+        new SaneSession(new InetSocketAddress(saneAddress, port), (int) millis, soTimeoutMillis);
+    session.connect();
     return session;
   }
 
+  /**
+   * Opens the control connection and introduces this client to the SANE daemon. Called with the
+   * control lock held, or before the session is published.
+   */
+  private void connect() throws IOException {
+    Socket newSocket = new Socket();
+    try {
+      newSocket.setTcpNoDelay(true);
+      newSocket.setKeepAlive(keepaliveIntervalNanos > 0);
+      if (soTimeoutMillis > 0) {
+        newSocket.setSoTimeout(soTimeoutMillis);
+      }
+      newSocket.connect(saneAddress, connectTimeoutMillis);
+      socket = newSocket;
+      connectionBroken = false;
+      outputStream =
+          new SaneOutputStream(
+              SaneCapture.tapRequests(
+                  new FailureDetectingOutputStream(newSocket.getOutputStream()), capture));
+      inputStream =
+          new SaneInputStream(
+              this,
+              SaneCapture.tapReplies(
+                  new FailureDetectingInputStream(newSocket.getInputStream()), capture));
+      SaneCapture currentCapture = capture.get();
+      if (currentCapture != null) {
+        currentCapture.controlConnected();
+      }
+      initSane();
+    } catch (IOException e) {
+      newSocket.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Runs {@code request} with the control lock held. If the control connection breaks and this
+   * session has a {@link ReconnectPolicy}, the session reconnects and, if {@code repeatable} is
+   * {@code true}, runs {@code request} again on the new connection. Other I/O errors, such as a
+   * read timing out, are thrown without reconnecting.
+   */
+  <T, X extends Exception> T execute(boolean repeatable, ControlRequest<T, X> request)
+      throws IOException, X {
+    controlLock.lock();
+    try {
+      lastRequestNanos = System.nanoTime();
+      try {
+        return request.run();
+      } catch (IOException e) {
+        ReconnectPolicy policy = reconnectPolicy;
+        // A nested request leaves recovery to the outermost one.
+        if (policy == null || closed || !connectionBroken || controlLock.getHoldCount() > 1) {
+          throw e;
+        }
+
+        recover(policy, e);
+        if (!repeatable) {
+          throw e;
+        }
+        log.log(Level.FINE, "Repeating request after reconnecting", e);
+        return request.run();
+      }
+    } finally {
+      controlLock.unlock();
+    }
+  }
+
+  /**
+   * Replaces the broken control connection with a new one, then re-opens the devices that were
+   * open and restores the values of their options. Called with the control lock held.
+   */
+  private void recover(ReconnectPolicy policy, IOException cause) throws IOException {
+    log.log(Level.WARNING, "Control connection to " + saneAddress + " failed, reconnecting", cause);
+    try {
+      socket.close();
+    } catch (IOException e) {
+      log.log(Level.FINE, "could not close broken control connection", e);
+    }
+
+    for (int attempt = 1; ; attempt++) {
+      try {
+        connect();
+        break;
+      } catch (IOException e) {
+        if (attempt >= policy.getMaxAttempts()) {
+          e.addSuppressed(cause);
+          throw e;
+        }
+        log.log(Level.FINE, "Reconnection attempt " + attempt + " failed", e);
+        sleep(policy.getBackoffNanos(attempt));
+      }
+    }
+
+    for (Iterator<SaneDevice> it = openDevices.iterator(); it.hasNext(); ) {
+      SaneDevice device = it.next();
+      try {
+        device.setHandle(openDeviceLocked(device));
+      } catch (SaneException e) {
+        log.log(Level.WARNING, "Could not re-open " + device.getName() + " after reconnecting", e);
+        device.setHandle(null);
+        it.remove();
+      }
+    }
+    SaneOption.restoreValues(this, openDevices);
+    log.log(
+        Level.INFO,
+        "Reconnected to {0} and re-opened {1} device(s)",
+        new Object[] {saneAddress, openDevices.size()});
+  }
+
+  private static void sleep(long nanos) throws InterruptedIOException {
+    try {
+      TimeUnit.NANOSECONDS.sleep(nanos);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while reconnecting");
+    }
+  }
+
   /**
    * Returns the device with the give name. Opening the device will fail if the named device does
    * not exist.
@@ -158,9 +638,16 @@ public final class SaneSession implements Closeable {
    * @throws SaneException if the SANE backend returns an error in response to this request
    */
   public List<SaneDevice> listDevices() throws IOException, SaneException {
-    outputStream.write(SaneRpcCode.SANE_NET_GET_DEVICES);
-    outputStream.flush();
-    return inputStream.readDeviceList();
+    return execute(
+        true,
+        new ControlRequest<List<SaneDevice>, SaneException>() {
+          @Override
+          public List<SaneDevice> run() throws IOException, SaneException {
+            outputStream.write(SaneRpcCode.SANE_NET_GET_DEVICES);
+            outputStream.flush();
+            return inputStream.readDeviceList();
+          }
+        });
   }
 
   /**
@@ -170,15 +657,45 @@ public final class SaneSession implements Closeable {
    */
   @Override
   public void close() throws IOException {
+    synchronized (keepaliveLock) {
+      stopKeepalive();
+    }
+    controlLock.lock();
     try {
+      closed = true;
       outputStream.write(SaneRpcCode.SANE_NET_EXIT);
       outputStream.close();
     } finally {
-      socket.close();
+      try {
+        socket.close();
+      } finally {
+        try {
+          stopCapture();
+        } catch (IOException e) {
+          // A broken capture must not break closing the session it records.
+          log.log(Level.WARNING, "Could not flush the capture of " + saneAddress, e);
+        } finally {
+          controlLock.unlock();
+        }
+      }
     }
   }
 
-  SaneDeviceHandle openDevice(SaneDevice device) throws IOException, SaneException {
+  void openDevice(final SaneDevice device) throws IOException, SaneException {
+    execute(
+        true,
+        new ControlRequest<Void, SaneException>() {
+          @Override
+          public Void run() throws IOException, SaneException {
+            device.setHandle(openDeviceLocked(device));
+            device.clearOptionValues();
+            openDevices.add(device);
+            return null;
+          }
+        });
+  }
+
+  private SaneDeviceHandle openDeviceLocked(SaneDevice device) throws IOException, SaneException {
     outputStream.write(SaneRpcCode.SANE_NET_OPEN);
     outputStream.write(device.getName());
     outputStream.flush();
@@ -206,87 +723,239 @@ public final class SaneSession implements Closeable {
     return new SaneDeviceHandle(status, handle, resource);
   }
 
-  BufferedImage acquireImage(SaneDevice device, ScanListener listener)
+  BufferedImage acquireImage(
+      SaneDevice device, ScanListener listener, CancellationToken cancellation)
       throws IOException, SaneException {
-    SaneImage.Builder builder = new SaneImage.Builder();
-    SaneParameters parameters = null;
-    listener.scanningStarted(device);
-    int currentFrame = 0;
-
-    do {
-      SaneDeviceHandle handle = device.getHandle();
-      outputStream.write(SaneRpcCode.SANE_NET_START);
-      outputStream.write(handle.getHandle());
-      outputStream.flush();
-
-      SaneWord startStatus = inputStream.readWord();
-
-      int port = inputStream.readWord().integerValue();
-      SaneWord byteOrder = inputStream.readWord();
-      String resource = inputStream.readString();
+    return acquireRaw(device, listener, cancellation).toBufferedImage();
+  }
 
-      if (startStatus.integerValue() != 0) {
-        throw SaneException.fromStatusWord(startStatus);
+  SaneRawImage acquireRaw(
+      SaneDevice device, ScanListener listener, CancellationToken cancellation)
+      throws IOException, SaneException {
+    List<Frame> frames = Lists.newArrayList();
+    boolean success = false;
+    activeScans.incrementAndGet();
+    try {
+      SaneRawImage image = acquireFrames(device, listener, cancellation, frames);
+      success = true;
+      return image;
+    } catch (IOException | SaneException e) {
+      if (!cancellation.isCancelled()) {
+        throw e;
       }
 
-      if (!resource.isEmpty()) {
-        if (!authorize(resource)) {
-          throw new SaneException(SaneStatus.STATUS_ACCESS_DENIED);
-        }
-        int status = inputStream.readWord().integerValue();
-        port = inputStream.readWord().integerValue();
-        byteOrder = inputStream.readWord();
-
-        // Throw away the resource string, we don't attempt to authenticate again anyway.
-        inputStream.readString();
-
-        if (status != 0) {
-          throw new SaneException(SaneStatus.fromWireValue(status));
-        }
+      log.log(Level.FINE, "Scan cancelled, cancelling device " + device.getName(), e);
+      // The data connection has been closed, so the backend must be told to stop scanning too.
+      cancelDevice(device);
+      SaneException cancelled = new SaneException(SaneStatus.STATUS_CANCELLED);
+      cancelled.initCause(e);
+      throw cancelled;
+    } finally {
+      activeScans.decrementAndGet();
+      if (!success) {
+        releaseFrames(frames);
       }
+    }
+  }
 
-      // Ask the server for the parameters of this scan
-      outputStream.write(SaneRpcCode.SANE_NET_GET_PARAMETERS);
-      outputStream.write(handle.getHandle());
-      outputStream.flush();
+  private SaneRawImage acquireFrames(
+      SaneDevice device,
+      ScanListener listener,
+      CancellationToken cancellation,
+      List<Frame> frames)
+      throws IOException, SaneException {
+    ThreePassFrameAssembler threePassFrames = null;
+    SaneParameters parameters = null;
+    listener.scanningStarted(device);
+    int currentFrame = 0;
+
+    do {
+      cancellation.checkNotCancelled();
+      ScanStart start = startScan(device);
 
-      Socket imageSocket = null;
+      SocketChannel imageChannel = null;
+      InputStream imageStream = null;
+      ScanWatchdog.Monitor monitor = null;
 
       try {
-        imageSocket = new Socket(socket.getInetAddress(), port);
-        int status = inputStream.readWord().integerValue();
+        // Start connecting to the data port before asking for the parameters. saned only answers
+        // GET_PARAMETERS once it has accepted the data connection, so the TCP handshake now
+        // happens while the request is in flight instead of before it is sent.
+        imageChannel = SocketChannel.open();
+        cancellation.attach(imageChannel);
+        imageChannel.configureBlocking(false);
+        imageChannel.connect(new InetSocketAddress(saneAddress.getAddress(), start.port));
 
-        if (status != 0) {
-          throw new IOException("Unexpected status (" + status + ") in get_parameters");
-        }
+        // Ask the server for the parameters of this scan
+        parameters = requestParameters(device);
 
-        parameters = inputStream.readSaneParameters();
+        // By now the connection has almost certainly been established.
+        imageChannel.configureBlocking(true);
+        imageChannel.finishConnect();
 
         // As a convenience to our listeners, try to figure out how many frames
         // will be read. Usually this will be 1, except in the case of older
         // three-pass color scanners.
         listener.frameAcquisitionStarted(
             device, parameters, currentFrame, getLikelyTotalFrameCount(parameters));
+        ScanListener frameListener = listener;
+        if (scanWatchdog != null) {
+          monitor = scanWatchdog.watch(device, imageChannel);
+          frameListener = monitor.wrap(listener);
+        }
+        InputStream dataStream = imageChannel.socket().getInputStream();
+        SaneCapture currentCapture = capture.get();
+        if (currentCapture != null) {
+          dataStream = currentCapture.tapData(dataStream);
+        }
+        imageStream = new PooledBufferedInputStream(dataStream, bufferPool, READ_BUFFER_SIZE);
         FrameReader frameStream =
             new FrameReader(
                 device,
                 parameters,
-                new BufferedInputStream(imageSocket.getInputStream(), READ_BUFFER_SIZE),
-                0x4321 == byteOrder.integerValue(),
-                listener);
-        builder.addFrame(frameStream.readFrame());
+                imageStream,
+                0x4321 == start.byteOrder.integerValue(),
+                frameListener,
+                frameStoragePolicy,
+                bufferPool);
+        if (!ThreePassFrameAssembler.isChannelFrame(parameters)) {
+          frameStream.reserve(cancellation);
+        }
+        // Only the transfer is watched, not the wait for the frame's memory.
+        if (monitor != null) {
+          monitor.start();
+        }
+        if (ThreePassFrameAssembler.isChannelFrame(parameters)) {
+          if (threePassFrames == null) {
+            threePassFrames = new ThreePassFrameAssembler();
+          }
+          threePassFrames.readChannel(parameters, frameStream);
+        } else {
+          frames.add(frameStream.readFrame());
+        }
+      } catch (IOException e) {
+        if (monitor == null || !monitor.isAborted() || cancellation.isCancelled()) {
+          throw e;
+        }
+
+        // The watchdog closed the data connection, so the backend must be told to stop scanning.
+        cancelDevice(device);
+        SocketTimeoutException timeout = new SocketTimeoutException(monitor.getStallDescription());
+        timeout.initCause(e);
+        throw timeout;
       } finally {
-        if (imageSocket != null) {
-          imageSocket.close();
+        if (monitor != null) {
+          monitor.close();
+        }
+        cancellation.detach();
+        try {
+          if (imageStream != null) {
+            imageStream.close();
+          }
+        } finally {
+          if (imageChannel != null) {
+            imageChannel.close();
+          }
         }
       }
 
       currentFrame++;
     } while (!parameters.isLastFrame());
 
+    if (threePassFrames != null) {
+      frames.add(threePassFrames.build());
+    }
+
     listener.scanningFinished(device);
-    SaneImage image = builder.build();
-    return image.toBufferedImage();
+    return new SaneRawImage(frames);
+  }
+
+  /**
+   * The reply to {@code SANE_NET_START}: where to read the image data from, and in which byte
+   * order.
+   */
+  private static final class ScanStart {
+    final int port;
+    final SaneWord byteOrder;
+
+    ScanStart(int port, SaneWord byteOrder) {
+      this.port = port;
+      this.byteOrder = byteOrder;
+    }
+  }
+
+  private ScanStart startScan(final SaneDevice device) throws IOException, SaneException {
+    // The scan is abandoned by the daemon if the connection breaks, so this is never repeated.
+    return execute(
+        false,
+        new ControlRequest<ScanStart, SaneException>() {
+          @Override
+          public ScanStart run() throws IOException, SaneException {
+            outputStream.write(SaneRpcCode.SANE_NET_START);
+            outputStream.write(device.getHandle().getHandle());
+            outputStream.flush();
+
+            SaneWord startStatus = inputStream.readWord();
+
+            int port = inputStream.readWord().integerValue();
+            SaneWord byteOrder = inputStream.readWord();
+            String resource = inputStream.readString();
+
+            if (startStatus.integerValue() != 0) {
+              throw SaneException.fromStatusWord(startStatus);
+            }
+
+            if (!resource.isEmpty()) {
+              if (!authorize(resource)) {
+                throw new SaneException(SaneStatus.STATUS_ACCESS_DENIED);
+              }
+              int status = inputStream.readWord().integerValue();
+              port = inputStream.readWord().integerValue();
+              byteOrder = inputStream.readWord();
+
+              // Throw away the resource string, we don't attempt to authenticate again anyway.
+              inputStream.readString();
+
+              if (status != 0) {
+                throw new SaneException(SaneStatus.fromWireValue(status));
+              }
+            }
+
+            return new ScanStart(port, byteOrder);
+          }
+        });
+  }
+
+  private SaneParameters requestParameters(final SaneDevice device)
+      throws IOException, SaneException {
+    return execute(
+        false,
+        new ControlRequest<SaneParameters, SaneException>() {
+          @Override
+          public SaneParameters run() throws IOException, SaneException {
+            outputStream.write(SaneRpcCode.SANE_NET_GET_PARAMETERS);
+            outputStream.write(device.getHandle().getHandle());
+            outputStream.flush();
+
+            int status = inputStream.readWord().integerValue();
+            // The parameters are sent even if the request failed, and must be consumed.
+            SaneParameters parameters = inputStream.readSaneParameters();
+            if (status != 0) {
+              throw new SaneException(SaneStatus.fromWireValue(status));
+            }
+            return parameters;
+          }
+        });
+  }
+
+  private static void releaseFrames(List<Frame> frames) {
+    for (Frame frame : frames) {
+      try {
+        frame.release();
+      } catch (IOException e) {
+        log.log(Level.WARNING, "could not release frame of failed scan", e);
+      }
+    }
   }
 
   private int getLikelyTotalFrameCount(SaneParameters parameters) {
@@ -300,26 +969,44 @@ public final class SaneSession implements Closeable {
     }
   }
 
-  void closeDevice(SaneDeviceHandle handle) throws IOException {
-    // RPC code
-    outputStream.write(SaneRpcCode.SANE_NET_CLOSE);
-    outputStream.write(handle.getHandle());
-    outputStream.flush();
+  void closeDevice(final SaneDevice device) throws IOException {
+    execute(
+        true,
+        new ControlRequest<Void, RuntimeException>() {
+          @Override
+          public Void run() throws IOException {
+            // RPC code
+            outputStream.write(SaneRpcCode.SANE_NET_CLOSE);
+            outputStream.write(device.getHandle().getHandle());
+            outputStream.flush();
 
-    // read the dummy value from the wire, if it doesn't throw an exception
-    // we assume the close was successful
-    inputStream.readWord();
+            // read the dummy value from the wire, if it doesn't throw an exception
+            // we assume the close was successful
+            inputStream.readWord();
+            openDevices.remove(device);
+            device.setHandle(null);
+            return null;
+          }
+        });
   }
 
-  void cancelDevice(SaneDeviceHandle handle) throws IOException {
-    // RPC code
-    outputStream.write(SaneRpcCode.SANE_NET_CANCEL);
-    outputStream.write(handle.getHandle());
-    outputStream.flush();
+  void cancelDevice(final SaneDevice device) throws IOException {
+    execute(
+        true,
+        new ControlRequest<Void, RuntimeException>() {
+          @Override
+          public Void run() throws IOException {
+            // RPC code
+            outputStream.write(SaneRpcCode.SANE_NET_CANCEL);
+            outputStream.write(device.getHandle().getHandle());
+            outputStream.flush();
 
-    // read the dummy value from the wire, if it doesn't throw an exception
-    // we assume the cancel was successful
-    inputStream.readWord();
+            // read the dummy value from the wire, if it doesn't throw an exception
+            // we assume the cancel was successful
+            inputStream.readWord();
+            return null;
+          }
+        });
   }
 
   private void initSane() throws IOException {
@@ -382,6 +1069,10 @@ public final class SaneSession implements Closeable {
     }
   }
 
+  /**
+   * Returns the stream for writing requests on the control connection. Only valid with the control
+   * lock held, see {@link #execute}.
+   */
   SaneOutputStream getOutputStream() {
     return outputStream;
   }
@@ -389,4 +1080,80 @@ public final class SaneSession implements Closeable {
   SaneInputStream getInputStream() {
     return inputStream;
   }
+
+  /**
+   * Records that the control connection is broken when reading from it fails or it is closed by
+   * the daemon. Timeouts and interruptions leave the connection usable.
+   */
+  private final class FailureDetectingInputStream extends FilterInputStream {
+    FailureDetectingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      try {
+        int b = in.read();
+        if (b == -1) {
+          connectionBroken = true;
+        }
+        return b;
+      } catch (InterruptedIOException e) {
+        throw e;
+      } catch (IOException e) {
+        connectionBroken = true;
+        throw e;
+      }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      try {
+        int count = in.read(b, off, len);
+        if (count == -1) {
+          connectionBroken = true;
+        }
+        return count;
+      } catch (InterruptedIOException e) {
+        throw e;
+      } catch (IOException e) {
+        connectionBroken = true;
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Records that the control connection is broken when writing to it fails.
+   */
+  private final class FailureDetectingOutputStream extends FilterOutputStream {
+    FailureDetectingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      try {
+        out.write(b, off, len);
+      } catch (IOException e) {
+        connectionBroken = true;
+        throw e;
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      try {
+        out.flush();
+      } catch (IOException e) {
+        connectionBroken = true;
+        throw e;
+      }
+    }
+  }
 }
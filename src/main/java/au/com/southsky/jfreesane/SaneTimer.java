@@ -0,0 +1,35 @@
+package au.com.southsky.jfreesane;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * Holds the daemon thread that enforces scan deadlines, runs scan watchdogs and schedules session
+ * keepalives. The thread is only started once one of those features is used.
+ */
+final class SaneTimer {
+  static final ScheduledExecutorService EXECUTOR = createExecutor();
+
+  /**
+   * Runs timed work that talks to a SANE daemon, so that a slow daemon cannot hold up the timer
+   * thread. Its daemon threads are started on demand and expire when idle.
+   */
+  static final ExecutorService WORKERS =
+      Executors.newCachedThreadPool(
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("jfreesane-worker-%d").build());
+
+  private SaneTimer() {}
+
+  private static ScheduledExecutorService createExecutor() {
+    ScheduledThreadPoolExecutor executor =
+        new ScheduledThreadPoolExecutor(
+            1,
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("jfreesane-timer-%d").build());
+    executor.setRemoveOnCancelPolicy(true);
+    return executor;
+  }
+}
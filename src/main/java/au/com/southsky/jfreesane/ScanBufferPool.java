@@ -0,0 +1,181 @@
+package au.com.southsky.jfreesane;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Queues;
+
+import java.util.Deque;
+
+/**
+ * A pool of the arrays that hold frame data and buffer network reads during acquisition. Arrays
+ * are grouped into power-of-two size classes, so a batch of identically sized pages keeps reusing
+ * the same few arrays instead of allocating new ones for every page.
+ *
+ * <p>
+ * The arrays of an image are returned to the pool when the image is released with
+ * {@link SaneRawImage#release}. Images that are never released are simply garbage collected. Read
+ * buffers are returned automatically at the end of each acquisition. A pool may be shared by any
+ * number of sessions (see {@link SaneSession#setBufferPool}):
+ *
+ * <pre>
+ *   ScanBufferPool pool = ScanBufferPool.create(256 &lt;&lt; 20);
+ *   session.setBufferPool(pool);
+ *   for (int i = 0; i &lt; pageCount; i++) {
+ *     SaneRawImage page = device.acquireRaw();
+ *     process(page);
+ *     page.release();
+ *   }
+ * </pre>
+ *
+ * <p>
+ * Threadsafe.
+ */
+public final class ScanBufferPool {
+  private static final ScanBufferPool NONE = new ScanBufferPool(0);
+
+  /**
+   * Arrays smaller than this are not worth pooling.
+   */
+  private static final int MIN_POOLED_BYTES = 1 << 12;
+
+  private final long maxRetainedBytes;
+
+  // Indexed by size class: the arrays in bucket i have exactly 1 << i bytes or samples.
+  private final Deque<byte[]>[] byteArrays;
+  private final Deque<short[]>[] shortArrays;
+  private long retainedBytes;
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private ScanBufferPool(long maxRetainedBytes) {
+    Preconditions.checkArgument(maxRetainedBytes >= 0, "maxRetainedBytes must not be negative");
+    this.maxRetainedBytes = maxRetainedBytes;
+    this.byteArrays = new Deque[Integer.SIZE];
+    this.shortArrays = new Deque[Integer.SIZE];
+    for (int i = 0; i < Integer.SIZE; i++) {
+      byteArrays[i] = Queues.newArrayDeque();
+      shortArrays[i] = Queues.newArrayDeque();
+    }
+  }
+
+  /**
+   * Returns a pool that keeps up to {@code maxRetainedBytes} bytes of returned arrays for reuse.
+   */
+  public static ScanBufferPool create(long maxRetainedBytes) {
+    return new ScanBufferPool(maxRetainedBytes);
+  }
+
+  /**
+   * Returns a pool that never retains anything. Every array is allocated with exactly the
+   * requested size. This is the default for new sessions.
+   */
+  public static ScanBufferPool none() {
+    return NONE;
+  }
+
+  public long getMaxRetainedBytes() {
+    return maxRetainedBytes;
+  }
+
+  /**
+   * Returns the number of bytes currently held by this pool for reuse.
+   */
+  public synchronized long getRetainedBytes() {
+    return retainedBytes;
+  }
+
+  /**
+   * Returns the number of bytes taken by an array borrowed from this pool to hold {@code bytes}
+   * bytes, or the equivalent number of samples. Pooled arrays are rounded up to their size class,
+   * so this can be up to twice as much as {@code bytes}.
+   */
+  long getAllocatedBytes(long bytes) {
+    return isPooled(bytes) ? 1L << sizeClass((int) bytes) : bytes;
+  }
+
+  /**
+   * Returns an array of at least {@code minLength} bytes. Its contents are undefined.
+   */
+  byte[] borrowBytes(int minLength) {
+    if (!isPooled(minLength)) {
+      return new byte[minLength];
+    }
+
+    int sizeClass = sizeClass(minLength);
+    synchronized (this) {
+      byte[] array = byteArrays[sizeClass].pollFirst();
+      if (array != null) {
+        retainedBytes -= array.length;
+        return array;
+      }
+    }
+    return new byte[1 << sizeClass];
+  }
+
+  /**
+   * Returns an array of at least {@code minLength} samples. Its contents are undefined.
+   */
+  short[] borrowShorts(int minLength) {
+    if (!isPooled(minLength * 2L)) {
+      return new short[minLength];
+    }
+
+    int sizeClass = sizeClass(minLength);
+    synchronized (this) {
+      short[] array = shortArrays[sizeClass].pollFirst();
+      if (array != null) {
+        retainedBytes -= array.length * 2L;
+        return array;
+      }
+    }
+    return new short[1 << sizeClass];
+  }
+
+  /**
+   * Returns {@code array} to the pool. The caller must not use it afterwards.
+   */
+  void recycle(byte[] array) {
+    if (isPowerOfTwo(array.length) && isPooled(array.length)) {
+      synchronized (this) {
+        if (retainedBytes + array.length <= maxRetainedBytes) {
+          byteArrays[sizeClass(array.length)].addFirst(array);
+          retainedBytes += array.length;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns {@code array} to the pool. The caller must not use it afterwards.
+   */
+  void recycle(short[] array) {
+    if (isPowerOfTwo(array.length) && isPooled(array.length * 2L)) {
+      synchronized (this) {
+        if (retainedBytes + array.length * 2L <= maxRetainedBytes) {
+          shortArrays[sizeClass(array.length)].addFirst(array);
+          retainedBytes += array.length * 2L;
+        }
+      }
+    }
+  }
+
+  private boolean isPooled(long bytes) {
+    // Only arrays that could ever be retained are rounded up to a size class.
+    return bytes >= MIN_POOLED_BYTES && bytes <= maxRetainedBytes && bytes <= (1 << 30);
+  }
+
+  private static int sizeClass(int length) {
+    return Integer.SIZE - Integer.numberOfLeadingZeros(length - 1);
+  }
+
+  private static boolean isPowerOfTwo(int length) {
+    return length > 0 && (length & (length - 1)) == 0;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return MoreObjects.toStringHelper(ScanBufferPool.class)
+        .add("maxRetainedBytes", maxRetainedBytes)
+        .add("retainedBytes", retainedBytes)
+        .toString();
+  }
+}
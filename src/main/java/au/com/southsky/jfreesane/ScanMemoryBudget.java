@@ -0,0 +1,296 @@
+package au.com.southsky.jfreesane;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Queues;
+import com.google.common.collect.Sets;
+
+import java.io.InterruptedIOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds the total memory occupied by the frames of all scans that use it. Before a frame is read,
+ * its size ({@code bytesPerLine * lineCount}) is reserved against the budget, rounded up to the
+ * array size handed out by the session's {@link ScanBufferPool} for frames kept on the heap. If the
+ * reservation would exceed the budget, the frame is either spooled to disk right away
+ * ({@link #spilling}) or the scan waits until enough memory has been released by other scans
+ * ({@link #blocking}). Waiting scans are admitted in the order in which they arrived, and stop
+ * waiting when they are cancelled with a {@link CancellationToken} or their deadline passes.
+ *
+ * <p>
+ * Memory reserved for a frame is given back once the frame is released with
+ * {@link SaneRawImage#release}, or once its pixel data has been garbage collected. A budget is
+ * meant to be shared by many sessions through a {@link FrameStoragePolicy}:
+ *
+ * <pre>
+ *   ScanMemoryBudget budget = ScanMemoryBudget.blocking(512 &lt;&lt; 20);
+ *   FrameStoragePolicy policy = FrameStoragePolicy.builder().setMemoryBudget(budget).build();
+ *   for (SaneSession session : sessions) {
+ *     session.setFrameStoragePolicy(policy);
+ *   }
+ * </pre>
+ *
+ * <p>
+ * Threadsafe.
+ */
+public final class ScanMemoryBudget {
+  /**
+   * Frames whose pixel data is garbage collected are only noticed when the reference queue is
+   * polled, so waiting scans poll it at this interval.
+   */
+  private static final long COLLECTION_POLL_INTERVAL_MILLIS = 100;
+
+  /**
+   * What happens to a frame that does not fit into the budget.
+   */
+  public enum OverflowAction {
+    /**
+     * The frame is spooled to disk.
+     */
+    SPILL,
+
+    /**
+     * The scan waits until enough memory has been released. Frames that are larger than the whole
+     * budget are spooled to disk, since they would never fit.
+     */
+    BLOCK
+  }
+
+  private final long capacity;
+  private final OverflowAction overflowAction;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition memoryReleased = lock.newCondition();
+  private final Deque<Thread> waitingThreads = Queues.newArrayDeque();
+  private long usedBytes;
+  private long peakUsedBytes;
+  private long spilledFrameCount;
+
+  private final ReferenceQueue<Object> collectedFrames = new ReferenceQueue<Object>();
+  private final Set<Allocation> liveAllocations = Sets.newConcurrentHashSet();
+
+  private ScanMemoryBudget(long capacity, OverflowAction overflowAction) {
+    Preconditions.checkArgument(capacity >= 0, "capacity must not be negative");
+    this.capacity = capacity;
+    this.overflowAction = Preconditions.checkNotNull(overflowAction);
+  }
+
+  /**
+   * Returns a budget of {@code capacity} bytes that spools frames to disk once it is used up.
+   */
+  public static ScanMemoryBudget spilling(long capacity) {
+    return new ScanMemoryBudget(capacity, OverflowAction.SPILL);
+  }
+
+  /**
+   * Returns a budget of {@code capacity} bytes that makes scans wait once it is used up.
+   */
+  public static ScanMemoryBudget blocking(long capacity) {
+    return new ScanMemoryBudget(capacity, OverflowAction.BLOCK);
+  }
+
+  public long getCapacity() {
+    return capacity;
+  }
+
+  public OverflowAction getOverflowAction() {
+    return overflowAction;
+  }
+
+  /**
+   * Returns the number of bytes currently reserved by frames in memory.
+   */
+  public long getUsedBytes() {
+    lock.lock();
+    try {
+      drainCollectedFrames();
+      return usedBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the largest number of bytes that has been reserved at any one time.
+   */
+  public long getPeakUsedBytes() {
+    lock.lock();
+    try {
+      return peakUsedBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of scans currently waiting for memory to be released.
+   */
+  public int getWaitingScanCount() {
+    lock.lock();
+    try {
+      return waitingThreads.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of frames that have been spooled to disk because they did not fit into
+   * this budget.
+   */
+  public long getSpilledFrameCount() {
+    lock.lock();
+    try {
+      return spilledFrameCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Reserves {@code bytes} bytes for a frame, waiting if necessary and permitted by the overflow
+   * action. Returns {@code null} if the frame must be spooled to disk instead.
+   *
+   * @throws InterruptedIOException if the thread is interrupted while waiting
+   */
+  Allocation allocate(long bytes) throws InterruptedIOException {
+    return allocate(bytes, CancellationToken.create());
+  }
+
+  /**
+   * Like {@link #allocate(long)}, but gives up waiting once {@code cancellation} is cancelled,
+   * which is noticed within {@link #COLLECTION_POLL_INTERVAL_MILLIS}.
+   *
+   * @throws InterruptedIOException if the thread is interrupted or the scan is cancelled while
+   *     waiting
+   */
+  Allocation allocate(long bytes, CancellationToken cancellation) throws InterruptedIOException {
+    lock.lock();
+    try {
+      drainCollectedFrames();
+      if (bytes > capacity
+          || (overflowAction == OverflowAction.SPILL && usedBytes + bytes > capacity)) {
+        spilledFrameCount++;
+        return null;
+      }
+
+      Thread currentThread = Thread.currentThread();
+      waitingThreads.addLast(currentThread);
+      try {
+        while (waitingThreads.peekFirst() != currentThread || usedBytes + bytes > capacity) {
+          // Cancelling a scan closes its data connection but does not interrupt its thread.
+          if (cancellation.isCancelled()) {
+            throw new InterruptedIOException("scan cancelled while waiting for scan memory");
+          }
+          memoryReleased.await(COLLECTION_POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+          drainCollectedFrames();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        InterruptedIOException exception =
+            new InterruptedIOException("interrupted while waiting for scan memory");
+        exception.initCause(e);
+        throw exception;
+      } finally {
+        waitingThreads.remove(currentThread);
+        // The next thread in line may be able to proceed now.
+        memoryReleased.signalAll();
+      }
+
+      usedBytes += bytes;
+      peakUsedBytes = Math.max(peakUsedBytes, usedBytes);
+      return new Allocation(bytes);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void free(long bytes) {
+    lock.lock();
+    try {
+      usedBytes -= bytes;
+      memoryReleased.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void drainCollectedFrames() {
+    Reference<?> reference;
+    while ((reference = collectedFrames.poll()) != null) {
+      ((TrackingReference) reference).allocation.release();
+    }
+  }
+
+  @Override
+  public String toString() {
+    lock.lock();
+    try {
+      return MoreObjects.toStringHelper(ScanMemoryBudget.class)
+          .add("capacity", capacity)
+          .add("overflowAction", overflowAction)
+          .add("usedBytes", usedBytes)
+          .add("peakUsedBytes", peakUsedBytes)
+          .add("waitingScans", waitingThreads.size())
+          .add("spilledFrames", spilledFrameCount)
+          .toString();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Memory reserved for a single frame. It is given back to the budget when {@link #release} is
+   * called, or when the pixel data passed to {@link #track} has been garbage collected, whichever
+   * happens first.
+   */
+  final class Allocation {
+    private final long bytes;
+    private boolean released;
+    private PhantomReference<Object> pixelDataReference;
+
+    private Allocation(long bytes) {
+      this.bytes = bytes;
+    }
+
+    /**
+     * Arranges for this allocation to be released once {@code pixelData} is garbage collected.
+     */
+    synchronized void track(Object pixelData) {
+      if (!released) {
+        pixelDataReference = new TrackingReference(pixelData, this);
+        liveAllocations.add(this);
+      }
+    }
+
+    void release() {
+      synchronized (this) {
+        if (released) {
+          return;
+        }
+        released = true;
+        liveAllocations.remove(this);
+        if (pixelDataReference != null) {
+          pixelDataReference.clear();
+        }
+      }
+      free(bytes);
+    }
+  }
+
+  private final class TrackingReference extends PhantomReference<Object> {
+    private final Allocation allocation;
+
+    TrackingReference(Object referent, Allocation allocation) {
+      super(referent, collectedFrames);
+      this.allocation = allocation;
+    }
+  }
+}
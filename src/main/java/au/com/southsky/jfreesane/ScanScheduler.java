@@ -0,0 +1,332 @@
+package au.com.southsky.jfreesane;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares a device between many clients, one page at a time. A client asks for a {@link Lease}
+ * before scanning each page and closes it afterwards. When the device becomes free, it is given to
+ * the waiting client with the highest {@link Priority}. Among clients of the same priority, it
+ * goes to the tenant that has used the device least recently, so that a tenant with many clients
+ * does not crowd out the others, and to a tenant's clients in the order they asked.
+ *
+ * <p>
+ * Because a lease covers a single page, a long batch job gives way to an interactive scan at the
+ * next page boundary:
+ *
+ * <pre>
+ *   ScanScheduler scheduler = ScanScheduler.forDevice(device);
+ *   while (moreToScan) {
+ *     try (ScanScheduler.Lease lease = scheduler.acquire("accounts", Priority.BATCH)) {
+ *       pages.add(lease.getDevice().acquireImage());
+ *     }
+ *   }
+ * </pre>
+ *
+ * <p>
+ * The device must only be used while holding a lease, which makes the scheduler the
+ * synchronization that {@link SaneDevice} requires. The time clients wait for the device and the
+ * time they hold it are recorded for each priority, see {@link #getStats}.
+ */
+public final class ScanScheduler {
+  /**
+   * The priority of a request for the device, from the highest to the lowest.
+   */
+  public enum Priority {
+    /**
+     * Scans a user is waiting for, such as previews.
+     */
+    INTERACTIVE,
+
+    /**
+     * Scans nobody is waiting for, such as long feeder jobs.
+     */
+    BATCH
+  }
+
+  private final SaneDevice device;
+
+  // Guarded by this.
+  private final List<Waiter> waiters = Lists.newArrayList();
+  private Lease current;
+  private long nextSequence;
+  // Fair sharing between tenants: the device time each tenant has used, measured on a virtual clock
+  // that is advanced to the start of every lease. Tenants that are not ahead of the clock are left
+  // out.
+  private final Map<String, Long> tenantFinishNanos = Maps.newHashMap();
+  private long virtualNanos;
+  private final Map<Priority, StatsCounter> stats = Maps.newEnumMap(Priority.class);
+
+  private ScanScheduler(SaneDevice device) {
+    this.device = device;
+    for (Priority priority : Priority.values()) {
+      stats.put(priority, new StatsCounter());
+    }
+  }
+
+  /**
+   * Creates a scheduler for the given device. The device should be used through this scheduler
+   * only.
+   */
+  public static ScanScheduler forDevice(SaneDevice device) {
+    return new ScanScheduler(Preconditions.checkNotNull(device));
+  }
+
+  public SaneDevice getDevice() {
+    return device;
+  }
+
+  /**
+   * Waits until the device is given to the caller. The device must not be used after the returned
+   * lease is closed.
+   *
+   * @param tenant the party the request is made for, used to share the device fairly
+   * @param priority the priority of the request
+   * @throws InterruptedException if the thread was interrupted while waiting
+   */
+  public Lease acquire(String tenant, Priority priority) throws InterruptedException {
+    Preconditions.checkNotNull(tenant);
+    Preconditions.checkNotNull(priority);
+    synchronized (this) {
+      Waiter waiter = new Waiter(tenant, priority, nextSequence++);
+      waiters.add(waiter);
+      grantIfFree();
+      try {
+        while (waiter.lease == null) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        if (waiter.lease != null) {
+          release(waiter.lease);
+        } else {
+          waiters.remove(waiter);
+        }
+        throw e;
+      }
+      return waiter.lease;
+    }
+  }
+
+  /**
+   * Acquires a single image from the device under a lease. See {@link #acquire}.
+   */
+  public BufferedImage acquireImage(String tenant, Priority priority)
+      throws IOException, SaneException, InterruptedException {
+    try (Lease lease = acquire(tenant, priority)) {
+      return lease.getDevice().acquireImage();
+    }
+  }
+
+  /**
+   * Returns the number of requests waiting for the device.
+   */
+  public synchronized int getQueueLength() {
+    return waiters.size();
+  }
+
+  /**
+   * Returns the wait and service times of the requests of the given priority so far.
+   */
+  public synchronized Stats getStats(Priority priority) {
+    return stats.get(priority).snapshot();
+  }
+
+  // Called with this held.
+  private void grantIfFree() {
+    if (current != null || waiters.isEmpty()) {
+      return;
+    }
+
+    Waiter best = null;
+    long bestStart = 0;
+    for (Waiter waiter : waiters) {
+      long start = startNanos(waiter.tenant);
+      if (best == null || waiter.isBefore(best, start, bestStart)) {
+        best = waiter;
+        bestStart = start;
+      }
+    }
+
+    waiters.remove(best);
+    virtualNanos = bestStart;
+    long now = System.nanoTime();
+    best.lease = new Lease(best.tenant, best.priority, bestStart, now);
+    current = best.lease;
+    stats.get(best.priority).recordGrant(now - best.enqueuedNanos);
+    notifyAll();
+  }
+
+  // Called with this held.
+  private long startNanos(String tenant) {
+    Long finish = tenantFinishNanos.get(tenant);
+    return finish == null ? virtualNanos : Math.max(finish, virtualNanos);
+  }
+
+  private synchronized void release(Lease lease) {
+    if (lease.released) {
+      return;
+    }
+    lease.released = true;
+    long serviceNanos = System.nanoTime() - lease.grantedNanos;
+    stats.get(lease.priority).recordService(serviceNanos);
+    tenantFinishNanos.put(lease.tenant, lease.startNanos + serviceNanos);
+
+    // Tenants the virtual clock has caught up with no longer need an entry.
+    for (Iterator<Long> it = tenantFinishNanos.values().iterator(); it.hasNext(); ) {
+      if (it.next() <= virtualNanos) {
+        it.remove();
+      }
+    }
+
+    current = null;
+    grantIfFree();
+  }
+
+  /**
+   * The right to use the device of a {@link ScanScheduler} for one page.
+   */
+  public final class Lease implements Closeable {
+    private final String tenant;
+    private final Priority priority;
+    private final long startNanos;
+    private final long grantedNanos;
+
+    // Guarded by ScanScheduler.this.
+    private boolean released;
+
+    private Lease(String tenant, Priority priority, long startNanos, long grantedNanos) {
+      this.tenant = tenant;
+      this.priority = priority;
+      this.startNanos = startNanos;
+      this.grantedNanos = grantedNanos;
+    }
+
+    public SaneDevice getDevice() {
+      return device;
+    }
+
+    /**
+     * Gives the device to the next waiting request. Closing a lease more than once has no effect.
+     */
+    @Override
+    public void close() {
+      release(this);
+    }
+  }
+
+  /**
+   * Wait and service times of the requests of one priority.
+   */
+  public static final class Stats {
+    private final long granted;
+    private final long totalWaitNanos;
+    private final long maxWaitNanos;
+    private final long completed;
+    private final long totalServiceNanos;
+
+    private Stats(
+        long granted,
+        long totalWaitNanos,
+        long maxWaitNanos,
+        long completed,
+        long totalServiceNanos) {
+      this.granted = granted;
+      this.totalWaitNanos = totalWaitNanos;
+      this.maxWaitNanos = maxWaitNanos;
+      this.completed = completed;
+      this.totalServiceNanos = totalServiceNanos;
+    }
+
+    /**
+     * Returns the number of leases that were granted.
+     */
+    public long getGrantedCount() {
+      return granted;
+    }
+
+    /**
+     * Returns the mean time requests waited for the device, or 0 if none was granted.
+     */
+    public long getMeanQueueWait(TimeUnit unit) {
+      return granted == 0 ? 0 : unit.convert(totalWaitNanos / granted, TimeUnit.NANOSECONDS);
+    }
+
+    public long getMaxQueueWait(TimeUnit unit) {
+      return unit.convert(maxWaitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the mean time leases were held, or 0 if none was closed.
+     */
+    public long getMeanServiceTime(TimeUnit unit) {
+      return completed == 0 ? 0 : unit.convert(totalServiceNanos / completed, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(Stats.class)
+          .add("granted", granted)
+          .add("meanQueueWaitMillis", getMeanQueueWait(TimeUnit.MILLISECONDS))
+          .add("maxQueueWaitMillis", getMaxQueueWait(TimeUnit.MILLISECONDS))
+          .add("meanServiceMillis", getMeanServiceTime(TimeUnit.MILLISECONDS))
+          .toString();
+    }
+  }
+
+  private static final class StatsCounter {
+    private long granted;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+    private long completed;
+    private long totalServiceNanos;
+
+    void recordGrant(long waitNanos) {
+      granted++;
+      totalWaitNanos += waitNanos;
+      maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+    }
+
+    void recordService(long serviceNanos) {
+      completed++;
+      totalServiceNanos += serviceNanos;
+    }
+
+    Stats snapshot() {
+      return new Stats(granted, totalWaitNanos, maxWaitNanos, completed, totalServiceNanos);
+    }
+  }
+
+  private static final class Waiter {
+    private final String tenant;
+    private final Priority priority;
+    private final long sequence;
+    private final long enqueuedNanos = System.nanoTime();
+    private Lease lease;
+
+    private Waiter(String tenant, Priority priority, long sequence) {
+      this.tenant = tenant;
+      this.priority = priority;
+      this.sequence = sequence;
+    }
+
+    boolean isBefore(Waiter other, long startNanos, long otherStartNanos) {
+      if (priority != other.priority) {
+        return priority.compareTo(other.priority) < 0;
+      }
+      if (startNanos != otherStartNanos) {
+        return startNanos < otherStartNanos;
+      }
+      return sequence < other.sequence;
+    }
+  }
+}
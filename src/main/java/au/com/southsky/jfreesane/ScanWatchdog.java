@@ -0,0 +1,346 @@
+package au.com.southsky.jfreesane;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the image data of each frame as it arrives and reports scans that stall: scans where no
+ * record arrives for longer than the stall timeout, or where the throughput over a sliding window
+ * stays below a minimum. A stalled scan is reported to the watchdog's {@link Listener} and,
+ * optionally, aborted. An aborted scan cancels the device and fails with a
+ * {@link java.net.SocketTimeoutException}.
+ *
+ * <p>
+ * Install a watchdog with {@link SaneSession#setScanWatchdog}:
+ *
+ * <pre>
+ *   session.setScanWatchdog(
+ *       ScanWatchdog.builder()
+ *           .setStallTimeout(30, TimeUnit.SECONDS)
+ *           .setMinimumThroughput(16 * 1024, 10, TimeUnit.SECONDS)
+ *           .setAbortOnStall(true)
+ *           .build());
+ * </pre>
+ *
+ * <p>
+ * Only the transfer of image data is watched, and each frame is watched from the moment its memory
+ * has been reserved, so time spent waiting for a {@link ScanMemoryBudget} is not taken for a stall.
+ * Waiting for the SANE daemon to start a scan is bounded by the session's socket timeout instead.
+ * The throughput of a frame in progress can be read with {@link #getBytesPerSecond}.
+ */
+public final class ScanWatchdog {
+  private static final Logger log = Logger.getLogger(ScanWatchdog.class.getName());
+
+  private static final long MIN_CHECK_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+  /**
+   * Receives notifications about stalled scans. Notifications are delivered on a JFreeSane timer
+   * thread, so implementations should return quickly.
+   */
+  public interface Listener {
+    /**
+     * Called at most once per frame when a scan is found to have stalled.
+     *
+     * @param device the device whose scan stalled
+     * @param bytesPerSecond the throughput of the frame, measured over the watchdog's window (or
+     * since the frame started, if it started more recently)
+     * @param idleMillis the time since the last record of the frame arrived (or since the frame
+     * started, if no record has arrived yet)
+     */
+    void scanStalled(SaneDevice device, double bytesPerSecond, long idleMillis);
+  }
+
+  private final long stallTimeoutNanos;
+  private final long minimumBytesPerSecond;
+  private final long windowNanos;
+  private final boolean abortOnStall;
+  private final Listener listener;
+  private final ConcurrentMap<SaneDevice, Monitor> activeMonitors = Maps.newConcurrentMap();
+
+  private ScanWatchdog(Builder builder) {
+    this.stallTimeoutNanos = builder.stallTimeoutNanos;
+    this.minimumBytesPerSecond = builder.minimumBytesPerSecond;
+    this.windowNanos = builder.windowNanos;
+    this.abortOnStall = builder.abortOnStall;
+    this.listener = builder.listener;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Returns a monitor for a frame whose data arrives over {@code connection}, which is closed if
+   * the scan is aborted. The frame is watched once {@link Monitor#start} is called.
+   */
+  Monitor watch(SaneDevice device, Closeable connection) {
+    return new Monitor(device, connection);
+  }
+
+  /**
+   * Returns the throughput of the frame that {@code device} is transferring, in bytes per second,
+   * measured over the watchdog's window (or since the frame started, if it started more recently).
+   * Returns -1 if the device is not transferring a frame under this watchdog.
+   */
+  public double getBytesPerSecond(SaneDevice device) {
+    Monitor monitor = activeMonitors.get(device);
+    return monitor == null ? -1 : monitor.getBytesPerSecond(System.nanoTime());
+  }
+
+  private long checkIntervalNanos() {
+    long shortestPeriod = Math.min(stallTimeoutNanos, windowNanos);
+    return Math.max(MIN_CHECK_INTERVAL_NANOS, shortestPeriod / 4);
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(ScanWatchdog.class)
+        .add("stallTimeoutMillis", TimeUnit.NANOSECONDS.toMillis(stallTimeoutNanos))
+        .add("minimumBytesPerSecond", minimumBytesPerSecond)
+        .add("windowMillis", TimeUnit.NANOSECONDS.toMillis(windowNanos))
+        .add("abortOnStall", abortOnStall)
+        .toString();
+  }
+
+  /**
+   * Watches a single frame. Records are reported by the scanning thread through the listener
+   * returned by {@link #wrap}, and checked periodically on the timer thread once the monitor is
+   * started.
+   */
+  final class Monitor implements Closeable {
+    private final SaneDevice device;
+    private final Closeable connection;
+    private volatile ScheduledFuture<?> checkTask;
+
+    // Guarded by this.
+    private long startNanos;
+    private long bytesRead;
+    private long lastRecordNanos;
+    private final Deque<long[]> samples = Queues.newArrayDeque();
+    private boolean stalled;
+    private boolean aborted;
+    private String stallDescription;
+
+    private Monitor(SaneDevice device, Closeable connection) {
+      this.device = device;
+      this.connection = connection;
+    }
+
+    /**
+     * Starts watching the frame. Records that arrived before are counted, but the idle and
+     * throughput clocks start now.
+     */
+    void start() {
+      synchronized (this) {
+        startNanos = System.nanoTime();
+        lastRecordNanos = startNanos;
+        samples.addLast(new long[] {startNanos, bytesRead});
+      }
+      activeMonitors.put(device, this);
+      long interval = checkIntervalNanos();
+      checkTask =
+          SaneTimer.EXECUTOR.scheduleAtFixedRate(
+              new Runnable() {
+                @Override
+                public void run() {
+                  check(System.nanoTime());
+                }
+              },
+              interval,
+              interval,
+              TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns a listener that forwards every notification to {@code delegate} and records the
+     * progress of the frame.
+     */
+    ScanListener wrap(final ScanListener delegate) {
+      return new ScanListener() {
+        @Override
+        public void scanningStarted(SaneDevice device) {
+          delegate.scanningStarted(device);
+        }
+
+        @Override
+        public void frameAcquisitionStarted(
+            SaneDevice device, SaneParameters parameters, int currentFrame, int likelyTotalFrames) {
+          delegate.frameAcquisitionStarted(device, parameters, currentFrame, likelyTotalFrames);
+        }
+
+        @Override
+        public void recordRead(SaneDevice device, int totalBytesRead, int imageSizeBytes) {
+          recordArrived(totalBytesRead, System.nanoTime());
+          delegate.recordRead(device, totalBytesRead, imageSizeBytes);
+        }
+
+        @Override
+        public void scanningFinished(SaneDevice device) {
+          delegate.scanningFinished(device);
+        }
+      };
+    }
+
+    synchronized void recordArrived(long totalBytesRead, long nowNanos) {
+      bytesRead = totalBytesRead;
+      lastRecordNanos = nowNanos;
+    }
+
+    /**
+     * Returns the throughput of this frame in bytes per second, measured over the watchdog's
+     * window.
+     */
+    synchronized double getBytesPerSecond(long nowNanos) {
+      long[] oldest = samples.peekFirst();
+      long elapsedNanos = nowNanos - oldest[0];
+      if (elapsedNanos <= 0) {
+        return 0;
+      }
+      return (bytesRead - oldest[1]) * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    void check(long nowNanos) {
+      double bytesPerSecond;
+      long idleNanos;
+      synchronized (this) {
+        if (stalled) {
+          return;
+        }
+
+        // Without a window, the throughput is measured since the start of the frame.
+        if (windowNanos != Long.MAX_VALUE) {
+          samples.addLast(new long[] {nowNanos, bytesRead});
+          while (samples.size() > 1 && nowNanos - samples.peekFirst()[0] > windowNanos) {
+            samples.removeFirst();
+          }
+        }
+
+        bytesPerSecond = getBytesPerSecond(nowNanos);
+        idleNanos = nowNanos - lastRecordNanos;
+        boolean idleTooLong = idleNanos > stallTimeoutNanos;
+        boolean tooSlow =
+            nowNanos - startNanos >= windowNanos && bytesPerSecond < minimumBytesPerSecond;
+        if (!idleTooLong && !tooSlow) {
+          return;
+        }
+
+        stalled = true;
+        aborted = abortOnStall;
+        stallDescription =
+            String.format(
+                "scan stalled: %.0f bytes/s, no data for %d ms",
+                bytesPerSecond,
+                TimeUnit.NANOSECONDS.toMillis(idleNanos));
+      }
+
+      log.log(Level.WARNING, "{0} on {1}", new Object[] {stallDescription, device});
+      close();
+      if (listener != null) {
+        try {
+          listener.scanStalled(device, bytesPerSecond, TimeUnit.NANOSECONDS.toMillis(idleNanos));
+        } catch (RuntimeException e) {
+          log.log(Level.WARNING, "scan watchdog listener failed", e);
+        }
+      }
+
+      if (abortOnStall) {
+        try {
+          connection.close();
+        } catch (IOException e) {
+          log.log(Level.FINE, "could not close data connection of stalled scan", e);
+        }
+      }
+    }
+
+    /**
+     * Returns {@code true} if the watchdog aborted this frame.
+     */
+    synchronized boolean isAborted() {
+      return aborted;
+    }
+
+    synchronized String getStallDescription() {
+      return stallDescription;
+    }
+
+    /**
+     * Stops watching the frame.
+     */
+    @Override
+    public void close() {
+      activeMonitors.remove(device, this);
+      ScheduledFuture<?> task = checkTask;
+      if (task != null) {
+        task.cancel(false);
+      }
+    }
+  }
+
+  /**
+   * Builds instances of {@link ScanWatchdog}. By default, a watchdog never finds a scan stalled.
+   */
+  public static final class Builder {
+    private long stallTimeoutNanos = Long.MAX_VALUE;
+    private long minimumBytesPerSecond = 0;
+    private long windowNanos = Long.MAX_VALUE;
+    private boolean abortOnStall = false;
+    private Listener listener = null;
+
+    private Builder() {}
+
+    /**
+     * Considers a scan stalled if no record arrives for longer than the given time.
+     */
+    public Builder setStallTimeout(long timeout, TimeUnit unit) {
+      Preconditions.checkArgument(timeout > 0, "timeout must be positive");
+      this.stallTimeoutNanos = unit.toNanos(timeout);
+      return this;
+    }
+
+    /**
+     * Considers a scan stalled if, once the frame has been read for at least {@code window}, fewer
+     * than {@code bytesPerSecond} bytes per second arrived during the last {@code window}.
+     */
+    public Builder setMinimumThroughput(long bytesPerSecond, long window, TimeUnit unit) {
+      Preconditions.checkArgument(bytesPerSecond >= 0, "bytesPerSecond must not be negative");
+      Preconditions.checkArgument(window > 0, "window must be positive");
+      this.minimumBytesPerSecond = bytesPerSecond;
+      this.windowNanos = unit.toNanos(window);
+      return this;
+    }
+
+    /**
+     * Sets whether stalled scans are aborted. By default, they are only reported.
+     */
+    public Builder setAbortOnStall(boolean abortOnStall) {
+      this.abortOnStall = abortOnStall;
+      return this;
+    }
+
+    /**
+     * Sets the listener that is notified about stalled scans.
+     */
+    public Builder setListener(Listener listener) {
+      this.listener = listener;
+      return this;
+    }
+
+    public ScanWatchdog build() {
+      Preconditions.checkState(
+          stallTimeoutNanos != Long.MAX_VALUE || windowNanos != Long.MAX_VALUE,
+          "either a stall timeout or a minimum throughput must be set");
+      return new ScanWatchdog(this);
+    }
+  }
+}
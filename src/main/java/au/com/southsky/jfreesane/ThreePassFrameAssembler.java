@@ -0,0 +1,166 @@
+package au.com.southsky.jfreesane;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Assembles the {@link FrameType#RED RED}, {@link FrameType#GREEN GREEN} and
+ * {@link FrameType#BLUE BLUE} frames sent by three-pass scanners into a single pixel-interleaved
+ * {@link FrameType#RGB RGB} frame.
+ *
+ * <p>
+ * Rather than keeping three separate frames and combining them once the scan is complete, each
+ * frame is written straight into its channel slot of one interleaved buffer as its records are
+ * read (see {@link FrameReader#readChannel}). The assembled frame has exactly the layout of a frame
+ * produced by a single-pass color scanner.
+ */
+class ThreePassFrameAssembler {
+  private static final Set<FrameType> channelFrameTypes =
+      Sets.immutableEnumSet(FrameType.RED, FrameType.GREEN, FrameType.BLUE);
+
+  static final int CHANNEL_COUNT = channelFrameTypes.size();
+
+  private final Set<FrameType> channelsRead = EnumSet.noneOf(FrameType.class);
+  private SaneParameters firstParameters;
+  private int unitsPerChannel = -1;
+
+  // Exactly one of these is used, depending on the depth of the frames.
+  private byte[] data;
+  private short[] samples;
+
+  /**
+   * Returns {@code true} if the given parameters describe one of the frames of a three-pass scan.
+   */
+  static boolean isChannelFrame(SaneParameters parameters) {
+    return channelFrameTypes.contains(parameters.getFrameType());
+  }
+
+  /**
+   * Returns the index of the slot occupied by the given frame type's samples within each
+   * interleaved pixel.
+   */
+  static int channelOf(FrameType frameType) {
+    switch (frameType) {
+      case RED:
+        return 0;
+      case GREEN:
+        return 1;
+      case BLUE:
+        return 2;
+      default:
+        throw new IllegalArgumentException(frameType + " is not a three-pass frame type");
+    }
+  }
+
+  /**
+   * Reads the frame described by {@code parameters} from {@code reader} into its channel slot.
+   */
+  void readChannel(SaneParameters parameters, FrameReader reader)
+      throws IOException, SaneException {
+    Preconditions.checkArgument(isChannelFrame(parameters), "not a three-pass frame");
+    Preconditions.checkArgument(
+        !channelsRead.contains(parameters.getFrameType()),
+        "Image already contains a frame of this type");
+
+    if (firstParameters == null) {
+      firstParameters = parameters;
+      int lineCount = Math.max(parameters.getLineCount(), 1);
+      ensureChannelCapacity(unitsFor(parameters.getBytesPerLine() * lineCount));
+    } else {
+      Preconditions.checkArgument(
+          parameters.getDepthPerPixel() == firstParameters.getDepthPerPixel()
+              && parameters.getBytesPerLine() == firstParameters.getBytesPerLine()
+              && parameters.getPixelsPerLine() == firstParameters.getPixelsPerLine(),
+          "new frame has inconsistent parameters");
+    }
+
+    int units = reader.readChannel(this);
+    Preconditions.checkArgument(
+        unitsPerChannel == -1 || unitsPerChannel == units, "new frame has an inconsistent size");
+    unitsPerChannel = units;
+    channelsRead.add(parameters.getFrameType());
+  }
+
+  /**
+   * Returns {@code true} once all three frames have been read.
+   */
+  private boolean isComplete() {
+    return channelsRead.size() == CHANNEL_COUNT;
+  }
+
+  /**
+   * Returns the assembled RGB frame.
+   *
+   * @throws IllegalStateException if not all of the three frames have been read
+   */
+  Frame build() {
+    Preconditions.checkState(
+        isComplete(), "Image is not fully constructed. Frame types present: " + channelsRead);
+
+    SaneParameters parameters =
+        new SaneParameters(
+            FrameType.RGB.getWireValue(),
+            true,
+            firstParameters.getBytesPerLine() * CHANNEL_COUNT,
+            firstParameters.getPixelsPerLine(),
+            firstParameters.getLineCount(),
+            firstParameters.getDepthPerPixel());
+
+    int length = unitsPerChannel * CHANNEL_COUNT;
+    if (data != null) {
+      return new Frame(parameters, data.length == length ? data : Arrays.copyOf(data, length));
+    } else {
+      return new Frame(
+          parameters, samples.length == length ? samples : Arrays.copyOf(samples, length));
+    }
+  }
+
+  /**
+   * Makes sure that each channel can hold at least the given number of bytes (for 1-bit and 8-bit
+   * frames) or samples (for 16-bit frames).
+   */
+  void ensureChannelCapacity(int units) {
+    int required = units * CHANNEL_COUNT;
+    if (isSixteenBit()) {
+      if (samples == null) {
+        samples = new short[required];
+      } else if (samples.length < required) {
+        samples = Arrays.copyOf(samples, Math.max(samples.length * 2, required));
+      }
+    } else {
+      if (data == null) {
+        data = new byte[required];
+      } else if (data.length < required) {
+        data = Arrays.copyOf(data, Math.max(data.length * 2, required));
+      }
+    }
+  }
+
+  /**
+   * Returns the interleaved buffer of 1-bit or 8-bit frames. The bytes of channel {@code c} are at
+   * indexes {@code c}, {@code c + CHANNEL_COUNT}, {@code c + 2 * CHANNEL_COUNT} and so on.
+   */
+  byte[] getData() {
+    return data;
+  }
+
+  /**
+   * Returns the interleaved buffer of 16-bit frames, laid out like {@link #getData}.
+   */
+  short[] getSamples() {
+    return samples;
+  }
+
+  private boolean isSixteenBit() {
+    return firstParameters.getDepthPerPixel() == 16;
+  }
+
+  private int unitsFor(int bytes) {
+    return isSixteenBit() ? bytes / (Short.SIZE / Byte.SIZE) : bytes;
+  }
+}
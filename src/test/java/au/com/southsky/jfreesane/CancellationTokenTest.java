@@ -0,0 +1,81 @@
+package au.com.southsky.jfreesane;
+
+import java.io.Closeable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests {@link CancellationToken}. These tests do not require a SANE daemon.
+ */
+@RunWith(JUnit4.class)
+public class CancellationTokenTest {
+
+  @Test
+  public void cancelClosesAttachedConnection() throws Exception {
+    CancellationToken token = CancellationToken.create();
+    CountingCloseable connection = new CountingCloseable();
+    token.attach(connection);
+
+    token.cancel();
+    token.cancel();
+
+    assertThat(token.isCancelled()).isTrue();
+    assertThat(token.isDeadlineExceeded()).isFalse();
+    assertThat(connection.closed.getCount()).isEqualTo(0L);
+  }
+
+  @Test
+  public void connectionAttachedAfterCancellationIsClosed() throws Exception {
+    CancellationToken token = CancellationToken.create();
+    token.cancel();
+
+    CountingCloseable connection = new CountingCloseable();
+    token.attach(connection);
+
+    assertThat(connection.closed.getCount()).isEqualTo(0L);
+    try {
+      token.checkNotCancelled();
+      fail("expected SaneException");
+    } catch (SaneException e) {
+      assertThat(e.getStatus()).isEqualTo(SaneStatus.STATUS_CANCELLED);
+    }
+  }
+
+  @Test
+  public void detachedConnectionIsNotClosed() throws Exception {
+    CancellationToken token = CancellationToken.create();
+    CountingCloseable connection = new CountingCloseable();
+    token.attach(connection);
+    token.detach();
+
+    token.cancel();
+
+    assertThat(connection.closed.getCount()).isEqualTo(1L);
+  }
+
+  @Test
+  public void deadlineCancelsToken() throws Exception {
+    CancellationToken token = CancellationToken.withDeadline(50, TimeUnit.MILLISECONDS);
+    CountingCloseable connection = new CountingCloseable();
+    token.attach(connection);
+
+    assertThat(connection.closed.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(token.isCancelled()).isTrue();
+    assertThat(token.isDeadlineExceeded()).isTrue();
+  }
+
+  private static class CountingCloseable implements Closeable {
+    final CountDownLatch closed = new CountDownLatch(1);
+
+    @Override
+    public void close() {
+      closed.countDown();
+    }
+  }
+}
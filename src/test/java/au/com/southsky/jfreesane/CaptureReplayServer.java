@@ -0,0 +1,374 @@
+package au.com.southsky.jfreesane;
+
+import au.com.southsky.jfreesane.SaneCapture.Record;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fake SANE daemon that replays a capture made with {@link SaneSession#startCapture}, so that
+ * traffic recorded against a real scanner can be used as a deterministic test fixture or
+ * benchmark workload.
+ *
+ * <p>
+ * The client must make the same calls as the session that was captured. The server answers the
+ * requests on its n-th control connection with the replies recorded on the n-th connection of the
+ * capture (the first being the one the capture was started on), and serves the image data of the
+ * n-th successful scan from the n-th recorded data connection. Requests are checked against the
+ * recording by their RPC code; a connection that receives a different request is dropped. The
+ * user name sent in {@code SANE_NET_INIT} is not checked, since it differs between machines.
+ *
+ * <p>
+ * At {@link Pace#ORIGINAL} pace, each reply and each chunk of image data is sent as long after the
+ * request or data connection it belongs to as it was received in the capture. At
+ * {@link Pace#MAXIMUM} pace, everything is sent as soon as it is due.
+ */
+class CaptureReplayServer implements Runnable, Closeable {
+  private static final int INIT = SaneRpcCode.SANE_NET_INIT.getWireValue();
+  private static final int START = SaneRpcCode.SANE_NET_START.getWireValue();
+  private static final int EXIT = SaneRpcCode.SANE_NET_EXIT.getWireValue();
+
+  /**
+   * How fast the recorded traffic is replayed.
+   */
+  enum Pace {
+    /** Replies and image data are sent with the delays they were recorded with. */
+    ORIGINAL,
+    /** Replies and image data are sent without delay. */
+    MAXIMUM
+  }
+
+  /**
+   * A recorded request and the replies to it.
+   */
+  private static final class Exchange {
+    final Record request;
+    final List<Record> replies = Lists.newArrayList();
+
+    Exchange(Record request) {
+      this.request = request;
+    }
+
+    int getCode() {
+      return wordAt(request.getBytes(), 0);
+    }
+  }
+
+  /**
+   * A recorded data connection and the image data read from it.
+   */
+  private static final class DataConnection {
+    final Record opened;
+    final List<Record> chunks = Lists.newArrayList();
+
+    DataConnection(Record opened) {
+      this.opened = opened;
+    }
+  }
+
+  private final ServerSocket serverSocket =
+      new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+  private final Pace pace;
+  private final List<List<Exchange>> controlConnections;
+  private final List<DataConnection> dataConnections;
+  private final Thread thread = new Thread(this, "replay-saned");
+
+  // Guarded by this.
+  private final List<Socket> sockets = Lists.newArrayList();
+  private int connectionCount;
+  private int scanCount;
+
+  /**
+   * Reads a capture from {@code capture} and starts serving it.
+   *
+   * @throws IOException if the capture could not be read
+   */
+  CaptureReplayServer(InputStream capture, Pace pace) throws IOException {
+    this.pace = pace;
+    List<List<Exchange>> control = Lists.newArrayList();
+    control.add(Lists.<Exchange>newArrayList());
+    Map<Integer, DataConnection> data = Maps.newLinkedHashMap();
+    for (Record record : SaneCapture.read(capture)) {
+      List<Exchange> exchanges = control.get(control.size() - 1);
+      switch (record.getType()) {
+        case CONTROL_CONNECTED:
+          control.add(Lists.<Exchange>newArrayList());
+          break;
+        case REQUEST:
+          exchanges.add(new Exchange(record));
+          break;
+        case REPLY:
+          // A reply read before the first request belongs to a request made before the capture.
+          if (!exchanges.isEmpty()) {
+            exchanges.get(exchanges.size() - 1).replies.add(record);
+          }
+          break;
+        case DATA_OPENED:
+          data.put(record.getConnection(), new DataConnection(record));
+          break;
+        case DATA:
+          if (data.containsKey(record.getConnection())) {
+            data.get(record.getConnection()).chunks.add(record);
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    this.controlConnections = control;
+    this.dataConnections = ImmutableList.copyOf(data.values());
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  SaneSession connect() throws IOException {
+    return SaneSession.withRemoteSane(InetAddress.getLoopbackAddress(), getPort());
+  }
+
+  /**
+   * Stops accepting connections and drops the open ones.
+   */
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    List<Socket> openSockets;
+    synchronized (this) {
+      openSockets = ImmutableList.copyOf(sockets);
+    }
+    for (Socket socket : openSockets) {
+      socket.close();
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (true) {
+        final Socket socket = serverSocket.accept();
+        final int connection;
+        synchronized (this) {
+          if (serverSocket.isClosed()) {
+            // The connection raced close(), and must not be served.
+            socket.close();
+            return;
+          }
+          connection = connectionCount++;
+          sockets.add(socket);
+        }
+        startThread(
+            new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  if (connection < controlConnections.size()) {
+                    serve(socket, controlConnections.get(connection));
+                  }
+                } catch (IOException e) {
+                  // The client went away, diverged from the capture, or the server was closed.
+                } finally {
+                  closeSocket(socket);
+                }
+              }
+            },
+            "replay-saned-" + connection);
+      }
+    } catch (IOException e) {
+      // The server socket was closed.
+    }
+  }
+
+  private void serve(Socket socket, List<Exchange> exchanges) throws IOException {
+    DataInputStream in = new DataInputStream(socket.getInputStream());
+    OutputStream out = socket.getOutputStream();
+
+    int first = 0;
+    if (exchanges.isEmpty() || exchanges.get(0).getCode() != INIT) {
+      // The capture was started after this connection was introduced, so do it here.
+      int version = readInit(in);
+      out.write(toBytes(0, version));
+      out.flush();
+    } else {
+      first = 1;
+      readInit(in);
+      sendReplies(out, exchanges.get(0), System.nanoTime());
+    }
+
+    for (Exchange exchange : exchanges.subList(first, exchanges.size())) {
+      byte[] expected = exchange.request.getBytes();
+      int code = in.readInt();
+      if (code != exchange.getCode()) {
+        throw new IOException(
+            "expected request " + exchange.getCode() + " from the capture but got " + code);
+      }
+      in.readFully(new byte[expected.length - 4]);
+      sendReplies(out, exchange, System.nanoTime());
+    }
+
+    // The capture is exhausted. Wait for the client to leave, unless it wants more.
+    try {
+      int code = in.readInt();
+      if (code != EXIT) {
+        throw new IOException("request " + code + " was made after the end of the capture");
+      }
+      while (in.read() != -1) {
+        // Wait for the client to close the connection.
+      }
+    } catch (EOFException e) {
+      // The client went away.
+    }
+  }
+
+  /**
+   * Reads {@code SANE_NET_INIT} and returns the protocol version the client sent.
+   */
+  private static int readInit(DataInputStream in) throws IOException {
+    int code = in.readInt();
+    if (code != INIT) {
+      throw new IOException("expected SANE_NET_INIT but got request " + code);
+    }
+    int version = in.readInt();
+    int usernameLength = in.readInt();
+    in.readFully(new byte[usernameLength]);
+    return version;
+  }
+
+  private void sendReplies(OutputStream out, Exchange exchange, long receivedNanos)
+      throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    for (Record reply : exchange.replies) {
+      buffer.write(reply.getBytes());
+    }
+    byte[] reply = buffer.toByteArray();
+    if (exchange.getCode() == START && reply.length >= 8 && wordAt(reply, 0) == 0) {
+      // Point the client at a data port of this server instead of the captured daemon.
+      int port = serveData(nextDataConnection());
+      System.arraycopy(toBytes(port), 0, reply, 4, 4);
+    }
+
+    int offset = 0;
+    for (Record chunk : exchange.replies) {
+      int length = chunk.getBytes().length;
+      sleepUntil(receivedNanos, chunk.getMicros() - exchange.request.getMicros());
+      out.write(reply, offset, length);
+      out.flush();
+      offset += length;
+    }
+  }
+
+  private synchronized DataConnection nextDataConnection() {
+    return scanCount < dataConnections.size() ? dataConnections.get(scanCount++) : null;
+  }
+
+  /**
+   * Listens for the data connection of a scan and sends it the image data of {@code recorded},
+   * or none if it is {@code null}. Returns the port to connect to.
+   */
+  private int serveData(final DataConnection recorded) throws IOException {
+    final ServerSocket dataServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    startThread(
+        new Runnable() {
+          @Override
+          public void run() {
+            Socket socket = null;
+            try {
+              socket = dataServer.accept();
+              synchronized (CaptureReplayServer.this) {
+                sockets.add(socket);
+              }
+              long acceptedNanos = System.nanoTime();
+              OutputStream out = socket.getOutputStream();
+              if (recorded != null) {
+                for (Record chunk : recorded.chunks) {
+                  sleepUntil(acceptedNanos, chunk.getMicros() - recorded.opened.getMicros());
+                  out.write(chunk.getBytes());
+                  out.flush();
+                }
+              }
+            } catch (IOException e) {
+              // The scan was cancelled, or the server was closed.
+            } finally {
+              closeQuietly(dataServer);
+              if (socket != null) {
+                closeSocket(socket);
+              }
+            }
+          }
+        },
+        "replay-saned-data");
+    return dataServer.getLocalPort();
+  }
+
+  private void sleepUntil(long startNanos, long offsetMicros) throws InterruptedIOException {
+    if (pace == Pace.MAXIMUM) {
+      return;
+    }
+    long remainingNanos =
+        startNanos + TimeUnit.MICROSECONDS.toNanos(offsetMicros) - System.nanoTime();
+    if (remainingNanos <= 0) {
+      return;
+    }
+    try {
+      TimeUnit.NANOSECONDS.sleep(remainingNanos);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while replaying");
+    }
+  }
+
+  private void closeSocket(Socket socket) {
+    synchronized (this) {
+      sockets.remove(socket);
+    }
+    closeQuietly(socket);
+  }
+
+  private static void startThread(Runnable runnable, String name) {
+    Thread thread = new Thread(runnable, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // Nothing more can be done.
+    }
+  }
+
+  private static int wordAt(byte[] bytes, int offset) {
+    return ((bytes[offset] & 0xff) << 24)
+        | ((bytes[offset + 1] & 0xff) << 16)
+        | ((bytes[offset + 2] & 0xff) << 8)
+        | (bytes[offset + 3] & 0xff);
+  }
+
+  private static byte[] toBytes(int... words) {
+    byte[] bytes = new byte[words.length * 4];
+    for (int i = 0; i < words.length; i++) {
+      bytes[i * 4] = (byte) (words[i] >>> 24);
+      bytes[i * 4 + 1] = (byte) (words[i] >>> 16);
+      bytes[i * 4 + 2] = (byte) (words[i] >>> 8);
+      bytes[i * 4 + 3] = (byte) words[i];
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,367 @@
+package au.com.southsky.jfreesane;
+
+import com.google.common.collect.ImmutableList;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.EnumSet;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests {@link FrameReader} against synthetic record streams. These tests do not require a SANE
+ * daemon.
+ */
+@RunWith(JUnit4.class)
+public class FrameReaderTest {
+
+  @Test
+  public void readsEightBitFrame() throws Exception {
+    byte[] image = SaneImageTest.randomBytes(60);
+    SaneParameters parameters = parameters(FrameType.GRAY, 8, 10, 10, 6);
+
+    Frame frame = readFrame(parameters, true, recordStream(image, 7));
+
+    assertArrayEquals(image, frame.getData());
+    assertNull(frame.getSamples());
+  }
+
+  @Test
+  public void readsBigEndianSixteenBitFrame() throws Exception {
+    byte[] image = SaneImageTest.randomBytes(120);
+    SaneParameters parameters = parameters(FrameType.GRAY, 16, 20, 10, 6);
+
+    Frame frame = readFrame(parameters, true, recordStream(image, 7));
+
+    assertArrayEquals(expectedSamples(image, true), frame.getSamples());
+    assertNull(frame.getData());
+  }
+
+  @Test
+  public void readsLittleEndianSixteenBitFrameWithSamplesSplitAcrossRecords() throws Exception {
+    byte[] image = SaneImageTest.randomBytes(120);
+    SaneParameters parameters = parameters(FrameType.GRAY, 16, 20, 10, 6);
+
+    Frame frame = readFrame(parameters, false, recordStream(image, 1, 3, 5, 11));
+
+    assertArrayEquals(expectedSamples(image, false), frame.getSamples());
+  }
+
+  @Test
+  public void padsTruncatedSixteenBitFrame() throws Exception {
+    byte[] image = SaneImageTest.randomBytes(80);
+    SaneParameters parameters = parameters(FrameType.GRAY, 16, 20, 10, 6);
+
+    Frame frame = readFrame(parameters, true, recordStream(image, 9));
+
+    short[] expected = new short[60];
+    System.arraycopy(expectedSamples(image, true), 0, expected, 0, 40);
+    assertArrayEquals(expected, frame.getSamples());
+  }
+
+  @Test
+  public void detectsLineCountOfSixteenBitFrame() throws Exception {
+    byte[] image = SaneImageTest.randomBytes(100);
+    SaneParameters parameters = parameters(FrameType.GRAY, 16, 20, 10, -1);
+
+    Frame frame = readFrame(parameters, false, recordStream(image, 13));
+
+    assertThat(parameters.getLineCount()).isEqualTo(5);
+    assertArrayEquals(expectedSamples(image, false), frame.getSamples());
+  }
+
+  @Test
+  public void interleavesThreePassEightBitFrames() throws Exception {
+    byte[] channels = SaneImageTest.randomBytes(60);
+    byte[] red = Arrays.copyOfRange(channels, 0, 20);
+    byte[] green = Arrays.copyOfRange(channels, 20, 40);
+    byte[] blue = Arrays.copyOfRange(channels, 40, 60);
+
+    ThreePassFrameAssembler assembler = new ThreePassFrameAssembler();
+    readChannel(assembler, FrameType.GREEN, 8, 5, green, true);
+    readChannel(assembler, FrameType.RED, 8, 5, red, true);
+    readChannel(assembler, FrameType.BLUE, 8, 5, blue, true);
+    Frame frame = assembler.build();
+
+    assertThat(frame.getType()).isEqualTo(FrameType.RGB);
+    assertThat(frame.getBytesPerLine()).isEqualTo(15);
+    byte[] expected = new byte[60];
+    for (int i = 0; i < 20; i++) {
+      expected[3 * i] = red[i];
+      expected[3 * i + 1] = green[i];
+      expected[3 * i + 2] = blue[i];
+    }
+    assertArrayEquals(expected, frame.getData());
+  }
+
+  @Test
+  public void interleavesThreePassSixteenBitFrames() throws Exception {
+    byte[] image = SaneImageTest.randomBytes(120);
+    byte[][] channels = new byte[3][];
+    FrameType[] types = {FrameType.RED, FrameType.GREEN, FrameType.BLUE};
+    ThreePassFrameAssembler assembler = new ThreePassFrameAssembler();
+    for (int c = 0; c < 3; c++) {
+      channels[c] = Arrays.copyOfRange(image, c * 40, (c + 1) * 40);
+      readChannel(assembler, types[c], 16, 10, channels[c], false);
+    }
+    Frame frame = assembler.build();
+
+    short[] expected = new short[60];
+    for (int c = 0; c < 3; c++) {
+      short[] channelSamples = expectedSamples(channels[c], false);
+      for (int i = 0; i < 20; i++) {
+        expected[3 * i + c] = channelSamples[i];
+      }
+    }
+    assertArrayEquals(expected, frame.getSamples());
+  }
+
+  @Test
+  public void readsFramesOffHeap() throws Exception {
+    for (FrameStorage storage : EnumSet.of(FrameStorage.DIRECT, FrameStorage.MAPPED_FILE)) {
+      byte[] image = SaneImageTest.randomBytes(120);
+      SaneParameters parameters = parameters(FrameType.GRAY, 16, 20, 10, -1);
+
+      Frame frame =
+          readFrame(
+              parameters,
+              false,
+              recordStream(image, 1, 3, 5, 11),
+              FrameStoragePolicy.always(storage));
+      try {
+        assertNull(frame.getSamples());
+        assertThat(frame.getSizeInBytes()).isEqualTo(120);
+        assertThat(parameters.getLineCount()).isEqualTo(6);
+
+        ShortBuffer samples =
+            frame.getBuffer().duplicate().order(frame.getBuffer().order()).asShortBuffer();
+        short[] actual = new short[samples.remaining()];
+        samples.get(actual);
+        assertArrayEquals(expectedSamples(image, false), actual);
+
+        BufferedImage bufferedImage = new SaneRawImage(ImmutableList.of(frame)).toBufferedImage();
+        assertThat(bufferedImage.getRaster().getSample(3, 2, 0))
+            .isEqualTo(expectedSamples(image, false)[2 * 10 + 3] & 0xffff);
+      } finally {
+        frame.release();
+      }
+    }
+  }
+
+  @Test
+  public void decodesSingleBitGrayFramesOffHeap() throws Exception {
+    for (FrameStorage storage : EnumSet.of(FrameStorage.DIRECT, FrameStorage.MAPPED_FILE)) {
+      // 10 pixels per line, padded to 2 bytes.
+      byte[] image = SaneImageTest.randomBytes(8);
+      Frame frame =
+          readFrame(
+              parameters(FrameType.GRAY, 1, 2, 10, 4),
+              false,
+              recordStream(image, 3),
+              FrameStoragePolicy.always(storage));
+      try {
+        BufferedImage bufferedImage = new SaneRawImage(ImmutableList.of(frame)).toBufferedImage();
+        for (int y = 0; y < 4; y++) {
+          for (int x = 0; x < 10; x++) {
+            int bit = (image[y * 2 + x / 8] >> (7 - x % 8)) & 1;
+            assertThat(bufferedImage.getRaster().getSample(x, y, 0)).isEqualTo(bit);
+          }
+        }
+      } finally {
+        frame.release();
+      }
+    }
+  }
+
+  @Test
+  public void viewsOfReleasedOffHeapImagesStayReadable() throws Exception {
+    for (FrameStorage storage : EnumSet.of(FrameStorage.DIRECT, FrameStorage.MAPPED_FILE)) {
+      byte[] image = SaneImageTest.randomBytes(60);
+      Frame frame =
+          readFrame(
+              parameters(FrameType.GRAY, 8, 10, 10, 6),
+              false,
+              recordStream(image, 7),
+              FrameStoragePolicy.always(storage));
+      SaneRawImage rawImage = new SaneRawImage(ImmutableList.of(frame));
+      ByteBuffer data = rawImage.getData(0);
+      BufferedImage bufferedImage = rawImage.toBufferedImage();
+
+      rawImage.release();
+      rawImage.release();
+
+      byte[] actual = new byte[data.remaining()];
+      data.get(actual);
+      assertArrayEquals(image, actual);
+      assertThat(bufferedImage.getRaster().getSample(3, 2, 0)).isEqualTo(image[2 * 10 + 3] & 0xff);
+      try {
+        rawImage.getData(0);
+        fail("a released image handed out its data");
+      } catch (IllegalStateException e) {
+        // Expected.
+      }
+    }
+  }
+
+  @Test
+  public void reusesPooledArraysOfReleasedFrames() throws Exception {
+    ScanBufferPool pool = ScanBufferPool.create(1 << 20);
+    FrameStoragePolicy policy = FrameStoragePolicy.always(FrameStorage.HEAP);
+    byte[] firstImage = SaneImageTest.randomBytes(6000);
+    Frame first =
+        readFrame(
+            parameters(FrameType.GRAY, 8, 100, 100, 60),
+            true,
+            recordStream(firstImage, 1000),
+            policy,
+            pool);
+    assertThat(first.getData().length).isEqualTo(8192);
+    assertThat(first.getSizeInBytes()).isEqualTo(6000);
+    byte[] firstData = first.getData();
+    first.release();
+    assertThat(pool.getRetainedBytes()).isEqualTo(8192L);
+
+    // The second frame is truncated, so the padding must overwrite the first frame's bytes.
+    byte[] secondImage = SaneImageTest.randomBytes(5000);
+    Frame second =
+        readFrame(
+            parameters(FrameType.GRAY, 8, 100, 100, 60),
+            true,
+            recordStream(secondImage, 1000),
+            policy,
+            pool);
+    assertThat(second.getData()).isSameAs(firstData);
+    assertThat(pool.getRetainedBytes()).isEqualTo(0L);
+    byte[] expected = Arrays.copyOf(secondImage, 6000);
+    assertArrayEquals(expected, Arrays.copyOf(second.getData(), second.getSizeInBytes()));
+  }
+
+  @Test
+  public void exposedArraysAreNotPooled() throws Exception {
+    ScanBufferPool pool = ScanBufferPool.create(1 << 20);
+    FrameStoragePolicy policy = FrameStoragePolicy.always(FrameStorage.HEAP);
+    byte[] image = SaneImageTest.randomBytes(6000);
+    Frame first =
+        readFrame(
+            parameters(FrameType.GRAY, 8, 100, 100, 60),
+            true,
+            recordStream(image, 1000),
+            policy,
+            pool);
+    SaneRawImage rawImage = new SaneRawImage(ImmutableList.of(first));
+    ByteBuffer data = rawImage.getData(0);
+    rawImage.release();
+    assertThat(pool.getRetainedBytes()).isEqualTo(0L);
+
+    Frame second =
+        readFrame(
+            parameters(FrameType.GRAY, 8, 100, 100, 60),
+            true,
+            recordStream(SaneImageTest.randomBytes(5000), 1000),
+            policy,
+            pool);
+    assertThat(second.getData()).isNotSameAs(first.getData());
+    byte[] actual = new byte[data.remaining()];
+    data.get(actual);
+    assertArrayEquals(image, actual);
+  }
+
+  private static void readChannel(
+      ThreePassFrameAssembler assembler,
+      FrameType frameType,
+      int depth,
+      int pixelsPerLine,
+      byte[] image,
+      boolean bigEndian)
+      throws IOException, SaneException {
+    int bytesPerLine = pixelsPerLine * depth / 8;
+    SaneParameters parameters =
+        parameters(frameType, depth, bytesPerLine, pixelsPerLine, image.length / bytesPerLine);
+    FrameReader reader =
+        new FrameReader(
+            null,
+            parameters,
+            new ByteArrayInputStream(recordStream(image, 3, 7)),
+            bigEndian,
+            new ScanListenerAdapter());
+    assembler.readChannel(parameters, reader);
+  }
+
+  static SaneParameters parameters(
+      FrameType frameType, int depth, int bytesPerLine, int pixelsPerLine, int lines) {
+    return new SaneParameters(
+        frameType.getWireValue(), true, bytesPerLine, pixelsPerLine, lines, depth);
+  }
+
+  static Frame readFrame(SaneParameters parameters, boolean bigEndian, byte[] records)
+      throws IOException, SaneException {
+    return readFrame(parameters, bigEndian, records, FrameStoragePolicy.always(FrameStorage.HEAP));
+  }
+
+  static Frame readFrame(
+      SaneParameters parameters, boolean bigEndian, byte[] records, FrameStoragePolicy policy)
+      throws IOException, SaneException {
+    return readFrame(parameters, bigEndian, records, policy, ScanBufferPool.none());
+  }
+
+  static Frame readFrame(
+      SaneParameters parameters,
+      boolean bigEndian,
+      byte[] records,
+      FrameStoragePolicy policy,
+      ScanBufferPool bufferPool)
+      throws IOException, SaneException {
+    FrameReader reader =
+        new FrameReader(
+            null,
+            parameters,
+            new ByteArrayInputStream(records),
+            bigEndian,
+            new ScanListenerAdapter(),
+            policy,
+            bufferPool);
+    return reader.readFrame();
+  }
+
+  /**
+   * Returns the given image encoded as a stream of SANE records. The sizes of successive records
+   * are taken from {@code recordSizes}, repeating the last size until the image is exhausted.
+   */
+  static byte[] recordStream(byte[] image, int... recordSizes) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(bytes);
+    int offset = 0;
+    int recordIndex = 0;
+    while (offset < image.length) {
+      int size = recordSizes[Math.min(recordIndex++, recordSizes.length - 1)];
+      size = Math.min(size, image.length - offset);
+      output.writeInt(size);
+      output.write(image, offset, size);
+      offset += size;
+    }
+    output.writeInt(0xffffffff);
+    output.write(SaneStatus.STATUS_EOF.getWireValue());
+    return bytes.toByteArray();
+  }
+
+  private static short[] expectedSamples(byte[] image, boolean bigEndian) {
+    short[] result = new short[image.length / 2];
+    for (int i = 0; i < result.length; i++) {
+      int first = image[2 * i] & 0xff;
+      int second = image[2 * i + 1] & 0xff;
+      result[i] = (short) (bigEndian ? (first << 8) | second : (second << 8) | first);
+    }
+    return result;
+  }
+}
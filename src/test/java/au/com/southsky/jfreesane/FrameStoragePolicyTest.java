@@ -0,0 +1,93 @@
+package au.com.southsky.jfreesane;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Tests the storage decisions made by {@link FrameStoragePolicy}. These tests do not require a SANE
+ * daemon.
+ */
+@RunWith(JUnit4.class)
+public class FrameStoragePolicyTest {
+
+  @Test
+  public void defaultPolicyKeepsEveryFrameOnHeap() throws Exception {
+    FrameStoragePolicy policy = FrameStoragePolicy.builder().build();
+
+    assertThat(policy.reserve(Integer.MAX_VALUE).getStorage()).isEqualTo(FrameStorage.HEAP);
+    assertThat(policy.reserve(-1).getStorage()).isEqualTo(FrameStorage.HEAP);
+  }
+
+  @Test
+  public void spoolsFramesAboveThreshold() throws Exception {
+    FrameStoragePolicy policy =
+        FrameStoragePolicy.builder()
+            .setInMemoryStorage(FrameStorage.DIRECT)
+            .setMaxInMemoryFrameSize(1000)
+            .build();
+
+    assertThat(policy.reserve(1000).getStorage()).isEqualTo(FrameStorage.DIRECT);
+    assertThat(policy.reserve(1001).getStorage()).isEqualTo(FrameStorage.MAPPED_FILE);
+    assertThat(policy.reserve(-1).getStorage()).isEqualTo(FrameStorage.MAPPED_FILE);
+  }
+
+  @Test
+  public void spoolsFramesOnceBudgetIsUsedUp() throws Exception {
+    ScanMemoryBudget budget = ScanMemoryBudget.spilling(1000);
+    FrameStoragePolicy policy = FrameStoragePolicy.builder().setMemoryBudget(budget).build();
+
+    FrameStoragePolicy.Reservation first = policy.reserve(600);
+    assertThat(first.getStorage()).isEqualTo(FrameStorage.HEAP);
+    assertThat(budget.getUsedBytes()).isEqualTo(600L);
+
+    FrameStoragePolicy.Reservation second = policy.reserve(600);
+    assertThat(second.getStorage()).isEqualTo(FrameStorage.MAPPED_FILE);
+    assertThat(budget.getUsedBytes()).isEqualTo(600L);
+
+    first.release();
+    first.release();
+    assertThat(budget.getUsedBytes()).isEqualTo(0L);
+    assertThat(policy.reserve(600).getStorage()).isEqualTo(FrameStorage.HEAP);
+    assertThat(budget.getSpilledFrameCount()).isEqualTo(1L);
+    assertThat(budget.getPeakUsedBytes()).isEqualTo(600L);
+  }
+
+  @Test
+  public void releasesReservationWithFrame() throws Exception {
+    ScanMemoryBudget budget = ScanMemoryBudget.spilling(1000);
+    FrameStoragePolicy policy = FrameStoragePolicy.builder().setMemoryBudget(budget).build();
+    byte[] image = SaneImageTest.randomBytes(60);
+    SaneParameters parameters = FrameReaderTest.parameters(FrameType.GRAY, 8, 10, 10, 6);
+
+    Frame frame =
+        FrameReaderTest.readFrame(parameters, true, FrameReaderTest.recordStream(image, 7), policy);
+    assertThat(budget.getUsedBytes()).isEqualTo(60L);
+
+    frame.release();
+    assertThat(budget.getUsedBytes()).isEqualTo(0L);
+  }
+
+  @Test
+  public void reservesTheRoundedSizeOfPooledArrays() throws Exception {
+    ScanMemoryBudget budget = ScanMemoryBudget.spilling(1 << 20);
+    FrameStoragePolicy policy = FrameStoragePolicy.builder().setMemoryBudget(budget).build();
+    byte[] image = SaneImageTest.randomBytes(6000);
+    SaneParameters parameters = FrameReaderTest.parameters(FrameType.GRAY, 8, 100, 100, 60);
+
+    Frame frame =
+        FrameReaderTest.readFrame(
+            parameters,
+            true,
+            FrameReaderTest.recordStream(image, 1000),
+            policy,
+            ScanBufferPool.create(1 << 20));
+    assertThat(frame.getData().length).isEqualTo(8192);
+    assertThat(budget.getUsedBytes()).isEqualTo(8192L);
+
+    frame.release();
+    assertThat(budget.getUsedBytes()).isEqualTo(0L);
+  }
+}
@@ -0,0 +1,162 @@
+package au.com.southsky.jfreesane;
+
+import au.com.southsky.jfreesane.CaptureReplayServer.Pace;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Captures sessions against a fake daemon and replays them. These tests do not require a SANE
+ * daemon.
+ */
+@RunWith(JUnit4.class)
+public class SaneCaptureTest {
+  private TestSaneServer server;
+  private CaptureReplayServer replay;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new TestSaneServer();
+    server.setImageSize(40, 30);
+    server.setRecordSize(100);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.close();
+    if (replay != null) {
+      replay.close();
+    }
+  }
+
+  @Test
+  public void replayedScansMatchTheCapture() throws Exception {
+    ByteArrayOutputStream capture = new ByteArrayOutputStream();
+    List<Buffer> captured;
+    try (SaneSession session = server.connect()) {
+      session.startCapture(capture);
+      captured = scanColorAndGray(session);
+    }
+
+    replay = replay(capture, Pace.MAXIMUM);
+    try (SaneSession session = replay.connect()) {
+      assertThat(scanColorAndGray(session)).isEqualTo(captured);
+    }
+  }
+
+  @Test
+  public void originalPaceKeepsTheRecordedDelays() throws Exception {
+    // 10 kilobytes of image data at 40 kilobytes per second.
+    server.setImageSize(100, 100);
+    server.setRecordSize(1000);
+    server.setDataRate(40000);
+    ByteArrayOutputStream capture = new ByteArrayOutputStream();
+    try (SaneSession session = server.connect()) {
+      session.startCapture(capture);
+      scanGray(session);
+    }
+
+    replay = replay(capture, Pace.ORIGINAL);
+    long originalMillis = scanGray(replay);
+    replay.close();
+    replay = replay(capture, Pace.MAXIMUM);
+    long maximumMillis = scanGray(replay);
+
+    assertThat(originalMillis).isAtLeast(150L);
+    assertThat(maximumMillis).isLessThan(originalMillis);
+  }
+
+  @Test
+  public void clientThatDivergesFromTheCaptureIsDisconnected() throws Exception {
+    ByteArrayOutputStream capture = new ByteArrayOutputStream();
+    try (SaneSession session = server.connect()) {
+      session.startCapture(capture);
+      scanGray(session);
+    }
+
+    replay = replay(capture, Pace.MAXIMUM);
+    SaneSession session = replay.connect();
+    try {
+      // The captured session opened a device first.
+      session.listDevices();
+      fail("the replay answered a request that was not captured");
+    } catch (IOException e) {
+      // Expected.
+    } finally {
+      try {
+        session.close();
+      } catch (IOException e) {
+        // The connection is already gone.
+      }
+    }
+  }
+
+  @Test
+  public void brokenCaptureDoesNotBreakClose() throws Exception {
+    SaneSession session = server.connect();
+    session.startCapture(
+        new OutputStream() {
+          @Override
+          public void write(int b) throws IOException {
+            throw new IOException("the disk is full");
+          }
+        });
+    scanGray(session);
+
+    session.close();
+  }
+
+  private static CaptureReplayServer replay(ByteArrayOutputStream capture, Pace pace)
+      throws IOException {
+    return new CaptureReplayServer(new ByteArrayInputStream(capture.toByteArray()), pace);
+  }
+
+  private static List<Buffer> scanColorAndGray(SaneSession session) throws Exception {
+    SaneDevice device = session.getDevice("test");
+    device.open();
+    device.getOption("mode").setStringValue("Color");
+    SaneRawImage color = device.acquireRaw();
+    device.getOption("mode").setStringValue("Gray");
+    device.getOption("depth").setIntegerValue(16);
+    SaneRawImage gray = device.acquireRaw();
+    device.close();
+    return ImmutableList.<Buffer>of(color.getData(0), gray.getSamples(0));
+  }
+
+  private static void scanGray(SaneSession session) throws Exception {
+    SaneDevice device = session.getDevice("test");
+    device.open();
+    device.acquireRaw().release();
+    device.close();
+  }
+
+  /**
+   * Makes the same calls as {@link #scanGray(SaneSession)} on a session connected to
+   * {@code replay}, and returns how long the scan took in milliseconds.
+   */
+  private static long scanGray(CaptureReplayServer replay) throws Exception {
+    try (SaneSession session = replay.connect()) {
+      SaneDevice device = session.getDevice("test");
+      device.open();
+      Stopwatch stopwatch = Stopwatch.createStarted();
+      device.acquireRaw().release();
+      long elapsedMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+      device.close();
+      return elapsedMillis;
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package au.com.southsky.jfreesane;
+
+import com.google.common.collect.Lists;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Tests {@link SaneCluster} against scripted daemons. These tests do not require a SANE daemon.
+ */
+@RunWith(JUnit4.class)
+public class SaneClusterTest {
+  private TestSaneServer first;
+  private TestSaneServer second;
+  private SaneCluster cluster;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  @Before
+  public void setUp() throws Exception {
+    first = new TestSaneServer();
+    second = new TestSaneServer();
+    cluster =
+        SaneCluster.builder()
+            .addDevice(InetAddress.getLoopbackAddress(), first.getPort(), "test")
+            .addDevice(InetAddress.getLoopbackAddress(), second.getPort(), "test")
+            .setKeepalive(0, TimeUnit.SECONDS)
+            .setRetryDelay(1, TimeUnit.HOURS)
+            .build();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    executor.shutdownNow();
+    cluster.close();
+    first.close();
+    second.close();
+  }
+
+  @Test
+  public void busyDeviceIsPassedOver() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch finish = new CountDownLatch(1);
+    Future<SaneDevice> blocked =
+        executor.submit(
+            new Callable<SaneDevice>() {
+              @Override
+              public SaneDevice call() throws Exception {
+                return cluster.run(
+                    new SaneCluster.Task<SaneDevice>() {
+                      @Override
+                      public SaneDevice run(SaneDevice device) throws IOException {
+                        started.countDown();
+                        try {
+                          finish.await();
+                        } catch (InterruptedException e) {
+                          throw new IOException(e);
+                        }
+                        return device;
+                      }
+                    });
+              }
+            });
+    assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+
+    SaneDevice device = cluster.run(new DeviceTask());
+    finish.countDown();
+
+    assertThat(blocked.get(5, TimeUnit.SECONDS)).isNotSameAs(device);
+    assertThat(first.getRequests(0)).contains(TestSaneServer.OPEN);
+    assertThat(second.getRequests(0)).contains(TestSaneServer.OPEN);
+    List<SaneCluster.MemberStatus> members = cluster.getMembers();
+    assertThat(members.get(0).getScansPerMinute()).isEqualTo(1);
+    assertThat(members.get(1).getScansPerMinute()).isEqualTo(1);
+  }
+
+  @Test
+  public void unreachableHostFailsOver() throws Exception {
+    first.close();
+
+    SaneDevice device = cluster.run(new DeviceTask());
+
+    assertThat(second.getRequests(0)).contains(TestSaneServer.OPEN);
+    assertThat(cluster.getMembers().get(0).isAvailable()).isFalse();
+    assertThat(cluster.run(new DeviceTask())).isSameAs(device);
+  }
+
+  @Test
+  public void failedScanKeepsTheHostConnected() throws Exception {
+    final List<SaneDevice> attempts = Lists.newArrayList();
+    SaneDevice device =
+        cluster.run(
+            new SaneCluster.Task<SaneDevice>() {
+              @Override
+              public SaneDevice run(SaneDevice device) throws IOException {
+                attempts.add(device);
+                if (attempts.size() == 1) {
+                  throw new IOException("the image could not be stored");
+                }
+                return device;
+              }
+            });
+
+    assertThat(attempts).hasSize(2);
+    assertThat(device).isNotSameAs(attempts.get(0));
+    assertThat(cluster.getMembers().get(0).isAvailable()).isTrue();
+    assertThat(cluster.run(new DeviceTask())).isSameAs(attempts.get(0));
+    assertThat(first.getConnectionCount()).isEqualTo(1);
+  }
+
+  private static class DeviceTask implements SaneCluster.Task<SaneDevice> {
+    @Override
+    public SaneDevice run(SaneDevice device) {
+      return device;
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package au.com.southsky.jfreesane;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Tests {@link SaneDeviceWatcher} against a scripted daemon. These tests do not require a SANE
+ * daemon.
+ */
+@RunWith(JUnit4.class)
+public class SaneDeviceWatcherTest {
+  private TestSaneServer server;
+  private SaneSession session;
+  private SaneDeviceWatcher watcher;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new TestSaneServer();
+    server.setDevices("a", "b");
+    session = server.connect();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (watcher != null) {
+      watcher.close();
+    }
+    session.close();
+    server.close();
+  }
+
+  @Test
+  public void listenersAreToldAboutAddedAndRemovedDevices() throws Exception {
+    watcher = SaneDeviceWatcher.watch(session, 20, TimeUnit.MILLISECONDS);
+    RecordingListener listener = new RecordingListener();
+    watcher.addListener(listener);
+
+    assertThat(listener.next()).isEqualTo("+a");
+    assertThat(listener.next()).isEqualTo("+b");
+
+    server.setDevices("b", "c");
+
+    assertThat(listener.next()).isEqualTo("-a");
+    assertThat(listener.next()).isEqualTo("+c");
+  }
+
+  @Test
+  public void lateListenerIsToldAboutKnownDevices() throws Exception {
+    watcher = SaneDeviceWatcher.watch(session, 20, TimeUnit.MILLISECONDS);
+    RecordingListener first = new RecordingListener();
+    watcher.addListener(first);
+    first.next();
+    first.next();
+
+    RecordingListener second = new RecordingListener();
+    watcher.addListener(second);
+
+    assertThat(second.next()).isEqualTo("+a");
+    assertThat(second.next()).isEqualTo("+b");
+    assertThat(second.lastThread).isNotSameAs(Thread.currentThread());
+    assertThat(watcher.getDevices()).hasSize(2);
+  }
+
+  private static class RecordingListener implements SaneDeviceWatcher.Listener {
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+    private volatile Thread lastThread;
+
+    @Override
+    public void deviceAdded(SaneDevice device) {
+      lastThread = Thread.currentThread();
+      events.add("+" + device.getName());
+    }
+
+    @Override
+    public void deviceRemoved(SaneDevice device) {
+      lastThread = Thread.currentThread();
+      events.add("-" + device.getName());
+    }
+
+    String next() throws InterruptedException {
+      return events.poll(5, TimeUnit.SECONDS);
+    }
+  }
+}
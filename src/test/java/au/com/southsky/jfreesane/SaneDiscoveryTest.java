@@ -0,0 +1,94 @@
+package au.com.southsky.jfreesane;
+
+import com.google.common.collect.Lists;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Tests {@link SaneDiscovery} against scripted daemons. These tests do not require a SANE daemon.
+ */
+@RunWith(JUnit4.class)
+public class SaneDiscoveryTest {
+  private final List<TestSaneServer> servers = Lists.newArrayList();
+  private SaneDiscovery discovery;
+
+  @After
+  public void tearDown() throws Exception {
+    if (discovery != null) {
+      discovery.close();
+    }
+    for (TestSaneServer server : servers) {
+      server.close();
+    }
+  }
+
+  @Test
+  public void devicesOfAllHostsAreMergedWithoutDuplicates() throws Exception {
+    TestSaneServer first = startServer("a", "shared");
+    // The second host reaches the first one's "shared" device through the net backend.
+    TestSaneServer second = startServer("b", "net:127.0.0.1:shared");
+    discovery = newDiscovery(first, second).setTimeout(5, TimeUnit.SECONDS).build();
+
+    assertThat(names(discovery.refresh())).isEqualTo(Lists.newArrayList("a", "shared", "b"));
+    assertThat(names(discovery.getDevices())).isEqualTo(Lists.newArrayList("a", "shared", "b"));
+  }
+
+  @Test
+  public void devicesWithTheSameNameOnDifferentHostsAreDistinct() throws Exception {
+    TestSaneServer first = startServer("epson2:libusb:001:004");
+    TestSaneServer second = startServer("epson2:libusb:001:004");
+    discovery = newDiscovery(first, second).setTimeout(5, TimeUnit.SECONDS).build();
+
+    List<SaneDevice> devices = discovery.refresh();
+    assertThat(names(devices))
+        .isEqualTo(Lists.newArrayList("epson2:libusb:001:004", "epson2:libusb:001:004"));
+    assertThat(devices.get(0).getSession()).isNotSameAs(devices.get(1).getSession());
+  }
+
+  @Test
+  public void slowHostDoesNotHoldUpTheOthers() throws Exception {
+    TestSaneServer fast = startServer("fast");
+    TestSaneServer slow = startServer("slow");
+    slow.setResponseDelay(2, TimeUnit.SECONDS);
+    discovery = newDiscovery(fast, slow).setTimeout(200, TimeUnit.MILLISECONDS).build();
+
+    long start = System.nanoTime();
+    List<SaneDevice> devices = discovery.refresh();
+
+    assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(1000L);
+    assertThat(names(devices)).isEqualTo(Lists.newArrayList("fast"));
+  }
+
+  private TestSaneServer startServer(String... deviceNames) throws Exception {
+    TestSaneServer server = new TestSaneServer();
+    server.setDevices(deviceNames);
+    servers.add(server);
+    return server;
+  }
+
+  private static SaneDiscovery.Builder newDiscovery(TestSaneServer... servers) {
+    SaneDiscovery.Builder builder =
+        SaneDiscovery.builder()
+            .setRefreshInterval(1, TimeUnit.HOURS)
+            .setTimeToLive(1, TimeUnit.HOURS);
+    for (TestSaneServer server : servers) {
+      builder.addHost(InetAddress.getLoopbackAddress(), server.getPort());
+    }
+    return builder;
+  }
+
+  private static List<String> names(List<SaneDevice> devices) {
+    List<String> names = Lists.newArrayList();
+    for (SaneDevice device : devices) {
+      names.add(device.getName());
+    }
+    return names;
+  }
+}
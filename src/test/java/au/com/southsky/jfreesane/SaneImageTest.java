@@ -0,0 +1,132 @@
+package au.com.southsky.jfreesane;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the conversion of {@link SaneImage} frames into {@link BufferedImage} instances. These
+ * tests do not require a SANE daemon.
+ */
+@RunWith(JUnit4.class)
+public class SaneImageTest {
+
+  @Test
+  public void decodesSingleBitColorImage() {
+    // 13 pixels need 2 groups of 3 bytes, plus one byte of line padding.
+    int width = 13;
+    int height = 5;
+    int bytesPerLine = 7;
+    byte[] data = randomBytes(bytesPerLine * height);
+
+    BufferedImage image = buildImage(FrameType.RGB, 1, width, height, bytesPerLine, data);
+
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int group = y * bytesPerLine + (x / 8) * 3;
+        int mask = 0x80 >> (x % 8);
+        int expected = 0xff000000;
+        expected |= (data[group] & mask) != 0 ? 0xff0000 : 0;
+        expected |= (data[group + 1] & mask) != 0 ? 0x00ff00 : 0;
+        expected |= (data[group + 2] & mask) != 0 ? 0x0000ff : 0;
+        assertEquals("pixel (" + x + ", " + y + ")", expected, image.getRGB(x, y));
+      }
+    }
+  }
+
+  @Test
+  public void decodesLargeSingleBitColorImageInParallel() {
+    int width = 2550;
+    int height = 1700;
+    int bytesPerLine = (width + 7) / 8 * 3;
+    byte[] data = randomBytes(bytesPerLine * height);
+
+    BufferedImage image = buildImage(FrameType.RGB, 1, width, height, bytesPerLine, data);
+
+    for (int y = 0; y < height; y += 97) {
+      for (int x = 0; x < width; x += 13) {
+        int group = y * bytesPerLine + (x / 8) * 3;
+        int mask = 0x80 >> (x % 8);
+        assertEquals((data[group] & mask) != 0, (image.getRGB(x, y) & 0xff0000) != 0);
+        assertEquals((data[group + 1] & mask) != 0, (image.getRGB(x, y) & 0x00ff00) != 0);
+        assertEquals((data[group + 2] & mask) != 0, (image.getRGB(x, y) & 0x0000ff) != 0);
+      }
+    }
+  }
+
+  @Test
+  public void eightBitGrayImageIsByteGray() {
+    byte[] data = randomBytes(6 * 4);
+
+    BufferedImage image = buildImage(FrameType.GRAY, 8, 5, 4, 6, data);
+
+    assertEquals(BufferedImage.TYPE_BYTE_GRAY, image.getType());
+    for (int y = 0; y < 4; y++) {
+      for (int x = 0; x < 5; x++) {
+        assertEquals(data[y * 6 + x] & 0xff, image.getRaster().getSample(x, y, 0));
+      }
+    }
+  }
+
+  @Test
+  public void sixteenBitGrayImageIsUShortGray() {
+    short[] samples = new short[] {0, 1, (short) 0xffff, 0x1234, (short) 0x8000, 42};
+    SaneParameters parameters =
+        new SaneParameters(FrameType.GRAY.getWireValue(), true, 6, 3, 2, 16);
+    SaneImage.Builder builder = new SaneImage.Builder();
+    builder.addFrame(new Frame(parameters, samples));
+
+    BufferedImage image = builder.build().toBufferedImage();
+
+    assertEquals(BufferedImage.TYPE_USHORT_GRAY, image.getType());
+    for (int y = 0; y < 2; y++) {
+      for (int x = 0; x < 3; x++) {
+        assertEquals(samples[y * 3 + x] & 0xffff, image.getRaster().getSample(x, y, 0));
+      }
+    }
+  }
+
+  @Test
+  public void eightBitColorImageIsThreeByteBgr() {
+    // 3 pixels per line, with 2 bytes of padding at the end of each line
+    byte[] data = randomBytes(11 * 2);
+    byte[] original = data.clone();
+
+    BufferedImage image = buildImage(FrameType.RGB, 8, 3, 2, 11, data);
+
+    assertEquals(BufferedImage.TYPE_3BYTE_BGR, image.getType());
+    for (int y = 0; y < 2; y++) {
+      for (int x = 0; x < 3; x++) {
+        int pixel = y * 11 + x * 3;
+        int expected =
+            0xff000000
+                | (original[pixel] & 0xff) << 16
+                | (original[pixel + 1] & 0xff) << 8
+                | (original[pixel + 2] & 0xff);
+        assertEquals(expected, image.getRGB(x, y));
+      }
+    }
+    // The frame itself stays in RGB order.
+    assertArrayEquals(original, data);
+  }
+
+  static BufferedImage buildImage(
+      FrameType frameType, int depth, int width, int height, int bytesPerLine, byte[] data) {
+    SaneParameters parameters =
+        new SaneParameters(frameType.getWireValue(), true, bytesPerLine, width, height, depth);
+    SaneImage.Builder builder = new SaneImage.Builder();
+    builder.addFrame(new Frame(parameters, data));
+    return builder.build().toBufferedImage();
+  }
+
+  static byte[] randomBytes(int length) {
+    byte[] result = new byte[length];
+    new Random(length).nextBytes(result);
+    return result;
+  }
+}
@@ -0,0 +1,67 @@
+package au.com.southsky.jfreesane;
+
+import com.google.common.collect.ImmutableList;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link SaneRawImage}.
+ */
+@RunWith(JUnit4.class)
+public class SaneRawImageTest {
+  @Rule public ExpectedException expectedException = ExpectedException.none();
+
+  @Test
+  public void exposesFrameData() {
+    byte[] data = SaneImageTest.randomBytes(12);
+    SaneRawImage image = grayImage(data);
+
+    assertThat(image.getFrameCount()).isEqualTo(1);
+    assertThat(image.getFrameType(0)).isEqualTo(FrameType.GRAY);
+    assertThat(image.getParameters(0).getLineCount()).isEqualTo(3);
+
+    ByteBuffer buffer = image.getData(0);
+    assertThat(buffer.isReadOnly()).isTrue();
+    assertThat(buffer.remaining()).isEqualTo(data.length);
+    for (byte b : data) {
+      assertEquals(b, buffer.get());
+    }
+  }
+
+  @Test
+  public void sixteenBitFramesAreReadAsSamples() {
+    SaneParameters parameters =
+        new SaneParameters(FrameType.GRAY.getWireValue(), true, 4, 2, 1, 16);
+    SaneRawImage image =
+        new SaneRawImage(ImmutableList.of(new Frame(parameters, new short[] {1, 2})));
+
+    assertThat(image.getSamples(0).get(1)).isEqualTo((short) 2);
+    expectedException.expect(IllegalStateException.class);
+    image.getData(0);
+  }
+
+  @Test
+  public void convertsToBufferedImageOnce() {
+    SaneRawImage image = grayImage(SaneImageTest.randomBytes(12));
+
+    BufferedImage bufferedImage = image.toBufferedImage();
+
+    assertThat(bufferedImage.getWidth()).isEqualTo(4);
+    assertThat(bufferedImage.getHeight()).isEqualTo(3);
+    assertThat(image.toBufferedImage()).isSameAs(bufferedImage);
+  }
+
+  private static SaneRawImage grayImage(byte[] data) {
+    SaneParameters parameters =
+        new SaneParameters(FrameType.GRAY.getWireValue(), true, 4, 4, data.length / 4, 8);
+    return new SaneRawImage(ImmutableList.of(new Frame(parameters, data)));
+  }
+}
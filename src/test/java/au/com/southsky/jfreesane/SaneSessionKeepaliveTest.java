@@ -0,0 +1,70 @@
+package au.com.southsky.jfreesane;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Tests the keepalive of {@link SaneSession} against a scripted daemon. These tests do not require
+ * a SANE daemon.
+ */
+@RunWith(JUnit4.class)
+public class SaneSessionKeepaliveTest {
+  private TestSaneServer server;
+  private SaneSession session;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new TestSaneServer();
+    session = server.connect();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    session.close();
+    server.close();
+  }
+
+  @Test
+  public void idleSessionWithoutDevicesIsProbedByListingDevices() throws Exception {
+    assertThat(session.getRoundTripTime(TimeUnit.NANOSECONDS)).isEqualTo(-1L);
+
+    session.setKeepalive(20, TimeUnit.MILLISECONDS);
+
+    assertThat(server.awaitRequest(TestSaneServer.GET_DEVICES, 5, TimeUnit.SECONDS)).isTrue();
+    assertThat(awaitRoundTripTime()).isAtLeast(0L);
+  }
+
+  @Test
+  public void idleSessionIsProbedThroughOpenDevice() throws Exception {
+    session.getDevice("test").open();
+
+    session.setKeepalive(20, TimeUnit.MILLISECONDS);
+
+    assertThat(server.awaitRequest(TestSaneServer.CONTROL_OPTION, 5, TimeUnit.SECONDS)).isTrue();
+    assertThat(server.getRequests(0)).doesNotContain(TestSaneServer.GET_DEVICES);
+  }
+
+  @Test
+  public void disabledKeepaliveDoesNotProbe() throws Exception {
+    session.setKeepalive(20, TimeUnit.MILLISECONDS);
+    session.setKeepalive(0, TimeUnit.MILLISECONDS);
+
+    assertThat(session.getKeepaliveInterval(TimeUnit.MILLISECONDS)).isEqualTo(0L);
+    assertThat(server.awaitRequest(TestSaneServer.GET_DEVICES, 200, TimeUnit.MILLISECONDS))
+        .isFalse();
+  }
+
+  private long awaitRoundTripTime() throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (session.getRoundTripTime(TimeUnit.NANOSECONDS) < 0 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    return session.getRoundTripTime(TimeUnit.NANOSECONDS);
+  }
+}
@@ -0,0 +1,106 @@
+package au.com.southsky.jfreesane;
+
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the reconnection of {@link SaneSession} against a scripted daemon that drops its first
+ * connection. These tests do not require a SANE daemon.
+ */
+@RunWith(JUnit4.class)
+public class SaneSessionReconnectTest {
+  private TestSaneServer server;
+  private SaneSession session;
+
+  @After
+  public void tearDown() throws Exception {
+    if (session != null) {
+      try {
+        session.close();
+      } catch (IOException e) {
+        // The connection may already be gone.
+      }
+    }
+    if (server != null) {
+      server.close();
+    }
+  }
+
+  @Test
+  public void reconnectsReopensDevicesAndRepeatsRequest() throws Exception {
+    server = new TestSaneServer(2);
+    session = server.connect();
+    session.setReconnectPolicy(
+        ReconnectPolicy.builder().setInitialBackoff(0, TimeUnit.MILLISECONDS).build());
+
+    SaneDevice device = session.getDevice("test");
+    device.open();
+    assertThat(session.listDevices()).isEmpty();
+
+    assertThat(device.isOpen()).isTrue();
+    List<Integer> expectedRequests =
+        ImmutableList.of(TestSaneServer.OPEN, TestSaneServer.GET_DEVICES);
+    assertThat(server.getRequests(0)).isEqualTo(expectedRequests);
+    assertThat(server.getRequests(1)).isEqualTo(expectedRequests);
+  }
+
+  @Test
+  public void brokenConnectionFailsWithoutReconnectPolicy() throws Exception {
+    server = new TestSaneServer(1);
+    session = server.connect();
+
+    try {
+      session.listDevices();
+      fail("expected IOException");
+    } catch (IOException e) {
+      // expected
+    }
+    assertThat(server.getConnectionCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void errorStatusDoesNotReconnect() throws Exception {
+    server = new TestSaneServer();
+    server.setImageSize(40, 30);
+    session = server.connect();
+    session.setReconnectPolicy(
+        ReconnectPolicy.builder().setInitialBackoff(0, TimeUnit.MILLISECONDS).build());
+    SaneDevice device = session.getDevice("test");
+    device.open();
+
+    server.setParametersStatus(SaneStatus.STATUS_JAMMED);
+    try {
+      device.acquireRaw();
+      fail("expected SaneException");
+    } catch (SaneException e) {
+      assertThat(e.getStatus()).isEqualTo(SaneStatus.STATUS_JAMMED);
+    }
+
+    server.setParametersStatus(SaneStatus.STATUS_GOOD);
+    assertThat(device.acquireRaw().getFrameCount()).isEqualTo(1);
+    assertThat(server.getConnectionCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void backoffDoublesUpToMaximum() {
+    ReconnectPolicy policy =
+        ReconnectPolicy.builder()
+            .setInitialBackoff(100, TimeUnit.NANOSECONDS)
+            .setMaxBackoff(350, TimeUnit.NANOSECONDS)
+            .build();
+
+    assertThat(policy.getBackoffNanos(1)).isEqualTo(100L);
+    assertThat(policy.getBackoffNanos(2)).isEqualTo(200L);
+    assertThat(policy.getBackoffNanos(3)).isEqualTo(350L);
+    assertThat(policy.getBackoffNanos(50)).isEqualTo(350L);
+  }
+}
@@ -0,0 +1,212 @@
+package au.com.southsky.jfreesane;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Scans end to end against a fake daemon, exercising the control and data connections together.
+ * These tests do not require a SANE daemon.
+ */
+@RunWith(JUnit4.class)
+public class SaneSessionScanTest {
+  private TestSaneServer server;
+  private SaneSession session;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new TestSaneServer();
+    server.setImageSize(40, 30);
+    server.setRecordSize(100);
+    session = server.connect();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    session.close();
+    server.close();
+  }
+
+  @Test
+  public void grayScanHasTheSelectedDepth() throws Exception {
+    SaneDevice device = session.getDevice("test");
+    device.open();
+
+    for (int depth : new int[] {1, 8, 16}) {
+      device.getOption("depth").setIntegerValue(depth);
+      SaneRawImage image = device.acquireRaw();
+
+      assertThat(image.getFrameCount()).isEqualTo(1);
+      SaneParameters parameters = image.getParameters(0);
+      assertThat(parameters.getFrameType()).isEqualTo(FrameType.GRAY);
+      assertThat(parameters.getDepthPerPixel()).isEqualTo(depth);
+      assertThat(parameters.getPixelsPerLine()).isEqualTo(40);
+      assertThat(parameters.getLineCount()).isEqualTo(30);
+      assertThat(parameters.getBytesPerLine()).isEqualTo((40 * depth + 7) / 8);
+      image.release();
+    }
+  }
+
+  @Test
+  public void threePassColorScanIsAssembledIntoOneFrame() throws Exception {
+    SaneDevice device = session.getDevice("test");
+    device.open();
+    assertThat(device.getOption("mode").setStringValue("Color")).isEqualTo("Color");
+    device.getOption("three-pass").setBooleanValue(true);
+
+    SaneRawImage image = device.acquireRaw();
+
+    assertThat(image.getFrameCount()).isEqualTo(1);
+    assertThat(image.getFrameType(0)).isEqualTo(FrameType.RGB);
+    assertThat(image.toBufferedImage().getWidth()).isEqualTo(40);
+    int starts = 0;
+    for (int request : server.getRequests(0)) {
+      if (request == TestSaneServer.START) {
+        starts++;
+      }
+    }
+    assertThat(starts).isEqualTo(3);
+  }
+
+  @Test
+  public void batchEndsWhenTheFeederIsEmpty() throws Exception {
+    server.setPageCount(3);
+    SaneDevice device = session.getDevice("test");
+    device.open();
+    device.getOption("source").setStringValue("ADF");
+    final List<Integer> pages = Lists.newArrayList();
+
+    int count =
+        device.acquireBatch(
+            new PageHandler() {
+              @Override
+              public void handlePage(SaneDevice device, int pageIndex, SaneRawImage page)
+                  throws Exception {
+                pages.add(pageIndex);
+                page.release();
+              }
+            },
+            MoreExecutors.directExecutor());
+
+    assertThat(count).isEqualTo(3);
+    assertThat(pages).containsExactly(0, 1, 2).inOrder();
+  }
+
+  @Test
+  public void waitingForScanMemoryIsNotAStall() throws Exception {
+    ScanMemoryBudget budget = ScanMemoryBudget.blocking(10000);
+    session.setFrameStoragePolicy(FrameStoragePolicy.builder().setMemoryBudget(budget).build());
+    session.setScanWatchdog(
+        ScanWatchdog.builder()
+            .setStallTimeout(50, TimeUnit.MILLISECONDS)
+            .setAbortOnStall(true)
+            .build());
+    final SaneDevice device = session.getDevice("test");
+    device.open();
+    ScanMemoryBudget.Allocation allocation = budget.allocate(10000);
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<SaneRawImage> scan =
+          executor.submit(
+              new Callable<SaneRawImage>() {
+                @Override
+                public SaneRawImage call() throws Exception {
+                  return device.acquireRaw();
+                }
+              });
+      while (budget.getWaitingScanCount() == 0) {
+        Thread.sleep(1);
+      }
+      Thread.sleep(300);
+      allocation.release();
+
+      assertThat(scan.get(5, TimeUnit.SECONDS).getFrameCount()).isEqualTo(1);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void deadlineAbortsScanWaitingForMemory() throws Exception {
+    ScanMemoryBudget budget = ScanMemoryBudget.blocking(10000);
+    session.setFrameStoragePolicy(FrameStoragePolicy.builder().setMemoryBudget(budget).build());
+    SaneDevice device = session.getDevice("test");
+    device.open();
+    ScanMemoryBudget.Allocation allocation = budget.allocate(10000);
+
+    try {
+      device.acquireRaw(
+          new ScanListenerAdapter(), CancellationToken.withDeadline(200, TimeUnit.MILLISECONDS));
+      fail("the scan outlived its deadline");
+    } catch (SaneException e) {
+      assertThat(e.getStatus()).isEqualTo(SaneStatus.STATUS_CANCELLED);
+    }
+    assertThat(budget.getWaitingScanCount()).isEqualTo(0);
+    assertThat(server.getRequests(0)).contains(TestSaneServer.CANCEL);
+
+    allocation.release();
+    assertThat(device.acquireRaw().getFrameCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void openingAProtectedDeviceRequiresTheRightPassword() throws Exception {
+    server.requireAuthorization("sane-user", "secret");
+    SaneDevice device = session.getDevice("test");
+
+    session.setPasswordProvider(SanePasswordProvider.forUsernameAndPassword("sane-user", "wrong"));
+    try {
+      device.open();
+      fail("the device was opened with the wrong password");
+    } catch (SaneException e) {
+      assertThat(e.getStatus()).isEqualTo(SaneStatus.STATUS_ACCESS_DENIED);
+    }
+
+    session.setPasswordProvider(SanePasswordProvider.forUsernameAndPassword("sane-user", "secret"));
+    device.open();
+    assertThat(device.acquireRaw().getFrameCount()).isEqualTo(1);
+    assertThat(server.getRequests(0)).contains(TestSaneServer.AUTHORIZE);
+  }
+
+  @Test
+  public void concurrentSessionsScanIndependently() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Integer>> results = Lists.newArrayList();
+      for (int i = 0; i < 4; i++) {
+        final String mode = i % 2 == 0 ? "Gray" : "Color";
+        results.add(
+            executor.submit(
+                new Callable<Integer>() {
+                  @Override
+                  public Integer call() throws Exception {
+                    try (SaneSession otherSession = server.connect();
+                        SaneDevice device = otherSession.getDevice("test")) {
+                      device.open();
+                      device.getOption("mode").setStringValue(mode);
+                      return device.acquireImage().getWidth();
+                    }
+                  }
+                }));
+      }
+      for (Future<Integer> result : results) {
+        assertThat(result.get()).isEqualTo(40);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -3,6 +3,7 @@ package au.com.southsky.jfreesane;
 import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.google.common.io.Closeables;
 import com.google.common.io.Files;
 import com.google.common.net.HostAndPort;
@@ -16,6 +17,10 @@ import java.net.InetAddress;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import javax.imageio.ImageIO;
@@ -200,6 +205,62 @@ public class SaneSessionTest {
     }
   }
 
+  @Test
+  public void adfBatchAcquisitionHandsEveryPageToHandler() throws Exception {
+    SaneDevice device = session.getDevice("test");
+    device.open();
+    device.getOption("source").setStringValue("Automatic Document Feeder");
+
+    final Set<Integer> handledPages = Sets.newConcurrentHashSet();
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      int pageCount =
+          device.acquireBatch(
+              new PageHandler() {
+                @Override
+                public void handlePage(SaneDevice device, int pageIndex, SaneRawImage page)
+                    throws Exception {
+                  assertNotNull(page.toBufferedImage());
+                  handledPages.add(pageIndex);
+                }
+              },
+              executor);
+
+      assertThat(pageCount).isGreaterThan(0);
+      assertThat(handledPages).hasSize(pageCount);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void devicesSharingSessionScanConcurrently() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      List<Future<BufferedImage>> scans = Lists.newArrayList();
+      for (int i = 0; i < 2; i++) {
+        scans.add(
+            executor.submit(
+                new Callable<BufferedImage>() {
+                  @Override
+                  public BufferedImage call() throws Exception {
+                    try (SaneDevice device = session.getDevice("test")) {
+                      device.open();
+                      device.getOption("mode").setStringValue("Gray");
+                      return device.acquireImage();
+                    }
+                  }
+                }));
+      }
+
+      for (Future<BufferedImage> scan : scans) {
+        assertNotNull(scan.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
   @Test
   public void acquireImageSucceedsAfterOutOfPaperCondition() throws Exception {
     SaneDevice device = session.getDevice("test");
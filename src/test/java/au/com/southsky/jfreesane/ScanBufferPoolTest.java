@@ -0,0 +1,53 @@
+package au.com.southsky.jfreesane;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Tests {@link ScanBufferPool}. These tests do not require a SANE daemon.
+ */
+@RunWith(JUnit4.class)
+public class ScanBufferPoolTest {
+
+  @Test
+  public void roundsPooledArraysUpToSizeClass() {
+    ScanBufferPool pool = ScanBufferPool.create(1 << 20);
+
+    assertThat(pool.borrowBytes(5000).length).isEqualTo(8192);
+    assertThat(pool.borrowBytes(8192).length).isEqualTo(8192);
+    assertThat(pool.borrowShorts(3000).length).isEqualTo(4096);
+    // Arrays too small to be worth pooling have the requested size.
+    assertThat(pool.borrowBytes(100).length).isEqualTo(100);
+  }
+
+  @Test
+  public void emptyPoolAllocatesExactSizes() {
+    ScanBufferPool pool = ScanBufferPool.none();
+
+    byte[] array = pool.borrowBytes(5000);
+    assertThat(array.length).isEqualTo(5000);
+    pool.recycle(new byte[8192]);
+    assertThat(pool.getRetainedBytes()).isEqualTo(0L);
+  }
+
+  @Test
+  public void reusesRecycledArraysWithinLimit() {
+    ScanBufferPool pool = ScanBufferPool.create(16384);
+    byte[] bytes = pool.borrowBytes(8192);
+    short[] shorts = pool.borrowShorts(4096);
+    byte[] extra = pool.borrowBytes(8192);
+
+    pool.recycle(bytes);
+    pool.recycle(shorts);
+    pool.recycle(extra);
+    assertThat(pool.getRetainedBytes()).isEqualTo(16384L);
+
+    assertThat(pool.borrowBytes(6000)).isSameAs(bytes);
+    assertThat(pool.borrowShorts(3000)).isSameAs(shorts);
+    assertThat(pool.borrowBytes(6000)).isNotSameAs(extra);
+    assertThat(pool.getRetainedBytes()).isEqualTo(0L);
+  }
+}
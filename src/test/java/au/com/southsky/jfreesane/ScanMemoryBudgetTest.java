@@ -0,0 +1,122 @@
+package au.com.southsky.jfreesane;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the admission control of {@link ScanMemoryBudget}. These tests do not require a SANE
+ * daemon.
+ */
+@RunWith(JUnit4.class)
+public class ScanMemoryBudgetTest {
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  @After
+  public void shutDownExecutor() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void blockingBudgetWaitsForMemory() throws Exception {
+    final ScanMemoryBudget budget = ScanMemoryBudget.blocking(1000);
+    ScanMemoryBudget.Allocation first = budget.allocate(800);
+
+    Future<ScanMemoryBudget.Allocation> second = allocateInBackground(budget, 500);
+    try {
+      second.get(200, TimeUnit.MILLISECONDS);
+      fail("allocation should have waited for memory to be released");
+    } catch (TimeoutException expected) {
+    }
+    assertThat(budget.getWaitingScanCount()).isEqualTo(1);
+
+    first.release();
+    assertThat(second.get(5, TimeUnit.SECONDS)).isNotNull();
+    assertThat(budget.getUsedBytes()).isEqualTo(500L);
+    assertThat(budget.getWaitingScanCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void blockingBudgetAdmitsScansInArrivalOrder() throws Exception {
+    final ScanMemoryBudget budget = ScanMemoryBudget.blocking(1000);
+    ScanMemoryBudget.Allocation first = budget.allocate(1000);
+
+    Future<ScanMemoryBudget.Allocation> large = allocateInBackground(budget, 900);
+    awaitWaitingScans(budget, 1);
+    Future<ScanMemoryBudget.Allocation> small = allocateInBackground(budget, 100);
+    awaitWaitingScans(budget, 2);
+
+    // The small allocation would fit once the large one is admitted, but must not overtake it.
+    first.release();
+    assertThat(large.get(5, TimeUnit.SECONDS)).isNotNull();
+    assertThat(small.get(5, TimeUnit.SECONDS)).isNotNull();
+    assertThat(budget.getPeakUsedBytes()).isEqualTo(1000L);
+  }
+
+  @Test
+  public void cancelledScanStopsWaitingForMemory() throws Exception {
+    ScanMemoryBudget budget = ScanMemoryBudget.blocking(1000);
+    ScanMemoryBudget.Allocation first = budget.allocate(1000);
+    CancellationToken cancellation = CancellationToken.create();
+
+    Future<ScanMemoryBudget.Allocation> second = allocateInBackground(budget, 500, cancellation);
+    awaitWaitingScans(budget, 1);
+    cancellation.cancel();
+
+    try {
+      second.get(5, TimeUnit.SECONDS);
+      fail("a cancelled scan was given memory");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(InterruptedIOException.class);
+    }
+    assertThat(budget.getWaitingScanCount()).isEqualTo(0);
+    assertThat(budget.getUsedBytes()).isEqualTo(1000L);
+    first.release();
+  }
+
+  @Test
+  public void spillsFramesLargerThanBlockingBudget() throws Exception {
+    ScanMemoryBudget budget = ScanMemoryBudget.blocking(1000);
+
+    assertNull(budget.allocate(1001));
+    assertThat(budget.getSpilledFrameCount()).isEqualTo(1L);
+  }
+
+  private Future<ScanMemoryBudget.Allocation> allocateInBackground(
+      ScanMemoryBudget budget, long bytes) {
+    return allocateInBackground(budget, bytes, CancellationToken.create());
+  }
+
+  private Future<ScanMemoryBudget.Allocation> allocateInBackground(
+      final ScanMemoryBudget budget, final long bytes, final CancellationToken cancellation) {
+    return executor.submit(
+        new Callable<ScanMemoryBudget.Allocation>() {
+          @Override
+          public ScanMemoryBudget.Allocation call() throws Exception {
+            return budget.allocate(bytes, cancellation);
+          }
+        });
+  }
+
+  private static void awaitWaitingScans(ScanMemoryBudget budget, int count)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (budget.getWaitingScanCount() < count && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(budget.getWaitingScanCount()).isEqualTo(count);
+  }
+}
@@ -0,0 +1,102 @@
+package au.com.southsky.jfreesane;
+
+import au.com.southsky.jfreesane.ScanScheduler.Priority;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Tests for {@link ScanScheduler}. These tests do not require a SANE daemon.
+ */
+@RunWith(JUnit4.class)
+public class ScanSchedulerTest {
+  private final ScanScheduler scheduler =
+      ScanScheduler.forDevice(new SaneDevice(null, "test", "", "", ""));
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final BlockingQueue<String> grants = new LinkedBlockingQueue<String>();
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void interactiveRequestOvertakesWaitingBatchPages() throws Exception {
+    ScanScheduler.Lease lease = scheduler.acquire("batch", Priority.BATCH);
+    request("batch", Priority.BATCH, "batch page 2");
+    request("preview", Priority.INTERACTIVE, "preview");
+
+    Thread.sleep(20);
+    lease.close();
+
+    assertThat(next()).isEqualTo("preview");
+    assertThat(next()).isEqualTo("batch page 2");
+  }
+
+  @Test
+  public void tenantsShareTheDeviceFairly() throws Exception {
+    ScanScheduler.Lease lease = scheduler.acquire("a", Priority.BATCH);
+    request("a", Priority.BATCH, "a2");
+    request("b", Priority.BATCH, "b1");
+
+    Thread.sleep(20);
+    lease.close();
+
+    assertThat(next()).isEqualTo("b1");
+    assertThat(next()).isEqualTo("a2");
+  }
+
+  @Test
+  public void waitAndServiceTimesAreRecorded() throws Exception {
+    ScanScheduler.Lease lease = scheduler.acquire("a", Priority.BATCH);
+    request("b", Priority.INTERACTIVE, "b");
+    Thread.sleep(20);
+    lease.close();
+    lease.close();
+    next();
+
+    ScanScheduler.Stats batch = scheduler.getStats(Priority.BATCH);
+    ScanScheduler.Stats interactive = scheduler.getStats(Priority.INTERACTIVE);
+    assertThat(batch.getGrantedCount()).isEqualTo(1L);
+    assertThat(batch.getMeanServiceTime(TimeUnit.MILLISECONDS)).isAtLeast(20L);
+    assertThat(interactive.getGrantedCount()).isEqualTo(1L);
+    assertThat(interactive.getMaxQueueWait(TimeUnit.MILLISECONDS)).isAtLeast(20L);
+  }
+
+  /**
+   * Asks for the device on another thread, which records {@code name} once the device is granted
+   * and gives it up right away. Returns once the request is queued.
+   */
+  private void request(final String tenant, final Priority priority, final String name)
+      throws InterruptedException {
+    int queued = scheduler.getQueueLength();
+    executor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              ScanScheduler.Lease lease = scheduler.acquire(tenant, priority);
+              grants.add(name);
+              lease.close();
+            } catch (InterruptedException e) {
+              // The test is over.
+            }
+          }
+        });
+    while (scheduler.getQueueLength() == queued) {
+      Thread.sleep(1);
+    }
+  }
+
+  private String next() throws InterruptedException {
+    return grants.poll(5, TimeUnit.SECONDS);
+  }
+}
@@ -0,0 +1,136 @@
+package au.com.southsky.jfreesane;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Tests {@link ScanWatchdog}. These tests do not require a SANE daemon. They drive the monitor's
+ * checks with explicit timestamps, far enough in the future that the timer thread never finds a
+ * stall on its own.
+ */
+@RunWith(JUnit4.class)
+public class ScanWatchdogTest {
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final CountingListener listener = new CountingListener();
+  private final CountingCloseable connection = new CountingCloseable();
+  private final SaneDevice device = new SaneDevice(null, "test", "vendor", "model", "type");
+
+  @Test
+  public void idleScanIsReportedOnce() {
+    ScanWatchdog watchdog =
+        ScanWatchdog.builder()
+            .setStallTimeout(1, TimeUnit.HOURS)
+            .setListener(listener)
+            .build();
+    long start = System.nanoTime();
+    ScanWatchdog.Monitor monitor = watchdog.watch(device, connection);
+    monitor.start();
+    try {
+      monitor.recordArrived(1000, start + 1000 * SECOND);
+      monitor.check(start + 2000 * SECOND);
+      assertThat(listener.stalls.get()).isEqualTo(0);
+
+      monitor.check(start + 5000 * SECOND);
+      monitor.check(start + 6000 * SECOND);
+      assertThat(listener.stalls.get()).isEqualTo(1);
+      assertThat(listener.lastIdleMillis).isEqualTo(TimeUnit.SECONDS.toMillis(4000));
+      assertThat(monitor.isAborted()).isFalse();
+      assertThat(connection.closeCount.get()).isEqualTo(0);
+    } finally {
+      monitor.close();
+    }
+  }
+
+  @Test
+  public void slowScanIsAborted() {
+    ScanWatchdog watchdog =
+        ScanWatchdog.builder()
+            .setMinimumThroughput(1000, 1, TimeUnit.HOURS)
+            .setAbortOnStall(true)
+            .setListener(listener)
+            .build();
+    long start = System.nanoTime();
+    ScanWatchdog.Monitor monitor = watchdog.watch(device, connection);
+    monitor.start();
+    try {
+      // 10000 bytes/s during the first hour.
+      monitor.recordArrived(36000000L, start + 3600 * SECOND);
+      monitor.check(start + 3600 * SECOND);
+      assertThat(listener.stalls.get()).isEqualTo(0);
+
+      // Records keep arriving, but at only 10 bytes/s during the last hour.
+      monitor.recordArrived(36036000L, start + 7200 * SECOND);
+      monitor.check(start + 7200 * SECOND);
+      assertThat(listener.stalls.get()).isEqualTo(1);
+      assertThat(Math.round(listener.lastBytesPerSecond)).isEqualTo(10L);
+      assertThat(monitor.isAborted()).isTrue();
+      assertThat(monitor.getStallDescription()).contains("10 bytes/s");
+      assertThat(connection.closeCount.get()).isEqualTo(1);
+    } finally {
+      monitor.close();
+    }
+  }
+
+  @Test
+  public void throughputIsNotJudgedBeforeWindowHasPassed() {
+    ScanWatchdog watchdog =
+        ScanWatchdog.builder()
+            .setMinimumThroughput(1000, 1, TimeUnit.HOURS)
+            .setListener(listener)
+            .build();
+    long start = System.nanoTime();
+    ScanWatchdog.Monitor monitor = watchdog.watch(device, connection);
+    monitor.start();
+    try {
+      monitor.check(start + 60 * SECOND);
+      assertThat(listener.stalls.get()).isEqualTo(0);
+    } finally {
+      monitor.close();
+    }
+  }
+
+  @Test
+  public void throughputIsExposedWhileFrameIsWatched() {
+    ScanWatchdog watchdog = ScanWatchdog.builder().setStallTimeout(1, TimeUnit.HOURS).build();
+    ScanWatchdog.Monitor monitor = watchdog.watch(device, connection);
+    assertThat(watchdog.getBytesPerSecond(device)).isEqualTo(-1.0);
+
+    monitor.start();
+    try {
+      monitor.recordArrived(1000, System.nanoTime());
+      assertThat(watchdog.getBytesPerSecond(device)).isGreaterThan(0.0);
+    } finally {
+      monitor.close();
+    }
+    assertThat(watchdog.getBytesPerSecond(device)).isEqualTo(-1.0);
+  }
+
+  private static class CountingListener implements ScanWatchdog.Listener {
+    final AtomicInteger stalls = new AtomicInteger();
+    volatile double lastBytesPerSecond;
+    volatile long lastIdleMillis;
+
+    @Override
+    public void scanStalled(SaneDevice device, double bytesPerSecond, long idleMillis) {
+      stalls.incrementAndGet();
+      lastBytesPerSecond = bytesPerSecond;
+      lastIdleMillis = idleMillis;
+    }
+  }
+
+  private static class CountingCloseable implements Closeable {
+    final AtomicInteger closeCount = new AtomicInteger();
+
+    @Override
+    public void close() {
+      closeCount.incrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,855 @@
+package au.com.southsky.jfreesane;
+
+import au.com.southsky.jfreesane.SaneOption.OptionUnits;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fake SANE daemon for tests and benchmarks that cannot rely on a real one. It answers every
+ * request JFreeSane makes, serves each connection on its own thread and scans synthetic images.
+ *
+ * <p>
+ * Every device has the same options, modelled on those of the {@code test} backend: {@code mode}
+ * ("Gray" or "Color"), {@code depth} (1, 8 or 16), {@code resolution}, {@code three-pass}, which
+ * makes color scans arrive as separate red, green and blue frames, and {@code source} ("Flatbed"
+ * or "ADF", the automatic document feeder). The size of the images, the size
+ * of the records they are sent in, the rate at which they are sent and the number of pages in the
+ * document feeder are set on the server. The server can also require authorization to open a
+ * device, delay its answers, and drop its first connection once it has received a given number of
+ * requests, to simulate a broken control connection.
+ */
+class TestSaneServer implements Runnable, Closeable {
+  static final int GET_DEVICES = SaneRpcCode.SANE_NET_GET_DEVICES.getWireValue();
+  static final int OPEN = SaneRpcCode.SANE_NET_OPEN.getWireValue();
+  static final int CLOSE = SaneRpcCode.SANE_NET_CLOSE.getWireValue();
+  static final int GET_OPTION_DESCRIPTORS =
+      SaneRpcCode.SANE_NET_GET_OPTION_DESCRIPTORS.getWireValue();
+  static final int CONTROL_OPTION = SaneRpcCode.SANE_NET_CONTROL_OPTION.getWireValue();
+  static final int GET_PARAMETERS = SaneRpcCode.SANE_NET_GET_PARAMETERS.getWireValue();
+  static final int START = SaneRpcCode.SANE_NET_START.getWireValue();
+  static final int CANCEL = SaneRpcCode.SANE_NET_CANCEL.getWireValue();
+  static final int AUTHORIZE = SaneRpcCode.SANE_NET_AUTHORIZE.getWireValue();
+  static final int EXIT = SaneRpcCode.SANE_NET_EXIT.getWireValue();
+
+  private static final int OPTION_COUNT = 0;
+  private static final int OPTION_MODE = 2;
+  private static final int OPTION_DEPTH = 3;
+  private static final int OPTION_RESOLUTION = 4;
+  private static final int OPTION_THREE_PASS = 5;
+  private static final int OPTION_SOURCE = 6;
+  private static final int OPTIONS = 7;
+
+  private static final int ACTION_SET_VALUE = 1;
+  private static final int STRING_SIZE = 16;
+  private static final List<String> MODES = ImmutableList.of("Gray", "Color");
+  private static final List<String> SOURCES = ImmutableList.of("Flatbed", "ADF");
+  private static final List<Integer> DEPTHS = ImmutableList.of(1, 8, 16);
+  private static final int BIG_ENDIAN = 0x4321;
+  private static final String SALT = "0123456789abcdef";
+
+  private final ServerSocket serverSocket =
+      new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+  private final int dropAtRequest;
+  private final Thread thread = new Thread(this, "test-saned");
+
+  // Guarded by this. The requests received on each connection, in order.
+  private final List<List<Integer>> requests = Lists.newArrayList();
+  private final List<Socket> sockets = Lists.newArrayList();
+  private List<String> deviceNames = ImmutableList.of();
+  private long responseDelayMillis;
+  private int pixelsPerLine = 100;
+  private int lines = 100;
+  private int recordSize = 32 * 1024;
+  private long bytesPerSecond;
+  private int pageCount;
+  private SaneStatus parametersStatus = SaneStatus.STATUS_GOOD;
+  private String username;
+  private String password;
+
+  /**
+   * Starts a server that never drops a connection.
+   */
+  TestSaneServer() throws IOException {
+    this(0);
+  }
+
+  /**
+   * Starts a server that drops its first connection when it receives request number
+   * {@code dropAtRequest} (counting from 1) on it, or never if {@code dropAtRequest} is 0.
+   */
+  TestSaneServer(int dropAtRequest) throws IOException {
+    this.dropAtRequest = dropAtRequest;
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  SaneSession connect() throws IOException {
+    return SaneSession.withRemoteSane(InetAddress.getLoopbackAddress(), getPort());
+  }
+
+  /**
+   * Sets the names of the devices listed in answer to {@code SANE_NET_GET_DEVICES}. There are none
+   * by default. Devices are opened whatever their name.
+   */
+  synchronized void setDevices(String... names) {
+    deviceNames = ImmutableList.copyOf(names);
+  }
+
+  /**
+   * Makes the server wait for the given time before answering each request.
+   */
+  synchronized void setResponseDelay(long delay, TimeUnit unit) {
+    responseDelayMillis = unit.toMillis(delay);
+  }
+
+  /**
+   * Sets the size of the images scanned from now on. Images are 100 by 100 pixels by default.
+   */
+  synchronized void setImageSize(int pixelsPerLine, int lines) {
+    this.pixelsPerLine = pixelsPerLine;
+    this.lines = lines;
+  }
+
+  /**
+   * Sets the size of the records image data is sent in, 32 kilobytes by default.
+   */
+  synchronized void setRecordSize(int recordSize) {
+    this.recordSize = recordSize;
+  }
+
+  /**
+   * Limits the rate at which the image data of each frame is sent, or lifts the limit if
+   * {@code bytesPerSecond} is 0, which is the default.
+   */
+  synchronized void setDataRate(long bytesPerSecond) {
+    this.bytesPerSecond = bytesPerSecond;
+  }
+
+  /**
+   * Puts the given number of pages in the document feeder of every device: once that many images
+   * have been scanned from the "ADF" source, starting another fails with
+   * {@link SaneStatus#STATUS_NO_DOCS} and the feeder is reloaded. With a page count of 0, the
+   * default, the feeder never runs out. The "Flatbed" source never runs out either.
+   */
+  synchronized void setPageCount(int pageCount) {
+    this.pageCount = pageCount;
+  }
+
+  /**
+   * Makes {@code SANE_NET_GET_PARAMETERS} fail with the given status and abandon the scan, as a
+   * backend does when the scanner jams, or succeed again if it is {@link SaneStatus#STATUS_GOOD}.
+   */
+  synchronized void setParametersStatus(SaneStatus parametersStatus) {
+    this.parametersStatus = parametersStatus;
+  }
+
+  /**
+   * Requires opening a device to be authorized with the given credentials, which are checked with
+   * an MD5 challenge as saned checks them.
+   */
+  synchronized void requireAuthorization(String username, String password) {
+    this.username = username;
+    this.password = password;
+  }
+
+  synchronized List<Integer> getRequests(int connection) {
+    return ImmutableList.copyOf(requests.get(connection));
+  }
+
+  synchronized int getConnectionCount() {
+    return requests.size();
+  }
+
+  /**
+   * Waits until a request with the given code has been received on any connection. Returns
+   * {@code false} if that did not happen in time.
+   */
+  synchronized boolean awaitRequest(int code, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (true) {
+      for (List<Integer> connectionRequests : requests) {
+        if (connectionRequests.contains(code)) {
+          return true;
+        }
+      }
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        return false;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+  }
+
+  /**
+   * Stops accepting connections and drops the open ones.
+   */
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    List<Socket> openSockets;
+    synchronized (this) {
+      openSockets = ImmutableList.copyOf(sockets);
+    }
+    for (Socket socket : openSockets) {
+      socket.close();
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (true) {
+        final Socket socket = serverSocket.accept();
+        final int connection;
+        synchronized (this) {
+          if (serverSocket.isClosed()) {
+            // The connection raced close(), and must not be served.
+            socket.close();
+            return;
+          }
+          connection = requests.size();
+          requests.add(Lists.<Integer>newArrayList());
+          sockets.add(socket);
+        }
+        Thread connectionThread =
+            new Thread(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    try {
+                      new Connection(socket, connection).serve();
+                    } catch (IOException e) {
+                      // The client went away, or the server was closed.
+                    } finally {
+                      closeConnection(socket);
+                    }
+                  }
+                },
+                "test-saned-" + connection);
+        connectionThread.setDaemon(true);
+        connectionThread.start();
+      }
+    } catch (IOException e) {
+      // The server socket was closed.
+    }
+  }
+
+  private void closeConnection(Socket socket) {
+    synchronized (this) {
+      sockets.remove(socket);
+    }
+    closeQuietly(socket);
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // Nothing more can be done.
+    }
+  }
+
+  /**
+   * A control connection, and the devices opened on it.
+   */
+  private final class Connection {
+    private final int index;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final Map<Integer, Device> devices = Maps.newHashMap();
+    private int nextHandle;
+    // A request read ahead of its turn, or -1.
+    private int pendingCode = -1;
+
+    Connection(Socket socket, int index) throws IOException {
+      this.index = index;
+      this.in = new DataInputStream(socket.getInputStream());
+      this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    void serve() throws IOException {
+      try {
+        // SANE_NET_INIT: version code and user name.
+        in.readInt();
+        int version = in.readInt();
+        readString(in);
+        out.writeInt(0);
+        out.writeInt(version);
+        out.flush();
+
+        int code = in.readInt();
+        while (code != EXIT && record(code)) {
+          code = handle(code);
+        }
+      } catch (EOFException e) {
+        // The client went away.
+      } finally {
+        for (Device device : devices.values()) {
+          device.cancel();
+        }
+      }
+    }
+
+    /**
+     * Records a request and waits for the response delay. Returns {@code false} if the connection
+     * should be dropped instead of answering it.
+     */
+    private boolean record(int code) throws IOException {
+      int requestCount;
+      long delayMillis;
+      synchronized (TestSaneServer.this) {
+        List<Integer> connectionRequests = requests.get(index);
+        connectionRequests.add(code);
+        requestCount = connectionRequests.size();
+        delayMillis = responseDelayMillis;
+        TestSaneServer.this.notifyAll();
+      }
+      if (index == 0 && requestCount == dropAtRequest) {
+        return false;
+      }
+      if (delayMillis > 0) {
+        try {
+          Thread.sleep(delayMillis);
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Answers the request with the given code, and returns the code of the next one.
+     */
+    private int handle(int code) throws IOException {
+      if (code == OPEN) {
+        open();
+      } else if (code == GET_DEVICES) {
+        List<String> names;
+        synchronized (TestSaneServer.this) {
+          names = deviceNames;
+        }
+        writeDeviceList(out, names);
+      } else if (code == GET_OPTION_DESCRIPTORS) {
+        device(in.readInt());
+        writeOptionDescriptors(out);
+      } else if (code == CONTROL_OPTION) {
+        controlOption();
+      } else if (code == START) {
+        device(in.readInt()).start(out);
+      } else if (code == GET_PARAMETERS) {
+        device(in.readInt()).writeParameters(out);
+      } else if (code == CANCEL) {
+        device(in.readInt()).cancel();
+        out.writeInt(0);
+      } else if (code == CLOSE) {
+        int handle = in.readInt();
+        device(handle).cancel();
+        devices.remove(handle);
+        out.writeInt(0);
+      } else if (code == AUTHORIZE) {
+        // Outside of an open there is nothing to authorize.
+        readString(in);
+        readString(in);
+        readString(in);
+        out.writeInt(0);
+      } else {
+        throw new IOException("unexpected request " + code);
+      }
+      out.flush();
+      if (pendingCode >= 0) {
+        int nextCode = pendingCode;
+        pendingCode = -1;
+        return nextCode;
+      }
+      return in.readInt();
+    }
+
+    private void open() throws IOException {
+      readString(in);
+      String requiredUsername;
+      String requiredPassword;
+      synchronized (TestSaneServer.this) {
+        requiredUsername = username;
+        requiredPassword = password;
+      }
+
+      if (requiredUsername != null) {
+        // The client answers the challenge with SANE_NET_AUTHORIZE, unless it cannot authorize
+        // at all and abandons the open.
+        writeOpenReply(SaneStatus.STATUS_GOOD, 0, "test$MD5$" + SALT);
+        out.flush();
+        int code = in.readInt();
+        if (code != AUTHORIZE) {
+          pendingCode = code;
+          return;
+        }
+        if (!record(code)) {
+          throw new EOFException();
+        }
+        readString(in);
+        String givenUsername = readString(in);
+        String givenPassword = readString(in);
+        out.writeInt(0);
+
+        String expectedPassword =
+            "$MD5$" + SanePasswordEncoder.derivePassword(SALT, requiredPassword);
+        if (!requiredUsername.equals(givenUsername) || !expectedPassword.equals(givenPassword)) {
+          writeOpenReply(SaneStatus.STATUS_ACCESS_DENIED, 0, "");
+          return;
+        }
+      }
+
+      int handle = nextHandle++;
+      devices.put(handle, new Device());
+      writeOpenReply(SaneStatus.STATUS_GOOD, handle, "");
+    }
+
+    private void writeOpenReply(SaneStatus status, int handle, String resource)
+        throws IOException {
+      out.writeInt(status.getWireValue());
+      out.writeInt(handle);
+      writeString(out, resource);
+    }
+
+    private void controlOption() throws IOException {
+      Device device = device(in.readInt());
+      int option = in.readInt();
+      int action = in.readInt();
+      OptionValueType type = SaneEnums.valueOf(OptionValueType.class, in.readInt());
+      int size = in.readInt();
+      int count = in.readInt();
+      byte[] value = new byte[type == OptionValueType.STRING ? count : count * 4];
+      in.readFully(value);
+
+      SaneStatus status = SaneStatus.STATUS_GOOD;
+      if (action == ACTION_SET_VALUE && !device.setOption(option, value)) {
+        status = SaneStatus.STATUS_INVAL;
+      }
+
+      // Status, info, value type, value size, value pointer, value, resource.
+      out.writeInt(status.getWireValue());
+      out.writeInt(0);
+      out.writeInt(type.getWireValue());
+      out.writeInt(size);
+      out.writeInt(1);
+      out.write(Arrays.copyOf(device.getOption(option), size));
+      writeString(out, "");
+    }
+
+    private Device device(int handle) throws IOException {
+      Device device = devices.get(handle);
+      if (device == null) {
+        throw new IOException("unknown handle " + handle);
+      }
+      return device;
+    }
+  }
+
+  /**
+   * The option values and the scan in progress of an open device.
+   */
+  private final class Device {
+    private String mode = "Gray";
+    private int depth = 8;
+    private int resolution = 75;
+    private boolean threePass;
+    private String source = "Flatbed";
+    private int pagesScanned;
+
+    // The frames of the scan in progress, and the index of the one started last, or -1.
+    private List<FrameType> frames = ImmutableList.of();
+    private int frame = -1;
+    private int framePixelsPerLine;
+    private int frameLines;
+    private ServerSocket dataServer;
+
+    byte[] getOption(int option) throws IOException {
+      switch (option) {
+        case OPTION_COUNT:
+          return SaneWord.forInt(OPTIONS).getValue();
+        case OPTION_MODE:
+          return mode.getBytes(Charsets.ISO_8859_1);
+        case OPTION_DEPTH:
+          return SaneWord.forInt(depth).getValue();
+        case OPTION_RESOLUTION:
+          return SaneWord.forInt(resolution).getValue();
+        case OPTION_THREE_PASS:
+          return SaneWord.forInt(threePass ? 1 : 0).getValue();
+        case OPTION_SOURCE:
+          return source.getBytes(Charsets.ISO_8859_1);
+        default:
+          throw new IOException("option " + option + " has no value");
+      }
+    }
+
+    /**
+     * Sets an option, returning {@code false} if the value is not allowed.
+     */
+    boolean setOption(int option, byte[] value) throws IOException {
+      switch (option) {
+        case OPTION_MODE:
+          String newMode = toStringValue(value);
+          if (!MODES.contains(newMode)) {
+            return false;
+          }
+          mode = newMode;
+          return true;
+        case OPTION_DEPTH:
+          int newDepth = SaneWord.fromBytes(value).integerValue();
+          if (!DEPTHS.contains(newDepth)) {
+            return false;
+          }
+          depth = newDepth;
+          return true;
+        case OPTION_RESOLUTION:
+          resolution = SaneWord.fromBytes(value).integerValue();
+          return true;
+        case OPTION_THREE_PASS:
+          threePass = SaneWord.fromBytes(value).integerValue() != 0;
+          return true;
+        case OPTION_SOURCE:
+          String newSource = toStringValue(value);
+          if (!SOURCES.contains(newSource)) {
+            return false;
+          }
+          source = newSource;
+          return true;
+        default:
+          throw new IOException("option " + option + " cannot be set");
+      }
+    }
+
+    void start(DataOutputStream out) throws IOException {
+      if (frame < 0 || frame == frames.size() - 1) {
+        int pages;
+        synchronized (TestSaneServer.this) {
+          pages = pageCount;
+          framePixelsPerLine = pixelsPerLine;
+          frameLines = lines;
+        }
+        boolean feeder = source.equals("ADF");
+        if (feeder && pages > 0 && pagesScanned == pages) {
+          pagesScanned = 0;
+          frame = -1;
+          // Status, port, byte order, resource.
+          out.writeInt(SaneStatus.STATUS_NO_DOCS.getWireValue());
+          out.writeInt(0);
+          out.writeInt(BIG_ENDIAN);
+          writeString(out, "");
+          return;
+        }
+        if (feeder) {
+          pagesScanned++;
+        }
+
+        if (mode.equals("Gray")) {
+          frames = ImmutableList.of(FrameType.GRAY);
+        } else if (threePass) {
+          frames = ImmutableList.of(FrameType.RED, FrameType.GREEN, FrameType.BLUE);
+        } else {
+          frames = ImmutableList.of(FrameType.RGB);
+        }
+        frame = 0;
+      } else {
+        frame++;
+      }
+
+      final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+      final int frameSize = getBytesPerLine() * frameLines;
+      dataServer = server;
+      Thread sender =
+          new Thread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  sendFrame(server, frameSize);
+                }
+              },
+              "test-saned-data");
+      sender.setDaemon(true);
+      sender.start();
+
+      out.writeInt(SaneStatus.STATUS_GOOD.getWireValue());
+      out.writeInt(server.getLocalPort());
+      out.writeInt(BIG_ENDIAN);
+      writeString(out, "");
+    }
+
+    void writeParameters(DataOutputStream out) throws IOException {
+      if (frame < 0) {
+        throw new IOException("no scan in progress");
+      }
+      SaneStatus status;
+      synchronized (TestSaneServer.this) {
+        status = parametersStatus;
+      }
+      if (status != SaneStatus.STATUS_GOOD) {
+        cancel();
+        // saned sends the parameters along with the status, whatever the status.
+        out.writeInt(status.getWireValue());
+        for (int i = 0; i < 6; i++) {
+          out.writeInt(0);
+        }
+        return;
+      }
+      // Status, frame type, last frame, bytes per line, pixels per line, lines, depth.
+      out.writeInt(SaneStatus.STATUS_GOOD.getWireValue());
+      out.writeInt(frames.get(frame).getWireValue());
+      out.writeInt(frame == frames.size() - 1 ? 1 : 0);
+      out.writeInt(getBytesPerLine());
+      out.writeInt(framePixelsPerLine);
+      out.writeInt(frameLines);
+      out.writeInt(depth);
+    }
+
+    /**
+     * Abandons the scan in progress, if any, and reloads the document feeder.
+     */
+    void cancel() {
+      frame = -1;
+      pagesScanned = 0;
+      if (dataServer != null) {
+        closeQuietly(dataServer);
+        dataServer = null;
+      }
+    }
+
+    private int getBytesPerLine() {
+      int channels = frames.get(frame) == FrameType.RGB ? 3 : 1;
+      return (framePixelsPerLine * channels * depth + 7) / 8;
+    }
+
+    /**
+     * Sends a frame of random data to the first client to connect to {@code server}, in records of
+     * the configured size and at the configured rate.
+     */
+    private void sendFrame(ServerSocket server, int frameSize) {
+      int currentRecordSize;
+      long rate;
+      synchronized (TestSaneServer.this) {
+        currentRecordSize = recordSize;
+        rate = bytesPerSecond;
+      }
+      byte[] record = new byte[currentRecordSize];
+      new Random(frameSize).nextBytes(record);
+
+      try (Socket socket = server.accept()) {
+        DataOutputStream data =
+            new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        long startNanos = System.nanoTime();
+        for (int sent = 0; sent < frameSize; ) {
+          int size = Math.min(record.length, frameSize - sent);
+          data.writeInt(size);
+          data.write(record, 0, size);
+          sent += size;
+          if (rate > 0) {
+            data.flush();
+            long remaining = startNanos + TimeUnit.SECONDS.toNanos(sent) / rate - System.nanoTime();
+            if (remaining > 0) {
+              TimeUnit.NANOSECONDS.sleep(remaining);
+            }
+          }
+        }
+        data.writeInt(0xffffffff);
+        data.write(SaneStatus.STATUS_EOF.getWireValue());
+        data.flush();
+      } catch (IOException | InterruptedException e) {
+        // The scan was cancelled.
+      } finally {
+        closeQuietly(server);
+      }
+    }
+  }
+
+  private static void writeDeviceList(DataOutputStream out, List<String> names)
+      throws IOException {
+    // Status, then an array of device pointers that ends with a null pointer.
+    out.writeInt(0);
+    out.writeInt(names.size() + 1);
+    if (names.isEmpty()) {
+      return;
+    }
+    for (String name : names) {
+      out.writeInt(1);
+      writeString(out, name);
+      writeString(out, "JFreeSane");
+      writeString(out, "Test device");
+      writeString(out, "virtual device");
+    }
+    out.writeInt(0);
+  }
+
+  private static void writeOptionDescriptors(DataOutputStream out) throws IOException {
+    EnumSet<OptionCapability> settable =
+        EnumSet.of(OptionCapability.SOFT_SELECT, OptionCapability.SOFT_DETECT);
+    out.writeInt(OPTIONS);
+
+    writeDescriptor(
+        out,
+        "",
+        "Number of options",
+        OptionValueType.INT,
+        OptionUnits.UNIT_NONE,
+        SaneWord.SIZE_IN_BYTES,
+        EnumSet.of(OptionCapability.SOFT_DETECT),
+        OptionValueConstraintType.NO_CONSTRAINT);
+
+    writeDescriptor(
+        out,
+        "",
+        "Scan Mode",
+        OptionValueType.GROUP,
+        OptionUnits.UNIT_NONE,
+        0,
+        EnumSet.noneOf(OptionCapability.class),
+        OptionValueConstraintType.NO_CONSTRAINT);
+
+    writeDescriptor(
+        out,
+        "mode",
+        "Scan mode",
+        OptionValueType.STRING,
+        OptionUnits.UNIT_NONE,
+        STRING_SIZE,
+        settable,
+        OptionValueConstraintType.STRING_LIST_CONSTRAINT);
+    out.writeInt(MODES.size() + 1);
+    for (String mode : MODES) {
+      writeString(out, mode);
+    }
+    out.writeInt(0); // the null terminator
+
+    writeDescriptor(
+        out,
+        "depth",
+        "Bit depth",
+        OptionValueType.INT,
+        OptionUnits.UNIT_BIT,
+        SaneWord.SIZE_IN_BYTES,
+        settable,
+        OptionValueConstraintType.VALUE_LIST_CONSTRAINT);
+    out.writeInt(DEPTHS.size() + 1);
+    out.writeInt(DEPTHS.size());
+    for (int depth : DEPTHS) {
+      out.writeInt(depth);
+    }
+
+    writeDescriptor(
+        out,
+        "resolution",
+        "Scan resolution",
+        OptionValueType.INT,
+        OptionUnits.UNIT_DPI,
+        SaneWord.SIZE_IN_BYTES,
+        settable,
+        OptionValueConstraintType.RANGE_CONSTRAINT);
+    out.writeInt(1); // pointer to the range
+    out.writeInt(25);
+    out.writeInt(1200);
+    out.writeInt(1);
+
+    writeDescriptor(
+        out,
+        "three-pass",
+        "Three-pass simulation",
+        OptionValueType.BOOLEAN,
+        OptionUnits.UNIT_NONE,
+        SaneWord.SIZE_IN_BYTES,
+        settable,
+        OptionValueConstraintType.NO_CONSTRAINT);
+
+    writeDescriptor(
+        out,
+        "source",
+        "Scan source",
+        OptionValueType.STRING,
+        OptionUnits.UNIT_NONE,
+        STRING_SIZE,
+        settable,
+        OptionValueConstraintType.STRING_LIST_CONSTRAINT);
+    out.writeInt(SOURCES.size() + 1);
+    for (String source : SOURCES) {
+      writeString(out, source);
+    }
+    out.writeInt(0); // the null terminator
+  }
+
+  /**
+   * Writes an option descriptor up to its constraint, which the caller writes.
+   */
+  private static void writeDescriptor(
+      DataOutputStream out,
+      String name,
+      String title,
+      OptionValueType type,
+      OptionUnits units,
+      int size,
+      EnumSet<OptionCapability> capabilities,
+      OptionValueConstraintType constraintType)
+      throws IOException {
+    out.writeInt(1); // pointer to the descriptor
+    writeString(out, name);
+    writeString(out, title);
+    writeString(out, "");
+    out.writeInt(type.getWireValue());
+    out.writeInt(units.getWireValue());
+    out.writeInt(size);
+    out.writeInt(SaneEnums.wireValue(capabilities));
+    out.writeInt(constraintType.getWireValue());
+  }
+
+  private static void writeString(DataOutputStream out, String string) throws IOException {
+    if (string.isEmpty()) {
+      out.writeInt(0);
+      return;
+    }
+    byte[] bytes = string.getBytes(Charsets.ISO_8859_1);
+    out.writeInt(bytes.length + 1);
+    out.write(bytes);
+    out.write(0);
+  }
+
+  /**
+   * Returns the value of a string option, which is null-terminated unless it fills its bytes.
+   */
+  private static String toStringValue(byte[] value) {
+    int length = 0;
+    while (length < value.length && value[length] != 0) {
+      length++;
+    }
+    return new String(value, 0, length, Charsets.ISO_8859_1);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length == 0) {
+      return "";
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, 0, length - 1, Charsets.ISO_8859_1);
+  }
+}